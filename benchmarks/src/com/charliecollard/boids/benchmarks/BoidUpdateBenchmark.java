@@ -0,0 +1,76 @@
+package com.charliecollard.boids.benchmarks;
+
+import com.badlogic.gdx.math.Vector2;
+import com.charliecollard.boids.Boid;
+import com.charliecollard.boids.BoidSimulator;
+import com.charliecollard.boids.BoidStore;
+import com.charliecollard.boids.PeriodicWrappingScheme;
+import com.charliecollard.boids.SimulationConfig;
+import com.charliecollard.boids.SteeringKernel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steering one boid against a fixed set of packed neighbours, in place through Boid.update and into the
+ * store's next buffer through Boid.steer, with the scalar loops and with the desktop Vector API kernel.
+ * The vector kernel is only on the classpath when the benchmarks are built with -PvectorJdk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoidUpdateBenchmark {
+    @Param({"0", "4", "16", "64", "256"})
+    public int neighbourCount;
+
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    private SimulationConfig config = new SimulationConfig();
+    private BoidStore store;
+    private Boid boid;
+    private float[] packedNeighbours;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+        BoidSimulator.renderingOn = false;
+        Boid.steeringKernel = null;
+        if (kernel.equals("vector")) {
+            Boid.steeringKernel = (SteeringKernel) Class.forName("com.charliecollard.boids.desktop.VectorSteeringKernel").getDeclaredConstructor().newInstance();
+        }
+        store = new BoidStore(1);
+        store.ensureNextBuffer();
+        boid = new Boid(store, new PeriodicWrappingScheme());
+        packedNeighbours = new float[4 * neighbourCount];
+        Random random = new Random(42);
+        for (int n = 0; n < neighbourCount; n++) {
+            Vector2 displacement = new Vector2(config.visionRange * random.nextFloat(), 0).rotate(360 * random.nextFloat());
+            Vector2 velocity = new Vector2(Boid.MAX_SPEED, 0).rotate(360 * random.nextFloat());
+            packedNeighbours[4 * n] = displacement.x;
+            packedNeighbours[4 * n + 1] = displacement.y;
+            packedNeighbours[4 * n + 2] = velocity.x;
+            packedNeighbours[4 * n + 3] = velocity.y;
+        }
+    }
+
+    @Benchmark
+    public Boid update() {
+        boid.update(config, 0.02f, packedNeighbours, 0, neighbourCount);
+        return boid;
+    }
+
+    @Benchmark
+    public BoidStore steer() {
+        Boid.steer(config, store, 0, 0.02f, packedNeighbours, 0, neighbourCount);
+        return store;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Boid.steeringKernel = null;
+    }
+}
@@ -0,0 +1,89 @@
+package com.charliecollard.boids.benchmarks;
+
+import com.badlogic.gdx.math.Vector2;
+import com.charliecollard.boids.Boid;
+import com.charliecollard.boids.BoidSimulator;
+import com.charliecollard.boids.BoidStore;
+import com.charliecollard.boids.CorrelationEngine;
+import com.charliecollard.boids.FftCorrelation;
+import com.charliecollard.boids.WrappingScheme;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The correlation against distance pass behind the --plot-correlations plot, without the plot, as the
+ * correlation engine computes it from pairs and with FFTs, and by comparing every pair.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CorrelationBenchmark {
+    @Param({"200", "1000", "2000"})
+    public int boidCount;
+
+    @Param({"periodic"})
+    public String wrappingScheme;
+
+    private WrappingScheme scheme;
+    private List<Vector2> positions;
+    private List<Vector2> velocities;
+    private Vector2 avgVelocity;
+    private BoidStore store;
+    private CorrelationEngine engine;
+    private FftCorrelation fftCorrelation;
+    private double[] sums;
+    private long[] counts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BoidSimulator.renderingOn = false;
+        scheme = WrappingScheme.forName(wrappingScheme);
+        positions = new ArrayList<>();
+        velocities = new ArrayList<>();
+        avgVelocity = new Vector2();
+        store = new BoidStore(boidCount);
+        Random random = new Random(42);
+        for (int i = 0; i < boidCount; i++) {
+            positions.add(new Vector2(random.nextFloat() * scheme.getWidth(), random.nextFloat() * scheme.getHeight()));
+            Vector2 velocity = new Vector2(Boid.MAX_SPEED, 0).rotate(360 * random.nextFloat());
+            velocities.add(velocity);
+            store.add(positions.get(i).x, positions.get(i).y, velocity.x, velocity.y);
+            avgVelocity.add(velocity);
+        }
+        avgVelocity.scl(1f / boidCount);
+        engine = new CorrelationEngine(null);
+        fftCorrelation = new FftCorrelation();
+        sums = new double[CorrelationEngine.bucketCount(scheme.getWidth())];
+        counts = new long[CorrelationEngine.bucketCount(scheme.getWidth())];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public double[] histogram() {
+        engine.histogram(store, scheme, avgVelocity.x, avgVelocity.y, sums, counts);
+        return CorrelationEngine.normalise(sums, counts);
+    }
+
+    // Only for periodic worlds
+    @Benchmark
+    public double[] fft() {
+        fftCorrelation.histogram(store, scheme, avgVelocity.x, avgVelocity.y, sums, counts);
+        return CorrelationEngine.normalise(sums, counts);
+    }
+
+    @Benchmark
+    public double[] pairwise() {
+        return CorrelationEngine.computePairwise(positions, velocities, avgVelocity, scheme);
+    }
+}
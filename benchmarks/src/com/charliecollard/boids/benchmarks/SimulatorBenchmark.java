@@ -0,0 +1,67 @@
+package com.charliecollard.boids.benchmarks;
+
+import com.charliecollard.boids.BoidSimulator;
+import com.charliecollard.boids.SimulationConfig;
+import com.charliecollard.boids.WrappingScheme;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole simulation tick, run headless. The flock keeps evolving between invocations, so later
+ * iterations measure a more clustered flock than the uniform start.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimulatorBenchmark {
+    @Param({"500", "2000", "8000"})
+    public int boidCount;
+
+    @Param({"periodic", "solid", "klein", "sphere"})
+    public String wrappingScheme;
+
+    @Param({"1"})
+    public int threads;
+
+    // grid, verlet or aggregate
+    @Param({"grid"})
+    public String neighbourSearch;
+
+    // metric, or topological to heed the 7 nearest boids whatever their distance
+    @Param({"metric", "topological"})
+    public String neighbourMode;
+
+    // Ticks between Morton order sorts, 0 to leave the boids in spawn order
+    @Param({"0", "5"})
+    public int resortEvery;
+
+    private BoidSimulator simulator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BoidSimulator.renderingOn = false;
+        SimulationConfig config = new SimulationConfig();
+        config.boidCount = boidCount;
+        config.setWrappingScheme(WrappingScheme.forName(wrappingScheme));
+        config.threadCount = threads;
+        config.resortEvery = resortEvery;
+        if (neighbourSearch.equals("verlet")) config.neighbourSearch = BoidSimulator.NEIGHBOURS_VERLET;
+        if (neighbourSearch.equals("aggregate")) config.neighbourSearch = BoidSimulator.NEIGHBOURS_AGGREGATE;
+        if (neighbourMode.equals("topological")) config.neighbourMode = BoidSimulator.NEIGHBOUR_MODE_TOPOLOGICAL;
+        simulator = new BoidSimulator(config);
+    }
+
+    @Benchmark
+    public void update() {
+        simulator.update();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        simulator.shutdown();
+    }
+}
@@ -0,0 +1,93 @@
+package com.charliecollard.boids.benchmarks;
+
+import com.badlogic.gdx.math.Vector2;
+import com.charliecollard.boids.Boid;
+import com.charliecollard.boids.BoidSimulator;
+import com.charliecollard.boids.BoidStore;
+import com.charliecollard.boids.WrappingScheme;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single pair operations of each wrapping scheme, through both the Vector2 API the simulation used to
+ * call and the primitive API. Each invocation moves on to the next of a fixed set of random boids.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrappingSchemeBenchmark {
+    private static final int BOID_COUNT = 1024;
+    private static final int MASK = BOID_COUNT - 1;
+
+    @Param({"periodic", "solid", "klein", "sphere"})
+    public String wrappingScheme;
+
+    private WrappingScheme scheme;
+    private BoidStore store;
+    private Boid[] boids;
+    // Positions spread over the universes around the simulation, so wrapping has work to do
+    private float[] unwrappedX;
+    private float[] unwrappedY;
+    private float[] out = new float[4];
+    private int cursor = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BoidSimulator.renderingOn = false;
+        scheme = WrappingScheme.forName(wrappingScheme);
+        store = new BoidStore(BOID_COUNT);
+        boids = new Boid[BOID_COUNT];
+        unwrappedX = new float[BOID_COUNT];
+        unwrappedY = new float[BOID_COUNT];
+        Random random = new Random(42);
+        for (int i = 0; i < BOID_COUNT; i++) {
+            boids[i] = new Boid(store, scheme);
+            unwrappedX[i] = (random.nextFloat() * 3 - 1) * scheme.getWidth();
+            unwrappedY[i] = (random.nextFloat() * 3 - 1) * scheme.getHeight();
+        }
+    }
+
+    @Benchmark
+    public Vector2 relativeDisplacement() {
+        int i = cursor++ & MASK;
+        return scheme.relativeDisplacement(boids[i], boids[(i + 1) & MASK]);
+    }
+
+    @Benchmark
+    public Vector2 relativeVelocity() {
+        int i = cursor++ & MASK;
+        return scheme.relativeVelocity(boids[i], boids[(i + 1) & MASK]);
+    }
+
+    @Benchmark
+    public float[] relativeDisplacementAndVelocityPrimitive() {
+        int i = cursor++ & MASK;
+        int j = (i + 1) & MASK;
+        int image = scheme.relativeDisplacement(store.positionX[i], store.positionY[i], store.positionX[j], store.positionY[j], out, 0);
+        scheme.relativeVelocity(image, store.velocityX[j], store.velocityY[j], out, 2);
+        return out;
+    }
+
+    @Benchmark
+    public Boid performWrapping() {
+        int i = cursor++ & MASK;
+        boids[i].setPositionX(unwrappedX[i]);
+        boids[i].setPositionY(unwrappedY[i]);
+        scheme.performWrapping(boids[i]);
+        return boids[i];
+    }
+
+    @Benchmark
+    public BoidStore performWrappingPrimitive() {
+        int i = cursor++ & MASK;
+        store.positionX[i] = unwrappedX[i];
+        store.positionY[i] = unwrappedY[i];
+        scheme.performWrapping(store, i);
+        return store;
+    }
+}
@@ -1,156 +1,216 @@
 package com.charliecollard.boids;
 
-import com.badlogic.gdx.Gdx;
-import com.badlogic.gdx.graphics.Color;
-import com.badlogic.gdx.graphics.g2d.Sprite;
-import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.badlogic.gdx.math.Vector2;
-import javafx.util.Pair;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
-import java.util.List;
-
-import static com.charliecollard.boids.BoidSimulator.simulationWidth;
-import static com.charliecollard.boids.BoidSimulator.simulationHeight;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * A view onto one boid's slot in a {@link BoidStore}.
+ * Boids created without a store get a private single-boid store of their own.
+ */
 public class Boid implements Serializable {
+    // Matches the implicit UID of the original Vector2-backed class so existing .ser saves still load
+    private static final long serialVersionUID = -5987262673955538594L;
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("position", Vector2.class),
+            new ObjectStreamField("velocity", Vector2.class)
+    };
     public static final float MAX_SPEED = 300f;
     public static final float PI = (float) Math.PI;
     public static final int UPDATE_DETERMINISTIC = 201;
     public static final int UPDATE_TIMED = 202;
 
-    public static float visionRange = 40f;
     public static String boidTexture = TextureController.BOID;
-    public static int separationWeight = 60;
-    public static int cohesionWeight = 20;
-    public static int alignmentWeight = 1;
-    public static int boidSusceptibility = 20;
     public static final float WEIGHT_SCALING_FACTOR = 0.005f;
+    // Null for the scalar loops below, which every platform can run
+    public static SteeringKernel steeringKernel = null;
+    private static final ThreadLocal<float[]> kernelSums = new ThreadLocal<float[]>() {
+        @Override
+        protected float[] initialValue() {
+            return new float[CellAggregates.SUMS];
+        }
+    };
 
-    private Vector2 position;
-    private Vector2 velocity;
-    protected transient Sprite boidSprite;
-    protected transient Color spriteColor;
+    private transient BoidStore store;
+    private transient int id;
     protected transient WrappingScheme wrappingScheme;
-    protected transient Vector2 lastSeparation;
-    protected transient Vector2 lastCohesion;
-    protected transient Vector2 lastAlignment;
 
     public Boid() {
         this(new PeriodicWrappingScheme());
     }
 
     public Boid(WrappingScheme wrappingScheme) {
-        Random rand = new Random();
+        this(new BoidStore(1), wrappingScheme);
+    }
 
-        try {
-            loadSprite();
-        } catch (NullPointerException e) {
-            // We're probably in headless mode
-        }
+    public Boid(BoidStore store, WrappingScheme wrappingScheme) {
+        Random rand = ThreadLocalRandom.current();
 
         float heading = rand.nextFloat() * 2 * PI;
 //        float heading = 0;
 //        this.setPosition(new Vector2(simulationWidth/2,simulationHeight/2));
         this.wrappingScheme = wrappingScheme;
-        this.setPosition(new Vector2(rand.nextFloat() * simulationWidth, rand.nextFloat() * simulationHeight));
-        this.setVelocity(new Vector2((float) (MAX_SPEED * Math.sin(heading)), (float) (MAX_SPEED * Math.cos(heading))));
+        this.store = store;
+        this.id = store.add(rand.nextFloat() * wrappingScheme.getWidth(), rand.nextFloat() * wrappingScheme.getHeight(),
+                (float) (MAX_SPEED * Math.sin(heading)), (float) (MAX_SPEED * Math.cos(heading)));
+    }
+
+    // A view onto a boid that's already in the store
+    public Boid(BoidStore store, int id, WrappingScheme wrappingScheme) {
+        this.wrappingScheme = wrappingScheme;
+        this.store = store;
+        this.id = id;
     }
 
     public Boid(Vector2 startPosition, WrappingScheme wrappingScheme) {
-        this(wrappingScheme);
+        this(startPosition, new BoidStore(1), wrappingScheme);
+    }
+
+    public Boid(Vector2 startPosition, BoidStore store, WrappingScheme wrappingScheme) {
+        this(store, wrappingScheme);
         this.setPosition(startPosition);
     }
 
     public Boid(Vector2 startPosition, Vector2 startVelocity, WrappingScheme wrappingScheme) {
-        this(wrappingScheme);
+        this(startPosition, startVelocity, new BoidStore(1), wrappingScheme);
+    }
+
+    public Boid(Vector2 startPosition, Vector2 startVelocity, BoidStore store, WrappingScheme wrappingScheme) {
+        this(store, wrappingScheme);
         this.setPosition(startPosition);
         this.setVelocity(startVelocity);
     }
 
-    public void loadSprite() {
-        if (BoidSimulator.renderingOn) {
-            Random rand = new Random();
-            boidSprite = new Sprite(TextureController.getInstance().getTexture(boidTexture));
-            boidSprite.setOrigin(boidSprite.getWidth() / 2, boidSprite.getHeight() / 2);
-            float hue = rand.nextFloat();
-            float saturation = (rand.nextInt(2000) + 1000) / 2000f;
-            float luminance = 0.9f;
-            java.awt.Color tempColor = java.awt.Color.getHSBColor(hue, saturation, luminance);
-            spriteColor = new Color(((tempColor.getRGB() & 0xffffff) << 8) | 0xff);
-            if (BoidSimulator.debugBoidColorsOn) boidSprite.setColor(spriteColor);
-            boidSprite.setScale(0.3f);
-        }
+    /**
+     * Steer the boid and move it, in place. Neighbours are packed as dx, dy, vx, vy groups starting at
+     * offset, as laid out by {@link NeighbourLists}.
+     */
+    public void update(SimulationConfig config, float deltaTime, float[] neighbours, int offset, int count) {
+        steer(config, store, id, deltaTime, neighbours, offset, count, store.positionX, store.positionY, store.velocityX, store.velocityY);
+    }
+
+    /**
+     * Steer a boid using its state in the store's current buffer and write its new position and
+     * velocity into the store's next buffer. Neighbours are packed as in {@link #update}, which does the
+     * same arithmetic, so both give identical results.
+     */
+    public static void steer(SimulationConfig config, BoidStore store, int id, float deltaTime, float[] neighbours, int offset, int count) {
+        steer(config, store, id, deltaTime, neighbours, offset, count,
+                store.nextPositionX, store.nextPositionY, store.nextVelocityX, store.nextVelocityY);
     }
 
-    public void update(float deltaTime, List<Vector2> nearbyBoidDisplacements, List<Vector2> nearbyBoidVelocities) {
-        // Sanity check
-        if (nearbyBoidDisplacements.size() != nearbyBoidVelocities.size()) {
-            throw new IllegalStateException("Position list and velocity list not of equal length.");
+    // The boid's own state is all read before the outputs are written, so they may be the current buffer
+    private static void steer(SimulationConfig config, BoidStore store, int id, float deltaTime, float[] neighbours, int offset, int count,
+                              float[] outPositionX, float[] outPositionY, float[] outVelocityX, float[] outVelocityY) {
+        SteeringKernel kernel = steeringKernel;
+        if (kernel != null) {
+            float[] sums = kernelSums.get();
+            kernel.sum(neighbours, offset, count, sums);
+            steer(config, store, id, deltaTime, count, sums[1], sums[2], sums[3], sums[4], sums[5], sums[6],
+                    outPositionX, outPositionY, outVelocityX, outVelocityY);
+            return;
         }
-        Vector2 newPosition = this.getPosition();
-        Vector2 newVelocity = this.getVelocity();
 
         // Calculate separation steer
-        Vector2 separation = new Vector2(0, 0);
-        for (Vector2 boidDisplacement : nearbyBoidDisplacements) {
-            float distanceSquared = boidDisplacement.len2();
-            if (distanceSquared != 0) separation.add(boidDisplacement.cpy().scl(30/distanceSquared));
-        }
-        separation.scl(-1);
-
-        // Calculate cohesion steer
-        Vector2 cohesion;
-        if (nearbyBoidDisplacements.size() == 0) {
-            cohesion = new Vector2(0, 0);
-        } else {
-            Vector2 centreOfMass = new Vector2(0, 0);
-            for (Vector2 boidDisplacement : nearbyBoidDisplacements) {
-                centreOfMass.add(boidDisplacement);
+        float separationX = 0;
+        float separationY = 0;
+        for (int n = offset; n < offset + 4 * count; n += 4) {
+            float dx = neighbours[n];
+            float dy = neighbours[n + 1];
+            float distanceSquared = dx * dx + dy * dy;
+            if (distanceSquared != 0) {
+                float scale = 30 / distanceSquared;
+                separationX += dx * scale;
+                separationY += dy * scale;
             }
-            centreOfMass.scl(1f/nearbyBoidDisplacements.size());
-            cohesion = centreOfMass;
         }
 
-        // Calculate alignment steer
-        Vector2 alignment = new Vector2(0, 0);
-        if (nearbyBoidVelocities.size() != 0) {
-            for (Vector2 boidVelocity : nearbyBoidVelocities) {
-                alignment.add(boidVelocity);
-            }
-            alignment.scl(1f / nearbyBoidVelocities.size());
+        // Calculate cohesion and alignment steers
+        float cohesionX = 0;
+        float cohesionY = 0;
+        float alignmentX = 0;
+        float alignmentY = 0;
+        for (int n = offset; n < offset + 4 * count; n += 4) {
+            cohesionX += neighbours[n];
+            cohesionY += neighbours[n + 1];
+            alignmentX += neighbours[n + 2];
+            alignmentY += neighbours[n + 3];
         }
+        steer(config, store, id, deltaTime, count, separationX, separationY, cohesionX, cohesionY, alignmentX, alignmentY,
+                outPositionX, outPositionY, outVelocityX, outVelocityY);
+    }
 
-        Vector2 combinedSteer = new Vector2(0, 0);
-        combinedSteer.add(separation.scl(separationWeight * WEIGHT_SCALING_FACTOR));
-        lastSeparation = separation;
-        combinedSteer.add(cohesion.scl(cohesionWeight * WEIGHT_SCALING_FACTOR));
-        lastCohesion = cohesion;
-        combinedSteer.add(alignment.scl(alignmentWeight * WEIGHT_SCALING_FACTOR));
-        lastAlignment = alignment;
-        if (combinedSteer.len() > 0) combinedSteer.scl(boidSusceptibility/combinedSteer.len());
-        newVelocity.add(combinedSteer);
-        if (newVelocity.len() > MAX_SPEED) newVelocity.scl(MAX_SPEED/newVelocity.len());
-        newPosition.add(newVelocity.cpy().scl(BoidSimulator.updateMode == UPDATE_TIMED ? deltaTime : 0.02f));
-        this.setPosition(newPosition);
-        this.setVelocity(newVelocity);
-    }
-
-    public void render(SpriteBatch sb) {
-        boidSprite.setScale(BoidSimulator.zoomOut ? 1 : 0.35f);
-        boidSprite.setRotation(getVelocity().angle()-90);
-        boidSprite.setPosition(getPosition().x-boidSprite.getWidth()/2, getPosition().y-boidSprite.getHeight()/2);
-        boidSprite.draw(sb);
-        if (BoidSimulator.zoomOut) {
-            for (Pair<Vector2, Vector2> positionVelocityPair : wrappingScheme.getRenderingPositionsAndVelocities(this)) {
-                Vector2 position = positionVelocityPair.getKey();
-                Vector2 velocity = positionVelocityPair.getValue();
-                boidSprite.setRotation(velocity.angle() - 90);
-                boidSprite.setPosition(position.x - boidSprite.getWidth() / 2, position.y - boidSprite.getHeight() / 2);
-                boidSprite.draw(sb);
-            }
+    /**
+     * Steer a boid from sums over its neighbours rather than the neighbours themselves, writing its new
+     * position and velocity into the store's next buffer. The sums are laid out as in {@link CellAggregates}:
+     * neighbour count, then the sums of the inverse-square separation terms, of displacements and of
+     * velocities, x then y.
+     */
+    public static void steer(SimulationConfig config, BoidStore store, int id, float deltaTime, float[] sums, int offset) {
+        steer(config, store, id, deltaTime, (int) sums[offset], sums[offset + 1], sums[offset + 2], sums[offset + 3],
+                sums[offset + 4], sums[offset + 5], sums[offset + 6],
+                store.nextPositionX, store.nextPositionY, store.nextVelocityX, store.nextVelocityY);
+    }
+
+    private static void steer(SimulationConfig config, BoidStore store, int id, float deltaTime, int count,
+                              float separationX, float separationY, float cohesionX, float cohesionY, float alignmentX, float alignmentY,
+                              float[] outPositionX, float[] outPositionY, float[] outVelocityX, float[] outVelocityY) {
+        separationX *= -1;
+        separationY *= -1;
+        if (count != 0) {
+            float inverseCount = 1f / count;
+            cohesionX *= inverseCount;
+            cohesionY *= inverseCount;
+            alignmentX *= inverseCount;
+            alignmentY *= inverseCount;
+        }
+
+        float separationScale = config.separationWeight * WEIGHT_SCALING_FACTOR;
+        float cohesionScale = config.cohesionWeight * WEIGHT_SCALING_FACTOR;
+        float alignmentScale = config.alignmentWeight * WEIGHT_SCALING_FACTOR;
+        separationX *= separationScale;
+        separationY *= separationScale;
+        cohesionX *= cohesionScale;
+        cohesionY *= cohesionScale;
+        alignmentX *= alignmentScale;
+        alignmentY *= alignmentScale;
+        store.separationX[id] = separationX;
+        store.separationY[id] = separationY;
+        store.cohesionX[id] = cohesionX;
+        store.cohesionY[id] = cohesionY;
+        store.alignmentX[id] = alignmentX;
+        store.alignmentY[id] = alignmentY;
+
+        float steerX = 0;
+        float steerY = 0;
+        steerX += separationX;
+        steerY += separationY;
+        steerX += cohesionX;
+        steerY += cohesionY;
+        steerX += alignmentX;
+        steerY += alignmentY;
+        float steerLength = (float) Math.sqrt(steerX * steerX + steerY * steerY);
+        if (steerLength > 0) {
+            float scale = config.boidSusceptibility / steerLength;
+            steerX *= scale;
+            steerY *= scale;
         }
+
+        float velocityX = store.velocityX[id] + steerX;
+        float velocityY = store.velocityY[id] + steerY;
+        float speed = (float) Math.sqrt(velocityX * velocityX + velocityY * velocityY);
+        if (speed > MAX_SPEED) {
+            float scale = MAX_SPEED / speed;
+            velocityX *= scale;
+            velocityY *= scale;
+        }
+        float timestep = config.updateMode == UPDATE_TIMED ? deltaTime : 0.02f;
+        outPositionX[id] = store.positionX[id] + velocityX * timestep;
+        outPositionY[id] = store.positionY[id] + velocityY * timestep;
+        outVelocityX[id] = velocityX;
+        outVelocityY[id] = velocityY;
     }
 
     public Vector2 relativeDisplacement(Boid other) {
@@ -171,38 +231,87 @@ public class Boid implements Serializable {
     }
 
     public void performWrapping() {
-        wrappingScheme.performWrapping(this);
+        wrappingScheme.performWrapping(store, id);
     }
 
     public void setPosition(Vector2 newPos) {
-        this.position = newPos;
+        store.positionX[id] = newPos.x;
+        store.positionY[id] = newPos.y;
     }
 
     public void setPositionX(float newX) {
-        this.position.x = newX;
+        store.positionX[id] = newX;
     }
 
     public void setPositionY(float newY) {
-        this.position.y = newY;
+        store.positionY[id] = newY;
     }
 
     public void setVelocity(Vector2 newVel) {
-        this.velocity = newVel;
+        store.velocityX[id] = newVel.x;
+        store.velocityY[id] = newVel.y;
     }
 
     public void setVelocityX(float newX) {
-        this.velocity.x = newX;
+        store.velocityX[id] = newX;
     }
 
     public void setVelocityY(float newY) {
-        this.velocity.y = newY;
+        store.velocityY[id] = newY;
     }
 
     public Vector2 getPosition() {
-        return this.position.cpy();
+        return new Vector2(store.positionX[id], store.positionY[id]);
     }
 
     public Vector2 getVelocity() {
-        return this.velocity.cpy();
+        return new Vector2(store.velocityX[id], store.velocityY[id]);
+    }
+
+    public float getPositionX() {
+        return store.positionX[id];
+    }
+
+    public float getPositionY() {
+        return store.positionY[id];
+    }
+
+    public float getVelocityX() {
+        return store.velocityX[id];
+    }
+
+    public float getVelocityY() {
+        return store.velocityY[id];
+    }
+
+    public Vector2 getLastSeparation() {
+        return new Vector2(store.separationX[id], store.separationY[id]);
+    }
+
+    public Vector2 getLastCohesion() {
+        return new Vector2(store.cohesionX[id], store.cohesionY[id]);
+    }
+
+    public Vector2 getLastAlignment() {
+        return new Vector2(store.alignmentX[id], store.alignmentY[id]);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("position", getPosition());
+        fields.put("velocity", getVelocity());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Vector2 position = (Vector2) fields.get("position", new Vector2());
+        Vector2 velocity = (Vector2) fields.get("velocity", new Vector2());
+        store = new BoidStore(1);
+        id = store.add(position.x, position.y, velocity.x, velocity.y);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,192 @@
+package com.charliecollard.boids;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.*;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * Draws every boid as a textured quad from one mesh, with one texture, instead of a sprite per boid.
+ *
+ * Each frame the centre, heading and colour of every boid are streamed into the mesh's vertex buffer,
+ * four vertices per boid, and the vertex shader turns them into a quad facing along the heading. The
+ * heading is the boid's normalised velocity, so no angles are computed. Colours come from a fixed
+ * palette indexed by a hash of the boid's id, so no boid needs to carry its own.
+ *
+ * In zoom-out mode each boid is also drawn at its images in the surrounding universes, taken from the
+ * wrapping scheme's ghost images. Anything whose quad would fall outside the camera's view is skipped.
+ *
+ * Indices are 16 bit, so a frame with more quads than one index buffer can address is drawn in several
+ * passes over the same buffers.
+ */
+public class BoidRenderer implements Disposable {
+    private static final int FLOATS_PER_VERTEX = 7;
+    private static final int FLOATS_PER_BOID = 4 * FLOATS_PER_VERTEX;
+    private static final int MAX_BOIDS_PER_PASS = 16383;
+    private static final int PALETTE_SIZE = 256;
+    private static final float NORMAL_SCALE = 0.35f;
+    private static final float ZOOMED_OUT_SCALE = 1f;
+
+    private static final String VERTEX_SHADER =
+            "attribute vec2 " + ShaderProgram.POSITION_ATTRIBUTE + ";\n"
+            + "attribute vec2 a_direction;\n"
+            + "attribute vec2 " + ShaderProgram.TEXCOORD_ATTRIBUTE + "0;\n"
+            + "attribute vec4 " + ShaderProgram.COLOR_ATTRIBUTE + ";\n"
+            + "uniform mat4 u_projTrans;\n"
+            + "uniform vec2 u_halfSize;\n"
+            + "varying vec4 v_color;\n"
+            + "varying vec2 v_texCoords;\n"
+            + "void main() {\n"
+            + "    vec2 corner = (" + ShaderProgram.TEXCOORD_ATTRIBUTE + "0 * 2.0 - 1.0) * u_halfSize;\n"
+            // The sprite points up its y axis, which is turned to face along the heading
+            + "    vec2 offset = corner.x * vec2(a_direction.y, -a_direction.x) + corner.y * a_direction;\n"
+            + "    v_color = " + ShaderProgram.COLOR_ATTRIBUTE + ";\n"
+            + "    v_color.a = v_color.a * (255.0/254.0);\n"
+            + "    v_texCoords = vec2(" + ShaderProgram.TEXCOORD_ATTRIBUTE + "0.x, 1.0 - " + ShaderProgram.TEXCOORD_ATTRIBUTE + "0.y);\n"
+            + "    gl_Position = u_projTrans * vec4(" + ShaderProgram.POSITION_ATTRIBUTE + " + offset, 0.0, 1.0);\n"
+            + "}\n";
+    private static final String FRAGMENT_SHADER =
+            "#ifdef GL_ES\n"
+            + "precision mediump float;\n"
+            + "#endif\n"
+            + "varying vec4 v_color;\n"
+            + "varying vec2 v_texCoords;\n"
+            + "uniform sampler2D u_texture;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = v_color * texture2D(u_texture, v_texCoords);\n"
+            + "}\n";
+
+    private final Mesh mesh;
+    private final ShaderProgram shader;
+    private final float[] palette = new float[PALETTE_SIZE];
+    private final float white = Color.WHITE.toFloatBits();
+    private float[] vertices = new float[FLOATS_PER_BOID * 1024];
+    private final float[] ghostImages = new float[WrappingScheme.MAX_GHOST_IMAGES * 4];
+
+    public BoidRenderer() {
+        mesh = new Mesh(false, 4 * MAX_BOIDS_PER_PASS, 6 * MAX_BOIDS_PER_PASS,
+                new VertexAttribute(VertexAttributes.Usage.Position, 2, ShaderProgram.POSITION_ATTRIBUTE),
+                new VertexAttribute(VertexAttributes.Usage.Generic, 2, "a_direction"),
+                new VertexAttribute(VertexAttributes.Usage.TextureCoordinates, 2, ShaderProgram.TEXCOORD_ATTRIBUTE + "0"),
+                new VertexAttribute(VertexAttributes.Usage.ColorPacked, 4, ShaderProgram.COLOR_ATTRIBUTE));
+        short[] indices = new short[6 * MAX_BOIDS_PER_PASS];
+        for (int quad = 0, vertex = 0; quad < MAX_BOIDS_PER_PASS; quad++, vertex += 4) {
+            int base = quad * 6;
+            indices[base] = (short) vertex;
+            indices[base + 1] = (short) (vertex + 1);
+            indices[base + 2] = (short) (vertex + 2);
+            indices[base + 3] = (short) (vertex + 2);
+            indices[base + 4] = (short) (vertex + 3);
+            indices[base + 5] = (short) vertex;
+        }
+        mesh.setIndices(indices);
+
+        shader = new ShaderProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        if (!shader.isCompiled()) {
+            throw new IllegalStateException("Couldn't compile the boid shader: " + shader.getLog());
+        }
+
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            // Spread the hues evenly but out of order, so neighbouring ids get different colours
+            float hue = (i * 0.618034f) % 1;
+            float saturation = 0.5f + 0.5f * ((i * 7) % PALETTE_SIZE) / PALETTE_SIZE;
+            palette[i] = new Color(Color.WHITE).fromHsv(hue * 360, saturation, 0.9f).toFloatBits();
+        }
+    }
+
+    /**
+     * Draw the boids in the store.
+     * @param minX the left edge of the camera's view, and so on, used to skip quads that can't be seen
+     */
+    public void render(BoidStore store, WrappingScheme wrappingScheme, Matrix4 projection, boolean zoomedOut,
+                       boolean coloured, float minX, float minY, float maxX, float maxY) {
+        Texture texture = TextureController.getInstance().getTexture(Boid.boidTexture);
+        float scale = zoomedOut ? ZOOMED_OUT_SCALE : NORMAL_SCALE;
+        float halfWidth = texture.getWidth() * scale / 2;
+        float halfHeight = texture.getHeight() * scale / 2;
+        // Enough to cover the quad whichever way it's facing
+        float reach = (float) Math.sqrt(halfWidth * halfWidth + halfHeight * halfHeight);
+        minX -= reach;
+        minY -= reach;
+        maxX += reach;
+        maxY += reach;
+
+        Gdx.gl.glEnable(GL20.GL_BLEND);
+        Gdx.gl.glBlendFunc(GL20.GL_SRC_ALPHA, GL20.GL_ONE_MINUS_SRC_ALPHA);
+        texture.bind(0);
+        shader.begin();
+        shader.setUniformMatrix("u_projTrans", projection);
+        shader.setUniformi("u_texture", 0);
+        shader.setUniformf("u_halfSize", halfWidth, halfHeight);
+
+        int quads = 0;
+        for (int id = 0; id < store.size(); id++) {
+            float colour = coloured ? palette[(id * 0x9E3779B9) >>> 24] : white;
+            float x = store.positionX[id];
+            float y = store.positionY[id];
+            float vx = store.velocityX[id];
+            float vy = store.velocityY[id];
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                quads = addQuad(quads, x, y, vx, vy, colour);
+            }
+            if (zoomedOut) {
+                int imageCount = wrappingScheme.ghostImages(x, y, vx, vy, ghostImages);
+                for (int image = 0; image < imageCount; image++) {
+                    float imageX = ghostImages[image * 4];
+                    float imageY = ghostImages[image * 4 + 1];
+                    if (imageX >= minX && imageX <= maxX && imageY >= minY && imageY <= maxY) {
+                        quads = addQuad(quads, imageX, imageY, ghostImages[image * 4 + 2], ghostImages[image * 4 + 3], colour);
+                    }
+                }
+            }
+        }
+        flush(quads);
+        shader.end();
+    }
+
+    @Override
+    public void dispose() {
+        mesh.dispose();
+        shader.dispose();
+    }
+
+    // Returns the number of quads waiting to be drawn
+    private int addQuad(int quads, float x, float y, float vx, float vy, float colour) {
+        if (quads == MAX_BOIDS_PER_PASS) {
+            flush(quads);
+            quads = 0;
+        }
+        if ((quads + 1) * FLOATS_PER_BOID > vertices.length) {
+            float[] grown = new float[Math.min(vertices.length * 2, MAX_BOIDS_PER_PASS * FLOATS_PER_BOID)];
+            System.arraycopy(vertices, 0, grown, 0, quads * FLOATS_PER_BOID);
+            vertices = grown;
+        }
+        float speed = (float) Math.sqrt(vx * vx + vy * vy);
+        float directionX = speed == 0 ? 0 : vx / speed;
+        float directionY = speed == 0 ? 1 : vy / speed;
+        int v = quads * FLOATS_PER_BOID;
+        v = putVertex(v, x, y, directionX, directionY, 0, 0, colour);
+        v = putVertex(v, x, y, directionX, directionY, 1, 0, colour);
+        v = putVertex(v, x, y, directionX, directionY, 1, 1, colour);
+        putVertex(v, x, y, directionX, directionY, 0, 1, colour);
+        return quads + 1;
+    }
+
+    private int putVertex(int v, float x, float y, float directionX, float directionY, float u, float w, float colour) {
+        vertices[v] = x;
+        vertices[v + 1] = y;
+        vertices[v + 2] = directionX;
+        vertices[v + 3] = directionY;
+        vertices[v + 4] = u;
+        vertices[v + 5] = w;
+        vertices[v + 6] = colour;
+        return v + FLOATS_PER_VERTEX;
+    }
+
+    private void flush(int quads) {
+        if (quads == 0) return;
+        mesh.setVertices(vertices, 0, quads * FLOATS_PER_BOID);
+        mesh.render(shader, GL20.GL_TRIANGLES, 0, quads * 6);
+    }
+}
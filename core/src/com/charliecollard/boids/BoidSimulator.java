@@ -15,68 +15,145 @@ import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BoidSimulator extends ApplicationAdapter {
     public static final int PLOT_UPDATE_PERIOD = 1; // update the plot every n ticks
-    public static int simulationWidth = 880;
-    public static int simulationHeight = 880;
-    public static int updateCount = 0;
-    public static int boidCount = 200;
-    public static WrappingScheme wrappingScheme = new PeriodicWrappingScheme();
-    public static int updateMode = Boid.UPDATE_DETERMINISTIC;
+    public static final int NEIGHBOURS_BRUTE_FORCE = 301;
+    public static final int NEIGHBOURS_GRID = 302;
+    public static final int NEIGHBOURS_VERLET = 303;
+    public static final int NEIGHBOURS_AGGREGATE = 304;
+    // Metric boids heed every boid within vision range, topological ones their k nearest
+    public static final int NEIGHBOUR_MODE_METRIC = 601;
+    public static final int NEIGHBOUR_MODE_TOPOLOGICAL = 602;
+    // Boids checked against the exact search each tick in aggregate mode
+    private static final int APPROXIMATION_SAMPLES = 32;
+    // One boid in this many has its neighbour search and steering timed separately, when they're done together
+    static final int PHASE_TIMING_SAMPLE = 64;
+    public static final int RENDER_BOIDS = 401;
+    public static final int RENDER_DENSITY = 402;
+    public static boolean verifyNeighbours = false;
+    public static int renderMode = RENDER_BOIDS;
+    public static int tickRate = 50;
     public static String filepathToLoad;
+    public static String replayFile;
+    public static float replaySpeed = 1;
+    // host:port of a StreamServer to show instead of simulating
+    public static String streamAddress;
     public static boolean zoomOut = false;
     private static boolean debugCircles = false;
     private static boolean debugFluctuations = false;
     public static boolean debugCorrelations = false;
     private static boolean debugInfluences = false;
+    private static boolean debugMetrics = false;
     protected static boolean debugBoidColorsOn = true;
     public static boolean renderingOn = true;
-    protected static OrthographicCamera cam;
-    protected static OrthographicCamera zoomedOutCam;
-    private static int plotUpdateCounter = 0;
+    private OrthographicCamera cam;
+    private OrthographicCamera zoomedOutCam;
+    private int plotUpdateCounter = 0;
     private SpriteBatch sb;
+    private BoidRenderer boidRenderer;
+    private DensityRenderer densityRenderer;
+    private final SimulationConfig config;
+    private int updateCount = 0;
+    private BoidStore boidStore = new BoidStore();
     private List<Boid> boidList = new ArrayList<>();
-    private List<Vector2> velocityList = new ArrayList<>();
+    private SpatialGrid spatialGrid = new SpatialGrid();
+    private VerletLists verletLists = new VerletLists();
+    private CellAggregates cellAggregates = new CellAggregates();
+    private MortonOrder mortonOrder = new MortonOrder();
+    private TopologicalNeighbours topologicalNeighbours = new TopologicalNeighbours();
+    private final TopologicalNeighbours.Search topologicalSearch = new TopologicalNeighbours.Search();
+    private final TopologicalNeighbours.Search expectedTopological = new TopologicalNeighbours.Search();
+    private final float[] aggregateSums = new float[CellAggregates.SUMS];
+    private ParallelUpdater parallelUpdater;
+    private NeighbourLists neighbourLists = new NeighbourLists();
+    private NeighbourLists expectedNeighbours = new NeighbourLists();
     private Vector2 avgVelocity = new Vector2(0, 0);
     private float polarization = 0;
+    private long neighbourPairsEvaluated = 0;
+    private long tickPairsTested = 0;
+    private long tickPairsAccepted = 0;
+    private final TickMetrics tickMetrics = new TickMetrics();
+    // Changes from the input handlers, applied by the simulation at the start of its next tick
+    private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    private final FrameExchange frameExchange = new FrameExchange();
+    private SimulationThread simulationThread;
+    private final AtomicLong renderNanos = new AtomicLong();
+    // Only touched by the render thread, the boids as drawn, part way between the last two frames
+    private final BoidStore renderStore = new BoidStore();
+    private final Vector2 overlayStart = new Vector2();
+    private final Vector2 overlayEnd = new Vector2();
     private ArrayBlockingQueue<Float> fpsQueue = new ArrayBlockingQueue<>(100);
     private float lastFps = 0;
     BitmapFont font;
-    private static PlotFrame plotFrame;
+    private PlotFrame plotFrame;
+    private CorrelationEngine correlationEngine;
+    private TrajectoryRecorder trajectoryRecorder;
+    private TrajectoryReader trajectoryReader;
+    private float replayPosition = 0;
+    private StreamServer streamServer;
+    private StreamViewer streamViewer;
+    private CheckpointWriter checkpointWriter;
 
     public BoidSimulator() {
-        if (debugCorrelations) {
-            plotFrame = new PlotFrame("Plot frame");
+        this(new SimulationConfig());
+    }
+
+    /**
+     * Create a simulation with its own config, which it goes on to change when weights are adjusted or
+     * a save is loaded.
+     */
+    public BoidSimulator(SimulationConfig config) {
+        this.config = config;
+
+        // Create boids, load them from disk, resume a checkpoint, replay a recording or follow a stream if specified
+        if (streamAddress != null) {
+            startViewing(streamAddress);
+        } else if (replayFile != null) {
+            startReplay(replayFile);
+        } else if (CheckpointWriter.resume) {
+            resumeFromCheckpoint();
+        } else if (filepathToLoad == null) {
+            spawnBoids();
+        } else {
+            loadFromFile(filepathToLoad);
+        }
+
+        if (debugCorrelations && renderingOn) {
+            plotFrame = new PlotFrame("Plot frame", config.getWidth());
             plotFrame.setVisible(true);
+            correlationEngine = new CorrelationEngine(plotFrame);
         }
 
-        // Create boids or load them from disk if specified
-        if (filepathToLoad == null) {
-            for (int i = 0; i < boidCount; i++) {
-                boidList.add(new Boid(wrappingScheme));
+        if (TrajectoryRecorder.recordFile != null && trajectoryReader == null && streamViewer == null) {
+            try {
+                trajectoryRecorder = new TrajectoryRecorder(new File(TrajectoryRecorder.recordFile), TrajectoryRecorder.encoding,
+                        config.getWrappingScheme());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (StreamServer.streamPort >= 0 && trajectoryReader == null && streamViewer == null) {
+            try {
+                streamServer = new StreamServer(StreamServer.streamPort, config.getWrappingScheme());
+                System.out.println("Streaming to viewers on port " + streamServer.getPort());
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        } else {
-            loadFromFile(filepathToLoad);
         }
     }
 
 	@Override
 	public void create() {
-        for (Boid boid : boidList) {
-            boid.loadSprite();
-        }
 		sb = new SpriteBatch();
+        boidRenderer = new BoidRenderer();
+        densityRenderer = new DensityRenderer();
         font = new BitmapFont();
         font.setColor(Color.GREEN);
-        cam = new OrthographicCamera(simulationWidth, simulationHeight);
-        cam.position.set(simulationWidth / 2f, simulationHeight / 2f, 0);
-        cam.update();
-        zoomedOutCam = new OrthographicCamera(simulationWidth, simulationHeight);
-        zoomedOutCam.position.set(simulationWidth/2f, simulationHeight/2f, 0);
-        zoomedOutCam.viewportWidth = simulationWidth*3;
-        zoomedOutCam.viewportHeight = simulationHeight*3;
-        zoomedOutCam.update();
+        setUpCameras(config.getWidth(), config.getHeight());
 //        boidList.add(new Boid(new Vector2(440, 870), new Vector2(200, 0)));
 //        boidList.add(new Boid(new Vector2(870, 440), new Vector2(0, -200)));
 //        boidList.add(new Boid(new Vector2(440, 440), new Vector2(400, 400)));
@@ -103,55 +180,85 @@ public class BoidSimulator extends ApplicationAdapter {
                     return true;
                 }
 
+                if (keycode == Input.Keys.H) {
+                    // Cycle through boids, density and density with arrows
+                    if (renderMode == RENDER_BOIDS) {
+                        renderMode = RENDER_DENSITY;
+                        DensityRenderer.arrows = false;
+                    } else if (!DensityRenderer.arrows) {
+                        DensityRenderer.arrows = true;
+                    } else {
+                        renderMode = RENDER_BOIDS;
+                    }
+                    return true;
+                }
+                if (keycode == Input.Keys.M) {
+                    debugMetrics = !debugMetrics;
+                    return true;
+                }
+
                 if (keycode == Input.Keys.Y) {
                     zoomOut = !zoomOut;
                     return true;
                 }
 
                 if (keycode == Input.Keys.W) {
-                    writeBoids();
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeBoids();
+                        }
+                    });
                     return true;
                 }
 
                 if (keycode == Input.Keys.R) {
-                    loadFromFile();
+                    submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadFromFile();
+                        }
+                    });
+                    return true;
+                }
+
+                // Change replay speed
+                if (keycode == Input.Keys.RIGHT_BRACKET) {
+                    changeReplaySpeed(2);
+                    return true;
+                }
+                if (keycode == Input.Keys.LEFT_BRACKET) {
+                    changeReplaySpeed(0.5f);
                     return true;
                 }
 
                 // Change steer weights
                 if (keycode == Input.Keys.A) {
-                    Boid.separationWeight += 1;
+                    changeWeights(1, 0, 0);
                     return true;
                 }
                 if (keycode == Input.Keys.Z) {
-                    if (Boid.separationWeight > 0) Boid.separationWeight -= 1;
+                    changeWeights(-1, 0, 0);
                     return true;
                 }
                 if (keycode == Input.Keys.S) {
-                    Boid.cohesionWeight += 1;
+                    changeWeights(0, 1, 0);
                     return true;
                 }
                 if (keycode == Input.Keys.X) {
-                    if (Boid.cohesionWeight > 0) Boid.cohesionWeight -= 1;
+                    changeWeights(0, -1, 0);
                     return true;
                 }
                 if (keycode == Input.Keys.D) {
-                    Boid.alignmentWeight += 1;
+                    changeWeights(0, 0, 1);
                     return true;
                 }
                 if (keycode == Input.Keys.C) {
-                    if (Boid.alignmentWeight > 0) Boid.alignmentWeight -= 1;
+                    changeWeights(0, 0, -1);
                     return true;
                 }
 
                 if (keycode == Input.Keys.P) {
-                    for (Boid boid : boidList) {
-                        if (debugBoidColorsOn) {
-                           boid.boidSprite.setColor(1f, 1f, 1f, 1f);
-                        } else {
-                            boid.boidSprite.setColor(boid.spriteColor);
-                        }
-                    }
                     debugBoidColorsOn = !debugBoidColorsOn;
                     return true;
                 }
@@ -171,13 +278,13 @@ public class BoidSimulator extends ApplicationAdapter {
             @Override
             public boolean touchDown(int screenX, int screenY, int pointer, int button) {
                 if (button == Input.Buttons.LEFT) {
-                    Vector2 clickPosition = new Vector2(screenX, simulationHeight - screenY);
+                    Vector2 clickPosition = new Vector2(screenX, cam.viewportHeight - screenY);
                     if (zoomOut) {
                         Vector3 projection = zoomedOutCam.unproject(new Vector3(clickPosition, 0));
                         clickPosition.x = projection.x;
-                        clickPosition.y = simulationHeight - projection.y;
+                        clickPosition.y = cam.viewportHeight - projection.y;
                     }
-                    boidList.add(new Boid(clickPosition, wrappingScheme));
+                    spawnBoid(clickPosition);
                     return true;
                 }
                 return false;
@@ -190,13 +297,13 @@ public class BoidSimulator extends ApplicationAdapter {
 
             @Override
             public boolean touchDragged(int screenX, int screenY, int pointer) {
-                Vector2 clickPosition = new Vector2(screenX, simulationHeight - screenY);
+                Vector2 clickPosition = new Vector2(screenX, cam.viewportHeight - screenY);
                 if (zoomOut) {
                     Vector3 projection = zoomedOutCam.unproject(new Vector3(clickPosition, 0));
                     clickPosition.x = projection.x;
-                    clickPosition.y = simulationHeight - projection.y;
+                    clickPosition.y = cam.viewportHeight - projection.y;
                 }
-                boidList.add(new Boid(clickPosition, wrappingScheme));
+                spawnBoid(clickPosition);
                 return true;
             }
 
@@ -210,67 +317,507 @@ public class BoidSimulator extends ApplicationAdapter {
                 return false;
             }
         });
+
+        publishFrame();
+        simulationThread = new SimulationThread(this);
+        simulationThread.start();
 	}
 
+    /**
+     * Queue a change to the simulation, to be made at the start of its next tick.
+     */
+    public void submit(Runnable command) {
+        commands.add(command);
+    }
+
+    private void spawnBoid(final Vector2 position) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                boidList.add(new Boid(position, boidStore, config.getWrappingScheme()));
+            }
+        });
+    }
+
+    // Weights never go below zero
+    private void changeWeights(final int separationChange, final int cohesionChange, final int alignmentChange) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                config.separationWeight = Math.max(0, config.separationWeight + separationChange);
+                config.cohesionWeight = Math.max(0, config.cohesionWeight + cohesionChange);
+                config.alignmentWeight = Math.max(0, config.alignmentWeight + alignmentChange);
+            }
+        });
+    }
+
+    private void changeReplaySpeed(final float factor) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                replaySpeed *= factor;
+            }
+        });
+    }
+
     public void update() {
-        Map<Boid, List<Vector2>> neighbourPositionMap = new HashMap<>();
-        Map<Boid, List<Vector2>> neighbourVelocityMap = new HashMap<>();
-        List<Float> distances = new ArrayList<>();
+        Runnable command;
+        while ((command = commands.poll()) != null) {
+            command.run();
+        }
+        float deltaTime = renderingOn ? 1f / tickRate : 0;
+        long pairsEvaluatedBefore = neighbourPairsEvaluated;
+        tickPairsAccepted = 0;
+        if (streamViewer != null) {
+            if (streamViewer.readLatest(boidStore)) {
+                matchBoidList();
+            }
+        } else if (trajectoryReader != null) {
+            advanceReplay();
+        } else {
+            if (config.resortEvery > 0 && updateCount % config.resortEvery == 0) {
+                long start = System.nanoTime();
+                if (mortonOrder.sort(boidStore, config.visionRange)) {
+                    // The lists refer to boids by slot
+                    verletLists.reorder(mortonOrder.getOrder(), boidStore.size());
+                }
+                tickMetrics.add(TickMetrics.PHASE_NEIGHBOURS, System.nanoTime() - start);
+            }
+            boolean topological = config.neighbourMode == NEIGHBOUR_MODE_TOPOLOGICAL;
+            if (topological) {
+                long start = System.nanoTime();
+                topologicalNeighbours.build(boidStore, config.getWrappingScheme(), config.topologicalCount);
+                tickMetrics.add(TickMetrics.PHASE_NEIGHBOURS, System.nanoTime() - start);
+            } else if (config.neighbourSearch == NEIGHBOURS_GRID) {
+                long start = System.nanoTime();
+                spatialGrid.build(boidStore, config.getWrappingScheme(), config.visionRange);
+                tickMetrics.add(TickMetrics.PHASE_NEIGHBOURS, System.nanoTime() - start);
+            } else if (config.neighbourSearch == NEIGHBOURS_VERLET) {
+                long start = System.nanoTime();
+                float skin = VerletLists.skinFor(config, deltaTime);
+                if (verletLists.needsRebuild(boidStore, config.getWrappingScheme(), config.visionRange, skin)) {
+                    spatialGrid.build(boidStore, config.getWrappingScheme(), config.visionRange + skin);
+                    neighbourPairsEvaluated += verletLists.build(boidStore, spatialGrid, config.getWrappingScheme(), config.visionRange, skin);
+                    tickMetrics.markListRebuild();
+                }
+                tickMetrics.add(TickMetrics.PHASE_NEIGHBOURS, System.nanoTime() - start);
+            } else if (config.neighbourSearch == NEIGHBOURS_AGGREGATE) {
+                long start = System.nanoTime();
+                cellAggregates.build(boidStore, config.getWrappingScheme(), config.visionRange);
+                tickMetrics.setApproximationError(cellAggregates.measureError(config, boidStore, APPROXIMATION_SAMPLES));
+                tickMetrics.add(TickMetrics.PHASE_NEIGHBOURS, System.nanoTime() - start);
+            }
+            if (config.threadCount > 1) {
+                if (parallelUpdater == null) {
+                    parallelUpdater = new ParallelUpdater(config.threadCount);
+                }
+                neighbourPairsEvaluated += parallelUpdater.update(boidStore,
+                        !topological && config.neighbourSearch == NEIGHBOURS_GRID ? spatialGrid : null,
+                        !topological && config.neighbourSearch == NEIGHBOURS_VERLET ? verletLists : null,
+                        !topological && config.neighbourSearch == NEIGHBOURS_AGGREGATE ? cellAggregates : null,
+                        topological ? topologicalNeighbours : null, config, deltaTime);
+                tickPairsAccepted = parallelUpdater.getLastPairsAccepted();
+                tickMetrics.add(TickMetrics.PHASE_NEIGHBOURS, parallelUpdater.getLastSearchNanos());
+                tickMetrics.add(TickMetrics.PHASE_STEERING, parallelUpdater.getLastSteerNanos());
+                tickMetrics.add(TickMetrics.PHASE_WRAPPING, parallelUpdater.getLastWrapNanos());
+            } else if (!topological && config.neighbourSearch == NEIGHBOURS_AGGREGATE) {
+                updateWithAggregates(deltaTime);
+            } else {
+                updateSequentially(deltaTime);
+            }
+            if (trajectoryRecorder != null) {
+                trajectoryRecorder.record(boidStore, updateCount);
+            }
+            if (streamServer != null) {
+                streamServer.publish(boidStore, updateCount);
+            }
+            if (CheckpointWriter.checkpointEvery > 0 && (updateCount + 1) % CheckpointWriter.checkpointEvery == 0) {
+                getCheckpointWriter().checkpoint(boidStore, config, updateCount + 1);
+            }
+        }
+
+        // Recalculate the average velocity and polarization for the whole system
+        long orderStart = System.nanoTime();
+        float sumX = 0, sumY = 0, sumNormalizedX = 0, sumNormalizedY = 0;
+        int count = boidStore.size();
+        for (int i = 0; i < count; i++) {
+            float vx = boidStore.velocityX[i];
+            float vy = boidStore.velocityY[i];
+            sumX += vx;
+            sumY += vy;
+            float speed = (float) Math.sqrt(vx * vx + vy * vy);
+            if (speed != 0) {
+                sumNormalizedX += vx / speed;
+                sumNormalizedY += vy / speed;
+            }
+        }
+        avgVelocity = new Vector2(0, 0);
+        if (count > 0) {
+            avgVelocity.set(sumX, sumY).scl(1f / count);
+            polarization = new Vector2(sumNormalizedX, sumNormalizedY).scl(1f / count).len();
+        }
+        long plotStart = System.nanoTime();
+        tickMetrics.add(TickMetrics.PHASE_ORDER_PARAMETER, plotStart - orderStart);
+
+        // Update the plot
+        if (debugCorrelations && plotFrame != null) {
+            if (plotUpdateCounter == 0) {
+                correlationEngine.submit(boidStore, config.getWrappingScheme(), avgVelocity);
+            }
+            plotUpdateCounter += 1;
+            plotUpdateCounter %= PLOT_UPDATE_PERIOD;
+        }
+        tickMetrics.add(TickMetrics.PHASE_PLOT, System.nanoTime() - plotStart);
+        updateCount += 1;
+        tickPairsTested = neighbourPairsEvaluated - pairsEvaluatedBefore;
+        // Frames are drawn on another thread, so the render phase is whatever drawing happened since the last tick
+        tickMetrics.add(TickMetrics.PHASE_RENDER, renderNanos.getAndSet(0));
+        tickMetrics.endTick(tickPairsTested, tickPairsAccepted, boidStore.size());
+    }
+
+    /**
+     * Hand the state at the end of the last tick to the renderer. Called from the simulation thread.
+     */
+    void publishFrame() {
+        SimulationFrame frame = frameExchange.getBackFrame();
+        frame.boids.copyFrom(boidStore, debugInfluences);
+        frame.tick = updateCount;
+        frame.width = config.getWidth();
+        frame.height = config.getHeight();
+        frame.wrappingScheme = config.getWrappingScheme();
+        frame.visionRange = config.visionRange;
+        frame.separationWeight = config.separationWeight;
+        frame.cohesionWeight = config.cohesionWeight;
+        frame.alignmentWeight = config.alignmentWeight;
+        frame.averageVelocityX = avgVelocity.x;
+        frame.averageVelocityY = avgVelocity.y;
+        frame.polarization = polarization;
+        frame.pairsTested = tickPairsTested;
+        frame.pairsAccepted = tickPairsAccepted;
+        frame.publishedNanos = System.nanoTime();
+        frameExchange.publish();
+    }
+
+    // Fill the render store with the boids part way between the previous frame and the current one
+    private void interpolate(SimulationFrame previous, SimulationFrame current) {
+        BoidStore from = previous.boids;
+        BoidStore to = current.boids;
+        renderStore.copyFrom(to, debugInfluences);
+        if (previous.tick < 0) return;
+        float tickNanos = 1e9f / tickRate;
+        // Drawn one tick behind, so that there's always a frame to head towards
+        float alpha = Math.min(1, Math.max(0, (System.nanoTime() - current.publishedNanos) / tickNanos));
+        // Anything that jumped this far has been wrapped, and is drawn where it ended up
+        float maxStepX = current.width / 2f;
+        float maxStepY = current.height / 2f;
+        int count = Math.min(from.size(), to.size());
+        for (int i = 0; i < count; i++) {
+            float dx = to.positionX[i] - from.positionX[i];
+            float dy = to.positionY[i] - from.positionY[i];
+            if (Math.abs(dx) < maxStepX && Math.abs(dy) < maxStepY) {
+                renderStore.positionX[i] = from.positionX[i] + alpha * dx;
+                renderStore.positionY[i] = from.positionY[i] + alpha * dy;
+                renderStore.velocityX[i] = from.velocityX[i] + alpha * (to.velocityX[i] - from.velocityX[i]);
+                renderStore.velocityY[i] = from.velocityY[i] + alpha * (to.velocityY[i] - from.velocityY[i]);
+            }
+        }
+    }
+
+    // Step through the recording by replaySpeed frames, looping at either end
+    private void advanceReplay() {
+        int frameCount = trajectoryReader.getFrameCount();
+        if (frameCount == 0) return;
+        replayPosition = (replayPosition + replaySpeed) % frameCount;
+        if (replayPosition < 0) replayPosition += frameCount;
+        showReplayFrame(Math.min((int) replayPosition, frameCount - 1));
+    }
+
+    private void showReplayFrame(int frame) {
+        try {
+            trajectoryReader.readFrame(frame, boidStore);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        matchBoidList();
+    }
+
+    // Give the boids just read into the store one Boid each
+    private void matchBoidList() {
+        while (boidList.size() > boidStore.size()) {
+            boidList.remove(boidList.size() - 1);
+        }
+        while (boidList.size() < boidStore.size()) {
+            boidList.add(new Boid(boidStore, boidList.size(), config.getWrappingScheme()));
+        }
+    }
+
+    private void startReplay(String filepath) {
+        try {
+            trajectoryReader = new TrajectoryReader(new File(filepath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        config.setWrappingScheme(trajectoryReader.wrappingScheme);
+        config.setSize(trajectoryReader.width, trajectoryReader.height);
+        if (trajectoryReader.getFrameCount() > 0) {
+            showReplayFrame(0);
+        }
+    }
+
+    private void spawnBoids() {
+        int first = BoidSpawner.spawn(boidStore, config.boidCount, config.getWrappingScheme(),
+                config.spawnDistribution, config.seed);
+        for (int id = first; id < boidStore.size(); id++) {
+            boidList.add(new Boid(boidStore, id, config.getWrappingScheme()));
+        }
+    }
+
+    // Carry on from the newest checkpoint, or start afresh if there isn't one
+    private void resumeFromCheckpoint() {
+        int ticks = CheckpointWriter.resume(new File(CheckpointWriter.directory), boidStore, config);
+        if (ticks < 0) {
+            System.out.println("No checkpoint to resume from in " + CheckpointWriter.directory + ", starting afresh");
+            spawnBoids();
+            return;
+        }
+        updateCount = ticks;
+        for (int id = 0; id < boidStore.size(); id++) {
+            boidList.add(new Boid(boidStore, id, config.getWrappingScheme()));
+        }
+    }
+
+    private CheckpointWriter getCheckpointWriter() {
+        if (checkpointWriter == null) {
+            checkpointWriter = new CheckpointWriter();
+        }
+        return checkpointWriter;
+    }
+
+    private void startViewing(String address) {
+        try {
+            streamViewer = new StreamViewer(address);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        config.setWrappingScheme(streamViewer.wrappingScheme);
+        config.setSize(streamViewer.width, streamViewer.height);
+    }
+
+    /**
+     * Finish any recording or save in progress, disconnect stream viewers and flush the metrics CSV.
+     * Called when the application closes.
+     */
+    public void closeOutputs() {
+        if (trajectoryRecorder != null) {
+            trajectoryRecorder.close();
+            trajectoryRecorder = null;
+        }
+        if (streamServer != null) {
+            streamServer.close();
+            streamServer = null;
+        }
+        if (checkpointWriter != null) {
+            checkpointWriter.close();
+            checkpointWriter = null;
+        }
+        tickMetrics.close();
+    }
+
+    /**
+     * Close the outputs and stop the worker threads, for a run with no window, which dispose() is never
+     * called on. Don't update the simulation again afterwards.
+     */
+    public void shutdown() {
+        if (parallelUpdater != null) {
+            parallelUpdater.shutdown();
+            parallelUpdater = null;
+        }
+        closeOutputs();
+        if (correlationEngine != null) {
+            correlationEngine.shutdown();
+        }
+    }
+
+    public SimulationConfig getConfig() {
+        return config;
+    }
+
+    public TickMetrics getTickMetrics() {
+        return tickMetrics;
+    }
+
+    public int getBoidCount() {
+        return boidStore.size();
+    }
+
+    public float getPolarization() {
+        return polarization;
+    }
+
+    // Total pairs of boids tested for being neighbours since the simulation started
+    public long getNeighbourPairsEvaluated() {
+        return neighbourPairsEvaluated;
+    }
+
+    private void updateSequentially(float deltaTime) {
+        long start = System.nanoTime();
         // For each boid, discover all close boids without updating them
         // This way we update all boids in synchronisation
-        for (Boid boid : boidList) {
-            List<Vector2> neighbourPositions = new ArrayList<>();
-            List<Vector2> neighbourVelocities = new ArrayList<>();
-            for (Boid otherBoid : boidList) {
-                if (!boid.equals(otherBoid)) {
-                    Vector2 relativeDisplacement = boid.relativeDisplacement(otherBoid);
-                    Vector2 relativeVelocity = boid.relativeVelocity(otherBoid);
-                    float distance = relativeDisplacement.len();
-                    if (distance < Boid.visionRange) {
-                        // We give the boid its relative displacement to the neighbouring boids
-                        // This allows calculations to be done regardless of the screen wrapping
-                        neighbourPositions.add(relativeDisplacement);
-                        neighbourVelocities.add(relativeVelocity);
+        neighbourLists.clear(boidStore.size());
+        boolean topological = config.neighbourMode == NEIGHBOUR_MODE_TOPOLOGICAL;
+        for (int i = 0; i < boidStore.size(); i++) {
+            if (topological) {
+                neighbourPairsEvaluated += topologicalNeighbours.find(i, topologicalSearch);
+                float[] found = topologicalSearch.getNeighbours();
+                for (int n = 0; n < 4 * topologicalSearch.getCount(); n += 4) {
+                    int base = neighbourLists.reserve();
+                    System.arraycopy(found, n, neighbourLists.getNeighbours(), base, 4);
+                    neighbourLists.accept();
+                }
+            } else if (config.neighbourSearch == NEIGHBOURS_GRID) {
+                int candidateCount = spatialGrid.findCandidates(i, boidStore.positionX[i], boidStore.positionY[i], config.visionRange);
+                int[] candidates = spatialGrid.getCandidates();
+                neighbourPairsEvaluated += candidateCount;
+                for (int c = 0; c < candidateCount; c++) {
+                    addIfNeighbour(i, candidates[c], neighbourLists);
+                }
+            } else if (config.neighbourSearch == NEIGHBOURS_VERLET) {
+                int[] candidates = verletLists.getCandidates();
+                int end = verletLists.getEnd(i);
+                neighbourPairsEvaluated += end - verletLists.getStart(i);
+                for (int c = verletLists.getStart(i); c < end; c++) {
+                    addIfNeighbour(i, candidates[c], neighbourLists);
+                }
+            } else {
+                neighbourPairsEvaluated += boidStore.size() - 1;
+                for (int j = 0; j < boidStore.size(); j++) {
+                    if (i != j) {
+                        addIfNeighbour(i, j, neighbourLists);
                     }
-                    distances.add(distance);
                 }
             }
-            neighbourPositionMap.put(boid, neighbourPositions);
-            neighbourVelocityMap.put(boid, neighbourVelocities);
+            neighbourLists.endBoid();
+            if (verifyNeighbours && topological) {
+                topologicalNeighbours.findExhaustively(i, expectedTopological);
+                verifyNeighbours(i, expectedTopological.getNeighbours(), expectedTopological.getCount());
+            } else if (verifyNeighbours && config.neighbourSearch != NEIGHBOURS_BRUTE_FORCE) {
+                verifyAgainstBruteForce(i);
+            }
         }
+        tickPairsAccepted += neighbourLists.getTotalCount();
+
+        long searched = System.nanoTime();
+        tickMetrics.add(TickMetrics.PHASE_NEIGHBOURS, searched - start);
 
-        velocityList.clear();
         // Update each boid by passing it the nearby positions of other boids
+        float[] neighbours = neighbourLists.getNeighbours();
+        for (int i = 0; i < boidStore.size(); i++) {
+            boidList.get(i).update(config, deltaTime, neighbours, neighbourLists.getOffset(i), neighbourLists.getCount(i));
+        }
+        long steered = System.nanoTime();
+        tickMetrics.add(TickMetrics.PHASE_STEERING, steered - searched);
+        // Each boid's update only uses its own state and neighbour lists, so wrapping can wait until all are done
         for (Boid boid : boidList) {
-            boid.update(renderingOn ? Gdx.graphics.getDeltaTime() : 0, neighbourPositionMap.get(boid), neighbourVelocityMap.get(boid));
             boid.performWrapping();
-            velocityList.add(boid.getVelocity());
         }
+        tickMetrics.add(TickMetrics.PHASE_WRAPPING, System.nanoTime() - steered);
+    }
 
-        // Recalculate the average velocity and polarization for the whole system
-        avgVelocity = new Vector2(0, 0);
-        Vector2 sumOfNormalized = new Vector2(0, 0);
-        for (Vector2 boidVelocity : velocityList) {
-            avgVelocity.add(boidVelocity);
-            sumOfNormalized.add(boidVelocity.nor());
+    // Steer each boid from cell sums into the next buffer, as there are no neighbour lists to keep
+    private void updateWithAggregates(float deltaTime) {
+        boidStore.ensureNextBuffer();
+        // Only a sample of boids is timed in detail, and the loop's time is split between the phases as theirs is
+        long sampledSearchNanos = 0;
+        long sampledSteerNanos = 0;
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < boidStore.size(); i++) {
+            if (i % PHASE_TIMING_SAMPLE != 0) {
+                neighbourPairsEvaluated += cellAggregates.sums(i, boidStore.positionX[i], boidStore.positionY[i], aggregateSums, 0);
+                Boid.steer(config, boidStore, i, deltaTime, aggregateSums, 0);
+            } else {
+                long start = System.nanoTime();
+                neighbourPairsEvaluated += cellAggregates.sums(i, boidStore.positionX[i], boidStore.positionY[i], aggregateSums, 0);
+                long searched = System.nanoTime();
+                Boid.steer(config, boidStore, i, deltaTime, aggregateSums, 0);
+                sampledSteerNanos += System.nanoTime() - searched;
+                sampledSearchNanos += searched - start;
+            }
+            tickPairsAccepted += (int) aggregateSums[0];
         }
-        if (velocityList.size() > 0) {
-            avgVelocity.scl(1f/velocityList.size());
-            sumOfNormalized.scl(1f/velocityList.size());
-            polarization = sumOfNormalized.len();
+        long loopNanos = System.nanoTime() - loopStart;
+        boidStore.swapBuffers();
+        long sampled = sampledSearchNanos + sampledSteerNanos;
+        long searchNanos = sampled == 0 ? 0 : loopNanos * sampledSearchNanos / sampled;
+        tickMetrics.add(TickMetrics.PHASE_NEIGHBOURS, searchNanos);
+        tickMetrics.add(TickMetrics.PHASE_STEERING, loopNanos - searchNanos);
+        long wrapStart = System.nanoTime();
+        for (Boid boid : boidList) {
+            boid.performWrapping();
         }
+        tickMetrics.add(TickMetrics.PHASE_WRAPPING, System.nanoTime() - wrapStart);
+    }
 
-        // Update the plot
-        if (debugCorrelations && plotFrame != null) {
-            if (plotUpdateCounter == 0) {
-                updatePlot(boidList, avgVelocity);
+    private void addIfNeighbour(int boid, int otherBoid, NeighbourLists lists) {
+        WrappingScheme wrappingScheme = config.getWrappingScheme();
+        int base = lists.reserve();
+        float[] neighbours = lists.getNeighbours();
+        int image = wrappingScheme.relativeDisplacement(boidStore.positionX[boid], boidStore.positionY[boid],
+                boidStore.positionX[otherBoid], boidStore.positionY[otherBoid], neighbours, base);
+        float dx = neighbours[base];
+        float dy = neighbours[base + 1];
+        float distance = (float) Math.sqrt(dx * dx + dy * dy);
+        if (distance < config.visionRange) {
+            // We give the boid its relative displacement to the neighbouring boids
+            // This allows calculations to be done regardless of the screen wrapping
+            wrappingScheme.relativeVelocity(image, boidStore.velocityX[otherBoid], boidStore.velocityY[otherBoid], neighbours, base + 2);
+            lists.accept();
+        }
+    }
+
+    // Check the grid or Verlet list search found exactly what comparing against every other boid finds, in the same order
+    private void verifyAgainstBruteForce(int boid) {
+        expectedNeighbours.clear(1);
+        for (int otherBoid = 0; otherBoid < boidStore.size(); otherBoid++) {
+            if (boid != otherBoid) {
+                addIfNeighbour(boid, otherBoid, expectedNeighbours);
             }
-            plotUpdateCounter += 1;
-            plotUpdateCounter %= PLOT_UPDATE_PERIOD;
         }
-        updateCount += 1;
+        expectedNeighbours.endBoid();
+        verifyNeighbours(boid, expectedNeighbours.getNeighbours(), expectedNeighbours.getCount(0));
+    }
+
+    private void verifyNeighbours(int boid, float[] expected, int expectedCount) {
+        float[] found = neighbourLists.getNeighbours();
+        int count = neighbourLists.getCount(boid);
+        int offset = neighbourLists.getOffset(boid);
+        boolean same = count == expectedCount;
+        for (int n = 0; same && n < 4 * count; n++) {
+            same = expected[n] == found[offset + n];
+        }
+        if (!same) {
+            throw new IllegalStateException("Neighbour search disagrees with brute force for boid at "
+                    + boidList.get(boid).getPosition() + ": expected " + expectedCount
+                    + " neighbours but found " + count);
+        }
+    }
+
+	@Override
+	public void render() {
+        long renderStart = System.nanoTime();
+        frameExchange.acquire();
+        SimulationFrame frame = frameExchange.getCurrent();
+        if (frame.width != cam.viewportWidth || frame.height != cam.viewportHeight) {
+            setUpCameras(frame.width, frame.height);
+        }
+        int simulationWidth = frame.width;
+        int simulationHeight = frame.height;
+        interpolate(frameExchange.getPrevious(), frame);
+        float averageVelocityX = frame.averageVelocityX;
+        float averageVelocityY = frame.averageVelocityY;
 
-        // Recalculate fps
         lastFps = 1f/Gdx.graphics.getDeltaTime();
         if (!fpsQueue.offer(lastFps)) {
             fpsQueue.poll();
@@ -281,11 +828,6 @@ public class BoidSimulator extends ApplicationAdapter {
             lastFps += f;
         }
         lastFps /= fpsQueue.size();
-    }
-
-	@Override
-	public void render() {
-        update();
 
 		Gdx.gl.glClearColor(0, 0, 0, 1);
 		Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT);
@@ -299,50 +841,76 @@ public class BoidSimulator extends ApplicationAdapter {
 
         if (debugCircles) {
             DebugShapeRenderer.startBatch(Color.GREEN, 1, zoomOut ? zoomedOutCam.combined : cam.combined);
-            for (Boid boid : boidList) {
-                DebugShapeRenderer.batchCircle(boid.getPosition(), Boid.visionRange);
+            for (int i = 0; i < renderStore.size(); i++) {
+                overlayStart.set(renderStore.positionX[i], renderStore.positionY[i]);
+                DebugShapeRenderer.batchCircle(overlayStart, frame.visionRange);
             }
             DebugShapeRenderer.endBatch();
         }
 
         if (debugFluctuations) {
             DebugShapeRenderer.startBatch(Color.PINK, 1, zoomOut ? zoomedOutCam.combined : cam.combined);
-            for (Boid boid : boidList) {
-                Vector2 boidFluctuation = boid.getVelocity().sub(avgVelocity);
-                DebugShapeRenderer.batchLine(boid.getPosition(), boid.getPosition().add(boidFluctuation));
+            for (int i = 0; i < renderStore.size(); i++) {
+                overlayStart.set(renderStore.positionX[i], renderStore.positionY[i]);
+                overlayEnd.set(overlayStart).add(renderStore.velocityX[i] - averageVelocityX, renderStore.velocityY[i] - averageVelocityY);
+                DebugShapeRenderer.batchLine(overlayStart, overlayEnd);
             }
             DebugShapeRenderer.endBatch();
         }
 
         if (debugInfluences) {
             DebugShapeRenderer.startBatch(Color.YELLOW, 1, zoomOut ? zoomedOutCam.combined : cam.combined);
-            for (Boid boid : boidList) {
-                DebugShapeRenderer.batchLine(boid.getPosition(), boid.getPosition().add(boid.lastSeparation.cpy().scl(10)), Color.YELLOW);
-                DebugShapeRenderer.batchLine(boid.getPosition(), boid.getPosition().add(boid.lastCohesion.cpy().scl(20)), Color.MAGENTA);
-                DebugShapeRenderer.batchLine(boid.getPosition(), boid.getPosition().add(boid.lastAlignment.cpy().scl(20)), Color.CYAN);
+            for (int i = 0; i < renderStore.size(); i++) {
+                overlayStart.set(renderStore.positionX[i], renderStore.positionY[i]);
+                overlayEnd.set(overlayStart).add(renderStore.separationX[i] * 10, renderStore.separationY[i] * 10);
+                DebugShapeRenderer.batchLine(overlayStart, overlayEnd, Color.YELLOW);
+                overlayEnd.set(overlayStart).add(renderStore.cohesionX[i] * 20, renderStore.cohesionY[i] * 20);
+                DebugShapeRenderer.batchLine(overlayStart, overlayEnd, Color.MAGENTA);
+                overlayEnd.set(overlayStart).add(renderStore.alignmentX[i] * 20, renderStore.alignmentY[i] * 20);
+                DebugShapeRenderer.batchLine(overlayStart, overlayEnd, Color.CYAN);
             }
             DebugShapeRenderer.endBatch();
         }
 
-        sb.setProjectionMatrix(zoomOut ? zoomedOutCam.combined : cam.combined);
-        sb.begin();
-        List<Disposable> trashcan = new ArrayList<>();
-
-        for (Boid boid : boidList) {
-            boid.render(sb);
+        OrthographicCamera boidCam = zoomOut ? zoomedOutCam : cam;
+        float viewHalfWidth = boidCam.viewportWidth * boidCam.zoom / 2;
+        float viewHalfHeight = boidCam.viewportHeight * boidCam.zoom / 2;
+        if (renderMode == RENDER_DENSITY) {
+            densityRenderer.render(renderStore, simulationWidth, simulationHeight, sb, boidCam.combined);
+        } else {
+            boidRenderer.render(renderStore, frame.wrappingScheme, boidCam.combined, zoomOut, debugBoidColorsOn,
+                    boidCam.position.x - viewHalfWidth, boidCam.position.y - viewHalfHeight,
+                    boidCam.position.x + viewHalfWidth, boidCam.position.y + viewHalfHeight);
         }
 
-
         sb.setProjectionMatrix(cam.combined);
-        font.draw(sb, boidList.size() + " boids", 10, simulationHeight - 20);
+        sb.begin();
+        List<Disposable> trashcan = new ArrayList<>();
+        font.draw(sb, renderStore.size() + " boids", 10, simulationHeight - 20);
         font.draw(sb, String.format("%.2f fps", lastFps), 10, simulationHeight - 40);
-        font.draw(sb, String.format("Polarization: %.3f", polarization), 10, 100);
+        font.draw(sb, String.format("Polarization: %.3f", frame.polarization), 10, 100);
         font.draw(sb, "Separation:", 10, 60);
-        font.draw(sb, String.format("%.3f", Boid.separationWeight * Boid.WEIGHT_SCALING_FACTOR), 90, 60);
+        font.draw(sb, String.format("%.3f", frame.separationWeight * Boid.WEIGHT_SCALING_FACTOR), 90, 60);
         font.draw(sb, "Cohesion:", 10, 40);
-        font.draw(sb, String.format("%.3f", Boid.cohesionWeight * Boid.WEIGHT_SCALING_FACTOR), 90, 40);
+        font.draw(sb, String.format("%.3f", frame.cohesionWeight * Boid.WEIGHT_SCALING_FACTOR), 90, 40);
         font.draw(sb, "Alignment:", 10, 20);
-        font.draw(sb, String.format("%.3f", Boid.alignmentWeight * Boid.WEIGHT_SCALING_FACTOR), 90, 20);
+        font.draw(sb, String.format("%.3f", frame.alignmentWeight * Boid.WEIGHT_SCALING_FACTOR), 90, 20);
+        if (debugMetrics) {
+            float y = simulationHeight - 70;
+            font.draw(sb, "Phase (ms)", 10, y);
+            font.draw(sb, "p50", 130, y);
+            font.draw(sb, "p99", 190, y);
+            for (int phase = 0; phase <= TickMetrics.PHASE_COUNT; phase++) {
+                y -= 20;
+                font.draw(sb, phase < TickMetrics.PHASE_COUNT ? TickMetrics.PHASE_NAMES[phase] : "tick", 10, y);
+                font.draw(sb, String.format("%.2f", tickMetrics.percentileMillis(phase, 50)), 130, y);
+                font.draw(sb, String.format("%.2f", tickMetrics.percentileMillis(phase, 99)), 190, y);
+            }
+            y -= 20;
+            font.draw(sb, String.format("Pairs tested %d, accepted %d", frame.pairsTested, frame.pairsAccepted), 10, y);
+            y -= 20;
+            font.draw(sb, String.format("Mean neighbours: %.2f", tickMetrics.getMeanNeighbourCount()), 10, y);
+        }
 
 		sb.end();
 
@@ -351,53 +919,76 @@ public class BoidSimulator extends ApplicationAdapter {
             trash.dispose();
         }
         trashcan.clear();
+        renderNanos.addAndGet(System.nanoTime() - renderStart);
 	}
 
 	@Override
 	public void dispose() {
+        // Let the tick in progress finish before anything it uses goes away
+        simulationThread.shutdown();
 		sb.dispose();
+        boidRenderer.dispose();
+        densityRenderer.dispose();
+        densityRenderer.shutdown();
 		TextureController.getInstance().disposeAllTextures();
-	}
-
-    private static void updatePlot(List<Boid> boidList, Vector2 avgVelocity) {
-	    // Only update the plot if the previous thread isn't still running
-	    if (UpdatePlotThread.mThread == null || !UpdatePlotThread.mThread.isAlive()) {
-            List<Vector2> positions = new ArrayList<>();
-            List<Vector2> velocities = new ArrayList<>();
-            for (Boid boid : boidList) {
-                positions.add(boid.getPosition());
-                velocities.add(boid.getVelocity());
+        shutdown();
+        if (trajectoryReader != null) {
+            try {
+                trajectoryReader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (streamViewer != null) {
+            try {
+                streamViewer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            UpdatePlotThread updatePlotThread = new UpdatePlotThread(plotFrame, positions, velocities, avgVelocity);
-            updatePlotThread.start();
         }
+	}
+
+    private void setUpCameras(int simulationWidth, int simulationHeight) {
+        cam = new OrthographicCamera(simulationWidth, simulationHeight);
+        cam.position.set(simulationWidth / 2f, simulationHeight / 2f, 0);
+        cam.update();
+        zoomedOutCam = new OrthographicCamera(simulationWidth, simulationHeight);
+        zoomedOutCam.position.set(simulationWidth/2f, simulationHeight/2f, 0);
+        zoomedOutCam.viewportWidth = simulationWidth*3;
+        zoomedOutCam.viewportHeight = simulationHeight*3;
+        zoomedOutCam.update();
     }
 
     private void writeBoids() {
         Date now = new Date();
         SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_hh-mm-ss");
-        String filePath = "./simulation-saves/" + dateFormat.format(now) + ".ser";
-	    try {
-	        File savesDir = new File("./simulation-saves");
-            if (!savesDir.exists()) {
-	            savesDir.mkdir();
-            }
-            FileOutputStream fileOut = new FileOutputStream(filePath);
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(boidList);
-            out.close();
-            fileOut.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        String filePath = "./simulation-saves/" + dateFormat.format(now) + SnapshotFile.EXTENSION;
+        // Written in the background, so saving doesn't hold up the tick
+        if (!getCheckpointWriter().save(new File(filePath), boidStore, config)) {
+            System.out.println("Still writing the last save, try again in a moment");
         }
     }
 
     private void loadFromFile() {
         File folder = new File("./simulation-saves");
+        // Convert any old saves that haven't been converted yet
+        File[] serializedFiles = folder.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SnapshotFile.SERIALIZED_EXTENSION);
+            }
+        });
+        if (serializedFiles != null) {
+            for (File serializedFile : serializedFiles) {
+                if (!SnapshotFile.snapshotFor(serializedFile).exists()) {
+                    convertSerialized(serializedFile);
+                }
+            }
+        }
         FilenameFilter filter = new FilenameFilter() {
             @Override
             public boolean accept(File dir, String name) {
-                return name.endsWith(".ser");
+                return name.endsWith(SnapshotFile.EXTENSION);
             }
         };
         File[] fileArray = folder.listFiles(filter);
@@ -408,21 +999,37 @@ public class BoidSimulator extends ApplicationAdapter {
             loadFromFile(fileList.get(0).getPath());
             System.out.println("Loaded file " + fileList.get(0).getPath());
         } else {
-            System.out.println("Can't find any .ser files in the simulation-saves directory");
+            System.out.println("Can't find any " + SnapshotFile.EXTENSION + " files in the simulation-saves directory");
         }
     }
 
     private void loadFromFile(String filepath) {
+        File file = new File(filepath);
+        if (filepath.endsWith(SnapshotFile.SERIALIZED_EXTENSION)) {
+            File snapshot = SnapshotFile.snapshotFor(file);
+            file = snapshot.exists() ? snapshot : convertSerialized(file);
+            if (file == null) return;
+        }
 	    try {
-            FileInputStream fileIn = new FileInputStream(filepath);
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            List<Boid> newBoidList = (ArrayList<Boid>) in.readObject();
+            SnapshotFile.read(file, boidStore, config);
             boidList.clear();
-            for (Boid boid : newBoidList) {
-                boidList.add(new Boid(boid.getPosition(), boid.getVelocity(), wrappingScheme));
+            for (int id = 0; id < boidStore.size(); id++) {
+                boidList.add(new Boid(boidStore, id, config.getWrappingScheme()));
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
 	        e.printStackTrace();
         }
     }
+
+    // Returns the converted snapshot, or null if the old save couldn't be read
+    private File convertSerialized(File serializedFile) {
+        try {
+            File snapshot = SnapshotFile.convertSerialized(serializedFile, config);
+            System.out.println("Converted " + serializedFile.getPath() + " to " + snapshot.getPath());
+            return snapshot;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 }
@@ -0,0 +1,213 @@
+package com.charliecollard.boids;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills a store with a whole flock at once, in parallel, from a single seed.
+ *
+ * The boids are split into fixed blocks of {@link #BOIDS_PER_BLOCK}, and each block draws from its own
+ * generator whose starting point is derived from the seed and the block's index, SplitMix64 style. Which
+ * thread fills which block doesn't matter, so the same seed gives exactly the same flock on any machine
+ * and with any number of threads. Anything shared between boids, such as cluster centres or the common
+ * heading, is drawn from the seed itself before the blocks start.
+ *
+ * Angles are turned into positions and velocities with StrictMath rather than Math, whose sin and cos
+ * may differ in the last bit between JVMs, so spawned speeds are exactly MAX_SPEED to float precision
+ * and the same seed still gives the same flock everywhere.
+ *
+ * Only positions and velocities are written; sprites and colours are the renderer's business and cost
+ * nothing until a frame is drawn.
+ */
+public class BoidSpawner {
+    public static final int SPAWN_UNIFORM = 501;
+    public static final int SPAWN_CLUSTERED = 502;
+    public static final int SPAWN_RING = 503;
+    public static final int SPAWN_ALIGNED = 504;
+    private static final int BOIDS_PER_BLOCK = 16384;
+    private static final int CLUSTER_COUNT = 8;
+    // As fractions of the shorter side of the world
+    private static final float CLUSTER_SPREAD = 0.05f;
+    private static final float RING_RADIUS = 0.35f;
+    private static final float RING_WIDTH = 0.03f;
+    // Standard deviation of headings around a shared heading, in radians
+    private static final float HEADING_SPREAD = 0.3f;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final BoidStore store;
+    private final int first;
+    private final int count;
+    private final int distribution;
+    private final long seed;
+    private final float width;
+    private final float height;
+    private final float[] clusterX = new float[CLUSTER_COUNT];
+    private final float[] clusterY = new float[CLUSTER_COUNT];
+    private final float[] clusterHeading = new float[CLUSTER_COUNT];
+    private final float sharedHeading;
+
+    private BoidSpawner(BoidStore store, int first, int count, WrappingScheme wrappingScheme, int distribution, long seed) {
+        this.store = store;
+        this.first = first;
+        this.count = count;
+        this.distribution = distribution;
+        this.seed = seed;
+        this.width = wrappingScheme.getWidth();
+        this.height = wrappingScheme.getHeight();
+        Generator shared = new Generator(mix64(seed));
+        for (int i = 0; i < CLUSTER_COUNT; i++) {
+            clusterX[i] = shared.nextFloat() * width;
+            clusterY[i] = shared.nextFloat() * height;
+            clusterHeading[i] = shared.nextFloat() * 2 * Boid.PI;
+        }
+        sharedHeading = shared.nextFloat() * 2 * Boid.PI;
+    }
+
+    /**
+     * Append count boids to the store, laid out according to the distribution.
+     * @return the id of the first new boid, the rest follow on from it
+     */
+    public static int spawn(BoidStore store, int count, WrappingScheme wrappingScheme, int distribution, long seed) {
+        int first = store.addBlank(count);
+        BoidSpawner spawner = new BoidSpawner(store, first, count, wrappingScheme, distribution, seed);
+        int blocks = (count + BOIDS_PER_BLOCK - 1) / BOIDS_PER_BLOCK;
+        if (blocks <= 1) {
+            for (int block = 0; block < blocks; block++) {
+                spawner.fillBlock(block);
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.invoke(spawner.new BlockTask(0, blocks));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return first;
+    }
+
+    public static String getName(int distribution) {
+        switch (distribution) {
+            case SPAWN_CLUSTERED: return "clustered";
+            case SPAWN_RING: return "ring";
+            case SPAWN_ALIGNED: return "aligned";
+            default: return "uniform";
+        }
+    }
+
+    public static int forName(String name) {
+        if (name.equals("uniform")) return SPAWN_UNIFORM;
+        if (name.equals("clustered")) return SPAWN_CLUSTERED;
+        if (name.equals("ring")) return SPAWN_RING;
+        if (name.equals("aligned")) return SPAWN_ALIGNED;
+        throw new IllegalArgumentException("Unknown spawn distribution " + name);
+    }
+
+    private void fillBlock(int block) {
+        Generator random = new Generator(mix64(seed + (block + 1) * GOLDEN_GAMMA));
+        int end = Math.min(count, (block + 1) * BOIDS_PER_BLOCK);
+        float shortSide = Math.min(width, height);
+        for (int i = block * BOIDS_PER_BLOCK; i < end; i++) {
+            float x;
+            float y;
+            float heading;
+            switch (distribution) {
+                case SPAWN_CLUSTERED:
+                    int cluster = random.nextInt(CLUSTER_COUNT);
+                    x = clusterX[cluster] + random.nextGaussian() * CLUSTER_SPREAD * shortSide;
+                    y = clusterY[cluster] + random.nextGaussian() * CLUSTER_SPREAD * shortSide;
+                    heading = clusterHeading[cluster] + random.nextGaussian() * HEADING_SPREAD;
+                    break;
+                case SPAWN_RING:
+                    float angle = random.nextFloat() * 2 * Boid.PI;
+                    float radius = (RING_RADIUS + random.nextGaussian() * RING_WIDTH) * shortSide;
+                    x = width / 2 + radius * (float) StrictMath.cos(angle);
+                    y = height / 2 + radius * (float) StrictMath.sin(angle);
+                    // Going anticlockwise round the ring, with headings measured clockwise from +y as in Boid
+                    heading = -angle;
+                    break;
+                case SPAWN_ALIGNED:
+                    x = random.nextFloat() * width;
+                    y = random.nextFloat() * height;
+                    heading = sharedHeading + random.nextGaussian() * HEADING_SPREAD;
+                    break;
+                default:
+                    x = random.nextFloat() * width;
+                    y = random.nextFloat() * height;
+                    heading = random.nextFloat() * 2 * Boid.PI;
+            }
+            int id = first + i;
+            store.positionX[id] = wrap(x, width);
+            store.positionY[id] = wrap(y, height);
+            store.velocityX[id] = Boid.MAX_SPEED * (float) StrictMath.sin(heading);
+            store.velocityY[id] = Boid.MAX_SPEED * (float) StrictMath.cos(heading);
+        }
+    }
+
+    // Clusters and rings can spill over the edges, so bring them back in on the far side
+    private static float wrap(float value, float size) {
+        float wrapped = value % size;
+        if (wrapped < 0) wrapped += size;
+        return wrapped < size ? wrapped : 0;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * A SplitMix64 generator. Unlike java.util.Random it's cheap to create one per block, and blocks
+     * started from well mixed seeds don't run into each other's sequences.
+     */
+    private static class Generator {
+        private long state;
+
+        Generator(long seed) {
+            state = seed;
+        }
+
+        long nextLong() {
+            state += GOLDEN_GAMMA;
+            return mix64(state);
+        }
+
+        // Uniform in [0, 1)
+        float nextFloat() {
+            return (nextLong() >>> 40) * 0x1.0p-24f;
+        }
+
+        int nextInt(int bound) {
+            return (int) (((nextLong() >>> 33) * bound) >>> 31);
+        }
+
+        // Roughly normal with unit variance, as the sum of four uniforms. The tails stop at about 3.5,
+        // which suits spawning, and it's plain arithmetic so it comes out the same on every JVM.
+        float nextGaussian() {
+            return (nextFloat() + nextFloat() + nextFloat() + nextFloat() - 2) * 1.7320508f;
+        }
+    }
+
+    private class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        BlockTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                fillBlock(start);
+            } else {
+                int middle = (start + end) >>> 1;
+                invokeAll(new BlockTask(start, middle), new BlockTask(middle, end));
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.charliecollard.boids;
+
+import java.util.Arrays;
+
+/**
+ * Flat storage for the state of every boid in a simulation, one primitive array per component and
+ * indexed by boid id. This is the authoritative state the simulator iterates over; {@link Boid}
+ * objects are only views onto a slot of a store.
+ *
+ * Each boid costs 44 bytes here: four floats of position and velocity, six floats of steering
+ * diagnostics and its id. The old layout needed a Boid object with five Vector2 objects hanging off it, roughly
+ * 160 bytes spread over six heap objects before counting the sprite.
+ *
+ * The parallel update also needs a second position and velocity buffer to write the next tick into,
+ * another 16 bytes per boid, which is only allocated once {@link #ensureNextBuffer()} is called.
+ *
+ * A boid's slot is where it happens to be stored, not who it is. {@link #reorder} moves boids between
+ * slots to keep neighbours close together in memory, and each slot's entry in {@link #ids} says which
+ * boid is in it. A boid's id is the slot it was added in and never changes. Copies made with
+ * {@link #copyFrom} put every boid back in the slot matching its id, so anything that follows boids from
+ * one copy to the next, such as colours, recordings and saves, can go by slot in a copy.
+ */
+public class BoidStore {
+    public static final int BYTES_PER_BOID = 11 * 4;
+
+    private int size = 0;
+    public float[] positionX;
+    public float[] positionY;
+    public float[] velocityX;
+    public float[] velocityY;
+    public float[] separationX;
+    public float[] separationY;
+    public float[] cohesionX;
+    public float[] cohesionY;
+    public float[] alignmentX;
+    public float[] alignmentY;
+    public float[] nextPositionX;
+    public float[] nextPositionY;
+    public float[] nextVelocityX;
+    public float[] nextVelocityY;
+    public int[] ids;
+    private boolean inIdOrder = true;
+    private float[] reorderScratch = new float[0];
+    private int[] reorderIds = new int[0];
+
+    public BoidStore() {
+        this(16);
+    }
+
+    public BoidStore(int initialCapacity) {
+        allocate(Math.max(initialCapacity, 1));
+    }
+
+    /**
+     * Append a boid to the store.
+     * @return the id of the new boid
+     */
+    public int add(float x, float y, float vx, float vy) {
+        if (size == positionX.length) {
+            ensureCapacity(size * 2);
+        }
+        int id = size;
+        positionX[id] = x;
+        positionY[id] = y;
+        velocityX[id] = vx;
+        velocityY[id] = vy;
+        separationX[id] = 0;
+        separationY[id] = 0;
+        cohesionX[id] = 0;
+        cohesionY[id] = 0;
+        alignmentX[id] = 0;
+        alignmentY[id] = 0;
+        ids[id] = id;
+        size += 1;
+        return id;
+    }
+
+    /**
+     * Append count boids with zeroed state, for the caller to fill in.
+     * @return the id of the first new boid
+     */
+    public int addBlank(int count) {
+        int first = size;
+        if (first + count > positionX.length) {
+            ensureCapacity(Math.max(first + count, positionX.length * 2));
+        }
+        int end = first + count;
+        Arrays.fill(positionX, first, end, 0);
+        Arrays.fill(positionY, first, end, 0);
+        Arrays.fill(velocityX, first, end, 0);
+        Arrays.fill(velocityY, first, end, 0);
+        Arrays.fill(separationX, first, end, 0);
+        Arrays.fill(separationY, first, end, 0);
+        Arrays.fill(cohesionX, first, end, 0);
+        Arrays.fill(cohesionY, first, end, 0);
+        Arrays.fill(alignmentX, first, end, 0);
+        Arrays.fill(alignmentY, first, end, 0);
+        for (int i = first; i < end; i++) {
+            ids[i] = i;
+        }
+        size = end;
+        return first;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= positionX.length) return;
+        positionX = Arrays.copyOf(positionX, capacity);
+        positionY = Arrays.copyOf(positionY, capacity);
+        velocityX = Arrays.copyOf(velocityX, capacity);
+        velocityY = Arrays.copyOf(velocityY, capacity);
+        separationX = Arrays.copyOf(separationX, capacity);
+        separationY = Arrays.copyOf(separationY, capacity);
+        cohesionX = Arrays.copyOf(cohesionX, capacity);
+        cohesionY = Arrays.copyOf(cohesionY, capacity);
+        alignmentX = Arrays.copyOf(alignmentX, capacity);
+        alignmentY = Arrays.copyOf(alignmentY, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        if (nextPositionX != null) {
+            nextPositionX = Arrays.copyOf(nextPositionX, capacity);
+            nextPositionY = Arrays.copyOf(nextPositionY, capacity);
+            nextVelocityX = Arrays.copyOf(nextVelocityX, capacity);
+            nextVelocityY = Arrays.copyOf(nextVelocityY, capacity);
+        }
+    }
+
+    public void ensureNextBuffer() {
+        if (nextPositionX == null) {
+            int capacity = positionX.length;
+            nextPositionX = new float[capacity];
+            nextPositionY = new float[capacity];
+            nextVelocityX = new float[capacity];
+            nextVelocityY = new float[capacity];
+        }
+    }
+
+    /**
+     * Make the next position and velocity buffer current, keeping the old current buffer to be
+     * overwritten by the following tick.
+     */
+    public void swapBuffers() {
+        float[] temp = positionX;
+        positionX = nextPositionX;
+        nextPositionX = temp;
+        temp = positionY;
+        positionY = nextPositionY;
+        nextPositionY = temp;
+        temp = velocityX;
+        velocityX = nextVelocityX;
+        nextVelocityX = temp;
+        temp = velocityY;
+        velocityY = nextVelocityY;
+        nextVelocityY = temp;
+    }
+
+    /**
+     * Move the boids between slots, so that slot i takes the boid that was in slot order[i]. Ids move
+     * with their boids. The next buffer isn't carried over, so reorder between ticks.
+     */
+    public void reorder(int[] order) {
+        if (reorderScratch.length < positionX.length) {
+            reorderScratch = new float[positionX.length];
+            reorderIds = new int[positionX.length];
+        }
+        positionX = gather(positionX, order);
+        positionY = gather(positionY, order);
+        velocityX = gather(velocityX, order);
+        velocityY = gather(velocityY, order);
+        separationX = gather(separationX, order);
+        separationY = gather(separationY, order);
+        cohesionX = gather(cohesionX, order);
+        cohesionY = gather(cohesionY, order);
+        alignmentX = gather(alignmentX, order);
+        alignmentY = gather(alignmentY, order);
+        int[] reordered = reorderIds;
+        for (int i = 0; i < size; i++) {
+            reordered[i] = ids[order[i]];
+        }
+        reorderIds = ids;
+        ids = reordered;
+        inIdOrder = false;
+    }
+
+    // Gathers into the scratch array and hands back the old one as the next scratch array
+    private float[] gather(float[] values, int[] order) {
+        float[] gathered = reorderScratch;
+        for (int i = 0; i < size; i++) {
+            gathered[i] = values[order[i]];
+        }
+        reorderScratch = values;
+        return gathered;
+    }
+
+    // Whether every boid is in the slot matching its id, as it is until the store is first reordered
+    public boolean isInIdOrder() {
+        return inIdOrder;
+    }
+
+    /**
+     * Replace the contents of this store with the positions and velocities of another. The steering
+     * diagnostics are cleared.
+     */
+    public void copyFrom(BoidStore other) {
+        copyFrom(other, false);
+    }
+
+    /**
+     * Replace the contents of this store with the positions and velocities of another, along with its
+     * steering diagnostics if asked for. Otherwise they are cleared. Each boid is copied into the slot
+     * matching its id, however the other store is ordered.
+     */
+    public void copyFrom(BoidStore other, boolean withDiagnostics) {
+        int count = other.size();
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            ids[i] = i;
+        }
+        inIdOrder = true;
+        if (!other.inIdOrder) {
+            copyByIdFrom(other, withDiagnostics);
+            size = count;
+            return;
+        }
+        System.arraycopy(other.positionX, 0, positionX, 0, count);
+        System.arraycopy(other.positionY, 0, positionY, 0, count);
+        System.arraycopy(other.velocityX, 0, velocityX, 0, count);
+        System.arraycopy(other.velocityY, 0, velocityY, 0, count);
+        if (withDiagnostics) {
+            System.arraycopy(other.separationX, 0, separationX, 0, count);
+            System.arraycopy(other.separationY, 0, separationY, 0, count);
+            System.arraycopy(other.cohesionX, 0, cohesionX, 0, count);
+            System.arraycopy(other.cohesionY, 0, cohesionY, 0, count);
+            System.arraycopy(other.alignmentX, 0, alignmentX, 0, count);
+            System.arraycopy(other.alignmentY, 0, alignmentY, 0, count);
+        } else {
+            Arrays.fill(separationX, 0, count, 0);
+            Arrays.fill(separationY, 0, count, 0);
+            Arrays.fill(cohesionX, 0, count, 0);
+            Arrays.fill(cohesionY, 0, count, 0);
+            Arrays.fill(alignmentX, 0, count, 0);
+            Arrays.fill(alignmentY, 0, count, 0);
+        }
+        size = count;
+    }
+
+    private void copyByIdFrom(BoidStore other, boolean withDiagnostics) {
+        int count = other.size();
+        int[] otherIds = other.ids;
+        for (int i = 0; i < count; i++) {
+            int id = otherIds[i];
+            positionX[id] = other.positionX[i];
+            positionY[id] = other.positionY[i];
+            velocityX[id] = other.velocityX[i];
+            velocityY[id] = other.velocityY[i];
+            separationX[id] = withDiagnostics ? other.separationX[i] : 0;
+            separationY[id] = withDiagnostics ? other.separationY[i] : 0;
+            cohesionX[id] = withDiagnostics ? other.cohesionX[i] : 0;
+            cohesionY[id] = withDiagnostics ? other.cohesionY[i] : 0;
+            alignmentX[id] = withDiagnostics ? other.alignmentX[i] : 0;
+            alignmentY[id] = withDiagnostics ? other.alignmentY[i] : 0;
+        }
+    }
+
+    public void clear() {
+        size = 0;
+        inIdOrder = true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return positionX.length;
+    }
+
+    private void allocate(int capacity) {
+        positionX = new float[capacity];
+        positionY = new float[capacity];
+        velocityX = new float[capacity];
+        velocityY = new float[capacity];
+        separationX = new float[capacity];
+        separationY = new float[capacity];
+        cohesionX = new float[capacity];
+        cohesionY = new float[capacity];
+        alignmentX = new float[capacity];
+        alignmentY = new float[capacity];
+        ids = new int[capacity];
+    }
+}
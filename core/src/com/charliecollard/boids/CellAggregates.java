@@ -0,0 +1,291 @@
+package com.charliecollard.boids;
+
+import java.util.Arrays;
+
+/**
+ * An approximate neighbour search for large vision ranges, which sums whole cells of boids instead of
+ * visiting every neighbour.
+ *
+ * Boids are binned into a grid of cells {@link #CELLS_PER_RANGE} to a vision range, along with their
+ * images in the neighbouring universes as in {@link SpatialGrid}, and each cell keeps its count and the
+ * sums of its boids' positions and velocities. Cohesion and alignment only need the totals of a boid's
+ * neighbours' displacements and velocities, so a cell that lies entirely inside a boid's vision disc can
+ * be added in one go. Cells the edge of the disc passes through, and the boid's own cell and the eight
+ * around it, are visited boid by boid as usual, since that's where the inverse-square separation term is
+ * large. Whole cells further out contribute to separation as if all their boids were at the cell's
+ * centre of mass, where the term is small and changes slowly.
+ *
+ * Neighbours are taken with the displacement and velocity of whichever image falls in the disc rather
+ * than strictly the nearest image, which is the same thing unless the vision range is more than half
+ * the simulation's width or height.
+ *
+ * Results are written as the sums {@link Boid#steer(SimulationConfig, BoidStore, int, float, float[], int)}
+ * takes: neighbour count, separation, displacement and velocity sums, x then y, {@link #SUMS} values in all.
+ * {@link #measureError} compares the result against visiting every neighbour for a sample of boids.
+ */
+public class CellAggregates {
+    public static final int SUMS = 7;
+    private static final int CELLS_PER_RANGE = 4;
+    // Matches the separation scale in Boid
+    private static final float SEPARATION_STRENGTH = 30;
+
+    private float cellSize;
+    private float originX;
+    private float originY;
+    private int columns;
+    private int rows;
+    private int[] cellStart = new int[1];
+    // Position sums are relative to each cell's lower left corner, to keep them small
+    private float[] cellSumX = new float[0];
+    private float[] cellSumY = new float[0];
+    private float[] cellSumVelocityX = new float[0];
+    private float[] cellSumVelocityY = new float[0];
+
+    private int entryCount = 0;
+    private int[] entryBoid = new int[64];
+    private float[] entries = new float[4 * 64];
+    private int[] entryCell = new int[64];
+    private int[] sortedBoid = new int[64];
+    private float[] sorted = new float[4 * 64];
+    private final float[] ghostImages = new float[WrappingScheme.MAX_GHOST_IMAGES * 4];
+
+    private float range;
+    private int sampleStart = 0;
+    private final float[] approximate = new float[SUMS];
+    private final float[] exact = new float[SUMS];
+
+    /**
+     * Rebuild the cells from the current positions and velocities of the boids.
+     * @param range the vision range queries will use
+     */
+    public void build(BoidStore boids, WrappingScheme wrappingScheme, float range) {
+        int simulationWidth = wrappingScheme.getWidth();
+        int simulationHeight = wrappingScheme.getHeight();
+        this.range = range;
+        cellSize = Math.max(range / CELLS_PER_RANGE, 1f);
+        originX = -range;
+        originY = -range;
+        columns = Math.max(1, (int) Math.ceil((simulationWidth + 2 * range) / cellSize));
+        rows = Math.max(1, (int) Math.ceil((simulationHeight + 2 * range) / cellSize));
+        int cellTotal = columns * rows;
+        if (cellStart.length < cellTotal + 1) {
+            cellStart = new int[cellTotal + 1];
+            cellSumX = new float[cellTotal];
+            cellSumY = new float[cellTotal];
+            cellSumVelocityX = new float[cellTotal];
+            cellSumVelocityY = new float[cellTotal];
+        }
+
+        entryCount = 0;
+        for (int i = 0; i < boids.size(); i++) {
+            float x = boids.positionX[i];
+            float y = boids.positionY[i];
+            addEntry(i, x, y, boids.velocityX[i], boids.velocityY[i]);
+            boolean nearEdge = x < range || x > simulationWidth - range
+                    || y < range || y > simulationHeight - range;
+            if (nearEdge) {
+                int imageCount = wrappingScheme.ghostImages(x, y, boids.velocityX[i], boids.velocityY[i], ghostImages);
+                for (int image = 0; image < imageCount; image++) {
+                    float imageX = ghostImages[image * 4];
+                    float imageY = ghostImages[image * 4 + 1];
+                    if (imageX >= -range && imageX <= simulationWidth + range
+                            && imageY >= -range && imageY <= simulationHeight + range) {
+                        addEntry(i, imageX, imageY, ghostImages[image * 4 + 2], ghostImages[image * 4 + 3]);
+                    }
+                }
+            }
+        }
+
+        // Counting sort of the entries by cell, summing each cell on the way
+        Arrays.fill(cellStart, 0, cellTotal + 1, 0);
+        Arrays.fill(cellSumX, 0, cellTotal, 0);
+        Arrays.fill(cellSumY, 0, cellTotal, 0);
+        Arrays.fill(cellSumVelocityX, 0, cellTotal, 0);
+        Arrays.fill(cellSumVelocityY, 0, cellTotal, 0);
+        for (int e = 0; e < entryCount; e++) {
+            int column = column(entries[4 * e]);
+            int row = row(entries[4 * e + 1]);
+            int cell = row * columns + column;
+            entryCell[e] = cell;
+            cellStart[cell + 1] += 1;
+            cellSumX[cell] += entries[4 * e] - (originX + column * cellSize);
+            cellSumY[cell] += entries[4 * e + 1] - (originY + row * cellSize);
+            cellSumVelocityX[cell] += entries[4 * e + 2];
+            cellSumVelocityY[cell] += entries[4 * e + 3];
+        }
+        for (int c = 0; c < cellTotal; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        if (sortedBoid.length < entryCount) {
+            sortedBoid = new int[entryBoid.length];
+            sorted = new float[entries.length];
+        }
+        for (int e = 0; e < entryCount; e++) {
+            // cellStart[cell] is used as the insertion cursor and restored below
+            int slot = cellStart[entryCell[e]]++;
+            sortedBoid[slot] = entryBoid[e];
+            System.arraycopy(entries, 4 * e, sorted, 4 * slot, 4);
+        }
+        for (int c = cellTotal; c > 0; c--) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+    }
+
+    /**
+     * Write the neighbour sums for a boid into out, approximating whole cells inside its vision disc.
+     * Safe to call from several threads at once.
+     * @return the number of boids and whole cells looked at, as a count of pairs tested
+     */
+    public int sums(int self, float x, float y, float[] out, int offset) {
+        return sums(self, x, y, out, offset, true);
+    }
+
+    /**
+     * For a sample of boids, the root mean square difference between the steering from approximate sums
+     * and from visiting every neighbour, relative to the root mean square of the exact steering. Each call
+     * samples the next stretch of boids, so over several ticks every boid is checked.
+     */
+    public double measureError(SimulationConfig config, BoidStore boids, int samples) {
+        if (boids.size() == 0) return 0;
+        samples = Math.min(samples, boids.size());
+        double differenceSquared = 0;
+        double exactSquared = 0;
+        for (int s = 0; s < samples; s++) {
+            int boid = (sampleStart + s) % boids.size();
+            sums(boid, boids.positionX[boid], boids.positionY[boid], approximate, 0, true);
+            sums(boid, boids.positionX[boid], boids.positionY[boid], exact, 0, false);
+            float approximateX = steeringX(config, approximate);
+            float approximateY = steeringY(config, approximate);
+            float exactX = steeringX(config, exact);
+            float exactY = steeringY(config, exact);
+            differenceSquared += (approximateX - exactX) * (approximateX - exactX) + (approximateY - exactY) * (approximateY - exactY);
+            exactSquared += exactX * exactX + exactY * exactY;
+        }
+        sampleStart = (sampleStart + samples) % boids.size();
+        return exactSquared == 0 ? 0 : Math.sqrt(differenceSquared / exactSquared);
+    }
+
+    private int sums(int self, float x, float y, float[] out, int offset, boolean aggregate) {
+        float rangeSquared = range * range;
+        int ownColumn = column(x);
+        int ownRow = row(y);
+        int minColumn = column(x - range);
+        int maxColumn = column(x + range);
+        int minRow = row(y - range);
+        int maxRow = row(y + range);
+        int count = 0;
+        int tested = 0;
+        float separationX = 0;
+        float separationY = 0;
+        float displacementX = 0;
+        float displacementY = 0;
+        float velocityX = 0;
+        float velocityY = 0;
+        for (int r = minRow; r <= maxRow; r++) {
+            float bottom = originY + r * cellSize - y;
+            float top = bottom + cellSize;
+            float nearY = bottom > 0 ? bottom : top < 0 ? top : 0;
+            float farY = Math.max(-bottom, top);
+            for (int c = minColumn; c <= maxColumn; c++) {
+                int cell = r * columns + c;
+                int cellCount = cellStart[cell + 1] - cellStart[cell];
+                if (cellCount == 0) continue;
+                float left = originX + c * cellSize - x;
+                float right = left + cellSize;
+                float nearX = left > 0 ? left : right < 0 ? right : 0;
+                if (nearX * nearX + nearY * nearY >= rangeSquared) continue;
+                float farX = Math.max(-left, right);
+                boolean inside = farX * farX + farY * farY < rangeSquared;
+                boolean close = Math.abs(c - ownColumn) <= 1 && Math.abs(r - ownRow) <= 1;
+                if (aggregate && inside && !close) {
+                    // The sums are from the cell's corner, which is (left, bottom) from the boid
+                    float sumX = cellSumX[cell] + cellCount * left;
+                    float sumY = cellSumY[cell] + cellCount * bottom;
+                    displacementX += sumX;
+                    displacementY += sumY;
+                    velocityX += cellSumVelocityX[cell];
+                    velocityY += cellSumVelocityY[cell];
+                    // All of the cell's boids at its centre of mass
+                    float centreX = sumX / cellCount;
+                    float centreY = sumY / cellCount;
+                    float scale = cellCount * SEPARATION_STRENGTH / (centreX * centreX + centreY * centreY);
+                    separationX += centreX * scale;
+                    separationY += centreY * scale;
+                    count += cellCount;
+                    tested += 1;
+                } else {
+                    for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+                        if (sortedBoid[e] == self) continue;
+                        tested += 1;
+                        float dx = sorted[4 * e] - x;
+                        float dy = sorted[4 * e + 1] - y;
+                        float distanceSquared = dx * dx + dy * dy;
+                        if (distanceSquared >= rangeSquared) continue;
+                        if (distanceSquared != 0) {
+                            float scale = SEPARATION_STRENGTH / distanceSquared;
+                            separationX += dx * scale;
+                            separationY += dy * scale;
+                        }
+                        displacementX += dx;
+                        displacementY += dy;
+                        velocityX += sorted[4 * e + 2];
+                        velocityY += sorted[4 * e + 3];
+                        count += 1;
+                    }
+                }
+            }
+        }
+        out[offset] = count;
+        out[offset + 1] = separationX;
+        out[offset + 2] = separationY;
+        out[offset + 3] = displacementX;
+        out[offset + 4] = displacementY;
+        out[offset + 5] = velocityX;
+        out[offset + 6] = velocityY;
+        return tested;
+    }
+
+    // The weighted steering from a set of sums, before it's scaled by the boid's susceptibility
+    private static float steeringX(SimulationConfig config, float[] sums) {
+        float steering = -sums[1] * config.separationWeight;
+        if (sums[0] > 0) {
+            steering += (sums[3] * config.cohesionWeight + sums[5] * config.alignmentWeight) / sums[0];
+        }
+        return steering;
+    }
+
+    private static float steeringY(SimulationConfig config, float[] sums) {
+        float steering = -sums[2] * config.separationWeight;
+        if (sums[0] > 0) {
+            steering += (sums[4] * config.cohesionWeight + sums[6] * config.alignmentWeight) / sums[0];
+        }
+        return steering;
+    }
+
+    private void addEntry(int boidIndex, float x, float y, float velocityX, float velocityY) {
+        if (entryCount == entryBoid.length) {
+            int newLength = entryCount * 2;
+            entryBoid = Arrays.copyOf(entryBoid, newLength);
+            entries = Arrays.copyOf(entries, 4 * newLength);
+            entryCell = Arrays.copyOf(entryCell, newLength);
+        }
+        entryBoid[entryCount] = boidIndex;
+        entries[4 * entryCount] = x;
+        entries[4 * entryCount + 1] = y;
+        entries[4 * entryCount + 2] = velocityX;
+        entries[4 * entryCount + 3] = velocityY;
+        entryCount += 1;
+    }
+
+    // Positions outside the grid are clamped to the border cells
+    private int column(float x) {
+        int column = (int) Math.floor((x - originX) / cellSize);
+        return Math.min(Math.max(column, 0), columns - 1);
+    }
+
+    private int row(float y) {
+        int row = (int) Math.floor((y - originY) / cellSize);
+        return Math.min(Math.max(row, 0), rows - 1);
+    }
+}
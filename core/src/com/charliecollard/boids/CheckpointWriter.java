@@ -0,0 +1,240 @@
+package com.charliecollard.boids;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes {@link SnapshotFile}s in the background, both the periodic checkpoints a long run can be
+ * resumed from and saves asked for from the keyboard.
+ *
+ * The tick thread only copies the store's arrays as they are into one set of recycled arrays and hands
+ * them over; the writer thread puts the boids back in id order, encodes them and does the disk. If the
+ * last save is still being written when another is due, the new one is skipped rather than making the
+ * tick wait.
+ *
+ * Each checkpoint is written to a temporary file, forced to disk and then renamed over its final name,
+ * so a crash part way through leaves the previous checkpoints as they were and never a truncated one.
+ * Checkpoints are named by the number of ticks run, and only the newest {@link #keep} are kept.
+ */
+public class CheckpointWriter {
+    public static int checkpointEvery = 0;
+    public static String directory = "./checkpoints";
+    public static int keep = 3;
+    public static boolean resume = false;
+    private static final String PREFIX = "checkpoint-";
+    private static final String TEMP_EXTENSION = ".tmp";
+    private static final String UNREADABLE_EXTENSION = ".unreadable";
+
+    // Filled by the tick thread only while the writer is idle, in the store's slot order
+    private final float[][] components = new float[4][0];
+    private int[] ids = new int[0];
+    private int count;
+    private boolean inIdOrder;
+    // Only touched by the writer thread
+    private final BoidStore ordered = new BoidStore();
+    private final AtomicBoolean idle = new AtomicBoolean(true);
+    private final ArrayBlockingQueue<Save> pendingSaves = new ArrayBlockingQueue<>(1);
+    private final Save endOfSaves = new Save(null, null, false);
+    private final Thread writerThread;
+    private boolean closed = false;
+    private int skippedSaves = 0;
+
+    public CheckpointWriter() {
+        writerThread = new Thread("Checkpoint writer") {
+            @Override
+            public void run() {
+                writeSaves();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Checkpoint the store into the checkpoint directory, if the previous save has finished.
+     * @param ticks the number of ticks run so far, which the checkpoint is named by
+     */
+    public void checkpoint(BoidStore store, SimulationConfig config, int ticks) {
+        save(new File(directory, String.format("%s%010d%s", PREFIX, ticks, SnapshotFile.EXTENSION)), store, config, true);
+    }
+
+    /**
+     * Save the store to the given file, if the previous save has finished.
+     * @return whether the save was queued
+     */
+    public boolean save(File file, BoidStore store, SimulationConfig config) {
+        return save(file, store, config, false);
+    }
+
+    /**
+     * Finish the save in progress and stop the writer thread.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            pendingSaves.put(endOfSaves);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (skippedSaves > 0) {
+            System.out.println("Skipped " + skippedSaves + " saves while the previous one was still being written");
+        }
+    }
+
+    /**
+     * Load the newest checkpoint in a directory that reads back whole into the store and config.
+     * @return the number of ticks run when it was taken, or -1 if there's no checkpoint to resume from
+     */
+    public static int resume(File directory, BoidStore store, SimulationConfig config) {
+        File[] checkpoints = listCheckpoints(directory);
+        for (int i = checkpoints.length - 1; i >= 0; i--) {
+            try {
+                SnapshotFile.read(checkpoints[i], store, config);
+                System.out.println("Resumed from " + checkpoints[i].getPath());
+                return ticksOf(checkpoints[i]);
+            } catch (IOException e) {
+                // Set aside, so it isn't kept in place of the checkpoints taken after resuming
+                File unreadable = new File(checkpoints[i].getPath() + UNREADABLE_EXTENSION);
+                System.out.println("Skipping checkpoint " + checkpoints[i].getPath() + ": " + e.getMessage()
+                        + (checkpoints[i].renameTo(unreadable) ? ", moved to " + unreadable.getName() : ""));
+            }
+        }
+        return -1;
+    }
+
+    private boolean save(File file, BoidStore store, SimulationConfig config, boolean checkpoint) {
+        if (closed || !idle.compareAndSet(true, false)) {
+            skippedSaves += 1;
+            return false;
+        }
+        count = store.size();
+        if (ids.length < count) {
+            for (int c = 0; c < 4; c++) {
+                components[c] = new float[store.capacity()];
+            }
+            ids = new int[store.capacity()];
+        }
+        System.arraycopy(store.positionX, 0, components[0], 0, count);
+        System.arraycopy(store.positionY, 0, components[1], 0, count);
+        System.arraycopy(store.velocityX, 0, components[2], 0, count);
+        System.arraycopy(store.velocityY, 0, components[3], 0, count);
+        inIdOrder = store.isInIdOrder();
+        if (!inIdOrder) {
+            System.arraycopy(store.ids, 0, ids, 0, count);
+        }
+        pendingSaves.add(new Save(file, config.copy(), checkpoint));
+        return true;
+    }
+
+    private void writeSaves() {
+        while (true) {
+            Save save;
+            try {
+                save = pendingSaves.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (save == endOfSaves) return;
+            try {
+                File parent = save.file.getAbsoluteFile().getParentFile();
+                if (!parent.exists() && !parent.mkdirs()) {
+                    throw new IOException("Couldn't create " + parent);
+                }
+                File temp = new File(save.file.getPath() + TEMP_EXTENSION);
+                putInIdOrder();
+                SnapshotFile.write(temp, ordered, save.config);
+                Files.move(temp.toPath(), save.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (save.checkpoint) {
+                    removeOldCheckpoints(parent);
+                }
+            } catch (IOException | RuntimeException e) {
+                // Keep going, so one failed save doesn't stop every later one
+                System.out.println("Saving " + save.file.getPath() + " failed: " + e);
+            } finally {
+                idle.set(true);
+            }
+        }
+    }
+
+    private void putInIdOrder() {
+        ordered.clear();
+        ordered.addBlank(count);
+        for (int i = 0; i < count; i++) {
+            int id = inIdOrder ? i : ids[i];
+            ordered.positionX[id] = components[0][i];
+            ordered.positionY[id] = components[1][i];
+            ordered.velocityX[id] = components[2][i];
+            ordered.velocityY[id] = components[3][i];
+        }
+    }
+
+    // Delete all but the newest checkpoints, and any temporary files left by a run that crashed mid-write
+    private static void removeOldCheckpoints(File directory) {
+        File[] checkpoints = listCheckpoints(directory);
+        // Always keep the one just written, or there'd be nothing to resume from
+        for (int i = 0; i < checkpoints.length - Math.max(1, keep); i++) {
+            if (!checkpoints[i].delete()) {
+                System.out.println("Couldn't delete old checkpoint " + checkpoints[i].getPath());
+            }
+        }
+        File[] temps = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SnapshotFile.EXTENSION + TEMP_EXTENSION);
+            }
+        });
+        if (temps != null) {
+            for (File temp : temps) {
+                temp.delete();
+            }
+        }
+    }
+
+    // Oldest first
+    private static File[] listCheckpoints(File directory) {
+        File[] checkpoints = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SnapshotFile.EXTENSION) && ticksOf(new File(name)) >= 0;
+            }
+        });
+        if (checkpoints == null) return new File[0];
+        Arrays.sort(checkpoints, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Integer.compare(ticksOf(a), ticksOf(b));
+            }
+        });
+        return checkpoints;
+    }
+
+    private static int ticksOf(File checkpoint) {
+        String name = checkpoint.getName();
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SnapshotFile.EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Save {
+        private final File file;
+        private final SimulationConfig config;
+        private final boolean checkpoint;
+
+        private Save(File file, SimulationConfig config, boolean checkpoint) {
+            this.file = file;
+            this.config = config;
+            this.checkpoint = checkpoint;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.charliecollard.boids;
+
+import com.badlogic.gdx.math.Vector2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Computes the correlation of the boids' velocity fluctuations against distance for the plot, on one
+ * long-lived worker thread.
+ *
+ * The simulation hands over a copy of its state with {@link #submit}. There are two copies: the worker
+ * reads one while the next tick's state is written into the other, and a submission is skipped while
+ * the worker still hasn't picked up the previous one. Pairs come from a {@link SpatialGrid} built with
+ * the plotted distance as its range, so only boids close enough to land in a bucket are compared, and
+ * each pair is visited once. Sums and counts go straight into primitive histograms.
+ *
+ * With {@link #averagingWindow} above 1 the plotted curve is the average over that many of the most
+ * recent histograms, which smooths out the tick to tick noise.
+ *
+ * The plot reaches half way across the world, so in a big crowded world nearly every pair is compared.
+ * In a periodic world {@link #BACKEND_FFT} computes the histogram with an {@link FftCorrelation}
+ * instead, whose cost barely grows with the number of boids. Other worlds always compare pairs. With
+ * {@link #verifyFft} on, every FFT histogram is checked against the pairwise one for the same state,
+ * and the largest difference between their plotted curves so far is printed whenever it grows.
+ */
+public class CorrelationEngine {
+    public static final int BACKEND_PAIRS = 701;
+    public static final int BACKEND_FFT = 702;
+    public static int correlationInterval = 10;
+    public static int averagingWindow = 1;
+    public static int backend = BACKEND_PAIRS;
+    public static boolean verifyFft = false;
+
+    private final PlotFrame plotFrame;
+    private final Thread workerThread;
+    private BoidStore front = new BoidStore();
+    private BoidStore back = new BoidStore();
+    private float frontAverageX, frontAverageY, backAverageX, backAverageY;
+    private WrappingScheme frontScheme, backScheme;
+    private boolean pending = false;
+    private boolean stopped = false;
+
+    // Only touched by the worker thread
+    private final SpatialGrid grid = new SpatialGrid();
+    private final SpatialGrid.Query query = new SpatialGrid.Query();
+    private final float[] displacement = new float[2];
+    private final FftCorrelation fftCorrelation = new FftCorrelation();
+    private double[][] windowSums = new double[0][];
+    private long[][] windowCounts = new long[0][];
+    private int windowNext = 0;
+    private int windowFilled = 0;
+    private double[] verifySums = new double[0];
+    private long[] verifyCounts = new long[0];
+    private double worstFftDeviation = 0;
+
+    public CorrelationEngine(PlotFrame plotFrame) {
+        this.plotFrame = plotFrame;
+        workerThread = new Thread("Correlation worker") {
+            @Override
+            public void run() {
+                work();
+            }
+        };
+        workerThread.setDaemon(true);
+        workerThread.start();
+    }
+
+    /**
+     * Offer the current state of the simulation to the worker.
+     * @return false if the worker was still busy and the state was skipped
+     */
+    public synchronized boolean submit(BoidStore store, WrappingScheme wrappingScheme, Vector2 avgVelocity) {
+        if (pending || stopped) return false;
+        back.copyFrom(store);
+        backScheme = wrappingScheme;
+        backAverageX = avgVelocity.x;
+        backAverageY = avgVelocity.y;
+        pending = true;
+        notifyAll();
+        return true;
+    }
+
+    public synchronized void shutdown() {
+        stopped = true;
+        notifyAll();
+    }
+
+    private void work() {
+        while (true) {
+            synchronized (this) {
+                while (!pending && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped) return;
+                BoidStore swap = front;
+                front = back;
+                back = swap;
+                frontAverageX = backAverageX;
+                frontAverageY = backAverageY;
+                frontScheme = backScheme;
+                pending = false;
+            }
+
+            int buckets = bucketCount(frontScheme.getWidth());
+            if (windowSums.length != averagingWindow || (windowSums.length > 0 && windowSums[0].length != buckets)) {
+                windowSums = new double[averagingWindow][buckets];
+                windowCounts = new long[averagingWindow][buckets];
+                windowNext = 0;
+                windowFilled = 0;
+            }
+            double[] sums = windowSums[windowNext];
+            long[] counts = windowCounts[windowNext];
+            if (backend == BACKEND_FFT && frontScheme instanceof PeriodicWrappingScheme) {
+                fftCorrelation.histogram(front, frontScheme, frontAverageX, frontAverageY, sums, counts);
+                if (verifyFft) {
+                    verifyFft(sums, counts);
+                }
+            } else {
+                histogram(front, frontScheme, frontAverageX, frontAverageY, sums, counts);
+            }
+            windowNext = (windowNext + 1) % averagingWindow;
+            windowFilled = Math.min(windowFilled + 1, averagingWindow);
+
+            double[] totalSums = new double[buckets];
+            long[] totalCounts = new long[buckets];
+            for (int w = 0; w < windowFilled; w++) {
+                for (int b = 0; b < buckets; b++) {
+                    totalSums[b] += windowSums[w][b];
+                    totalCounts[b] += windowCounts[w][b];
+                }
+            }
+            double[] xs = new double[buckets];
+            for (int i = 0; i < buckets; i++) {
+                xs[i] = i*correlationInterval;
+            }
+            plotFrame.updateData(xs, normalise(totalSums, totalCounts));
+        }
+    }
+
+    /**
+     * Fill sums and counts, one entry per bucket, with the dot products of the velocity fluctuations of
+     * every ordered pair of boids, including each boid with itself, and how many pairs fell in each
+     * bucket. Only call this from one thread at a time.
+     */
+    public void histogram(BoidStore boids, WrappingScheme wrappingScheme, float avgVelocityX, float avgVelocityY, double[] sums, long[] counts) {
+        int buckets = sums.length;
+        float range = correlationInterval * buckets;
+        Arrays.fill(sums, 0);
+        Arrays.fill(counts, 0);
+        grid.build(boids, wrappingScheme, range);
+        for (int i = 0; i < boids.size(); i++) {
+            float x = boids.positionX[i];
+            float y = boids.positionY[i];
+            float fluctuationX = boids.velocityX[i] - avgVelocityX;
+            float fluctuationY = boids.velocityY[i] - avgVelocityY;
+            sums[0] += fluctuationX * fluctuationX + fluctuationY * fluctuationY;
+            counts[0] += 1;
+
+            int candidateCount = grid.findUnsortedCandidates(i, x, y, range, query);
+            int[] candidates = query.getCandidates();
+            for (int c = 0; c < candidateCount; c++) {
+                int j = candidates[c];
+                // The other boid counts this pair when it's the one searching
+                if (j < i) continue;
+                wrappingScheme.relativeDisplacement(x, y, boids.positionX[j], boids.positionY[j], displacement, 0);
+                float dx = displacement[0];
+                float dy = displacement[1];
+                float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                if (distance < range) {
+                    int bucket = (int) (distance / correlationInterval);
+                    float dotProduct = fluctuationX * (boids.velocityX[j] - avgVelocityX)
+                            + fluctuationY * (boids.velocityY[j] - avgVelocityY);
+                    sums[bucket] += 2 * dotProduct;
+                    counts[bucket] += 2;
+                }
+            }
+        }
+    }
+
+    // Compare an FFT histogram of the front state against comparing its pairs, on the normalised curves
+    private void verifyFft(double[] sums, long[] counts) {
+        if (verifySums.length != sums.length) {
+            verifySums = new double[sums.length];
+            verifyCounts = new long[sums.length];
+        }
+        histogram(front, frontScheme, frontAverageX, frontAverageY, verifySums, verifyCounts);
+        double[] expected = normalise(verifySums, verifyCounts);
+        double[] found = normalise(sums, counts);
+        double deviation = 0;
+        for (int b = 0; b < expected.length; b++) {
+            deviation = Math.max(deviation, Math.abs(found[b] - expected[b]));
+        }
+        if (deviation > worstFftDeviation) {
+            worstFftDeviation = deviation;
+            System.out.println(String.format(Locale.ROOT, "FFT correlations differ from pairwise by up to %.4f of the peak", deviation));
+        }
+    }
+
+    /**
+     * How many buckets the plot has for a world of the given width, out to half the width.
+     */
+    public static int bucketCount(int width) {
+        return width/(correlationInterval*2);
+    }
+
+    /**
+     * Turn histogram sums and counts into the plotted curve: the mean of each bucket, divided by the
+     * largest mean.
+     */
+    public static double[] normalise(double[] sums, long[] counts) {
+        double[] ys = new double[sums.length];
+        double biggest = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < sums.length; i++) {
+            ys[i] = counts[i] > 0 ? sums[i] / counts[i] : 0;
+            biggest = Math.max(biggest, ys[i]);
+        }
+        for (int i = 0; i < ys.length; i++) {
+            ys[i] /= biggest;
+        }
+        return ys;
+    }
+
+    /**
+     * The same curve as a single histogram, computed by comparing every pair of boids. This is how the
+     * plot used to be drawn, and is kept as a reference to check and benchmark against.
+     */
+    public static double[] computePairwise(List<Vector2> boidPositionList, List<Vector2> boidVelocityList, Vector2 avgVelocity,
+                                           WrappingScheme wrappingScheme) {
+        int correlationNumber = bucketCount(wrappingScheme.getWidth());
+        if (boidPositionList.size() != boidVelocityList.size()) {
+            throw new IllegalStateException("Different length of positions and velocities");
+        }
+        ArrayList<ArrayList<Float>> correlationLists = new ArrayList<>();
+        for (int i = 0; i < correlationNumber; i++) {
+            correlationLists.add(new ArrayList<Float>());
+        }
+        for (int i = 0; i < boidPositionList.size(); i++) {
+            for (int j = 0; j < boidPositionList.size(); j++) {
+                float distance = wrappingScheme.relativeDisplacement(boidPositionList.get(i), boidPositionList.get(j)).len();
+                if (distance < correlationInterval * correlationNumber) {
+                    Vector2 boidFluctuation = boidVelocityList.get(i).cpy().sub(avgVelocity);
+                    Vector2 otherBoidFluctuation = boidVelocityList.get(j).cpy().sub(avgVelocity);
+                    float dotProduct = boidFluctuation.dot(otherBoidFluctuation);
+                    int index = (int) Math.floor(distance / correlationInterval);
+                    ArrayList<Float> list = correlationLists.get(index);
+                    list.add(dotProduct);
+                    correlationLists.set(index, list);
+                }
+            }
+        }
+        ArrayList<Float> sums = new ArrayList<>();
+        for (ArrayList<Float> list : correlationLists) {
+            float sum = 0;
+            for (Float f : list) {
+                sum += f;
+            }
+            if (list.size() > 0) sum /= list.size();
+            sums.add(sum);
+        }
+        float biggest = Collections.max(sums);
+        double[] ys = new double[correlationNumber];
+        for (int i = 0; i < correlationNumber; i++) {
+            ys[i] = sums.get(i) / biggest;
+        }
+        return ys;
+    }
+}
@@ -0,0 +1,271 @@
+package com.charliecollard.boids;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector2;
+import com.badlogic.gdx.utils.Disposable;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Draws the flock as a coarse grid of cells instead of as individual boids, for populations too big for
+ * the individual boids to mean much on screen.
+ *
+ * Each frame the boids are binned into cells of {@link #cellSize} pixels, counting the boids in each cell
+ * and summing their velocities. Binning is split across a fork-join pool: every task bins a range of
+ * boids into a grid of its own, and the grids are then added together a range of cells at a time, so no
+ * two threads write to the same cell. The counts are drawn as a texture with one texel per cell, coloured
+ * from black through to white on a logarithmic scale, and with {@link #arrows} on each occupied cell also
+ * gets an arrow along its mean velocity. Apart from binning, the cost of a frame depends only on the
+ * number of cells.
+ *
+ * Only the simulation's own area is drawn, even in zoom-out mode.
+ */
+public class DensityRenderer implements Disposable {
+    public static int cellSize = 10;
+    public static boolean arrows = false;
+    private static final int BOIDS_PER_TASK = 16384;
+    private static final int CELLS_PER_TASK = 4096;
+    private static final int RAMP_SIZE = 256;
+
+    private final ForkJoinPool pool = new ForkJoinPool();
+    private final int[] ramp = new int[RAMP_SIZE];
+
+    private int columns;
+    private int rows;
+    private int[] counts = new int[0];
+    private float[] sumVelocityX = new float[0];
+    private float[] sumVelocityY = new float[0];
+    // One grid per binning task, reused from frame to frame
+    private int[][] partialCounts = new int[0][];
+    private float[][] partialVelocityX = new float[0][];
+    private float[][] partialVelocityY = new float[0][];
+
+    // State for the binning in progress, published to the workers by ForkJoinPool.invoke
+    private BoidStore store;
+    private int taskCount;
+
+    private Pixmap pixmap;
+    private Texture texture;
+    private final Vector2 arrowStart = new Vector2();
+    private final Vector2 arrowEnd = new Vector2();
+
+    public DensityRenderer() {
+        for (int i = 0; i < RAMP_SIZE; i++) {
+            ramp[i] = heat(i / (float) (RAMP_SIZE - 1));
+        }
+    }
+
+    /**
+     * Bin the boids in the store into the grid. This needs no GL context, so it can also be called
+     * from a headless run.
+     */
+    public void bin(BoidStore store, int width, int height) {
+        resize(width, height);
+        this.store = store;
+        // Every task's grid has to be cleared and merged, so there are no more of them than the pool can use
+        taskCount = Math.max(1, Math.min((store.size() + BOIDS_PER_TASK - 1) / BOIDS_PER_TASK, 2 * pool.getParallelism()));
+        if (partialCounts.length < taskCount || partialCounts[0].length != counts.length) {
+            partialCounts = new int[taskCount][counts.length];
+            partialVelocityX = new float[taskCount][counts.length];
+            partialVelocityY = new float[taskCount][counts.length];
+        }
+        pool.invoke(new BinTask(0, taskCount));
+        pool.invoke(new MergeTask(0, counts.length));
+        this.store = null;
+    }
+
+    public void render(BoidStore store, int width, int height, SpriteBatch sb, Matrix4 projection) {
+        bin(store, width, height);
+        if (pixmap == null || pixmap.getWidth() != columns || pixmap.getHeight() != rows) {
+            dispose();
+            pixmap = new Pixmap(columns, rows, Pixmap.Format.RGBA8888);
+            texture = new Texture(pixmap);
+            texture.setFilter(Texture.TextureFilter.Nearest, Texture.TextureFilter.Nearest);
+        }
+
+        int maxCount = 0;
+        for (int count : counts) {
+            maxCount = Math.max(maxCount, count);
+        }
+        float scale = (RAMP_SIZE - 1) / (float) Math.log1p(Math.max(1, maxCount));
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                int count = counts[row * columns + column];
+                // Pixmap rows run down from the top, the simulation's y runs up
+                pixmap.drawPixel(column, rows - 1 - row, ramp[(int) (Math.log1p(count) * scale)]);
+            }
+        }
+        texture.draw(pixmap, 0, 0);
+
+        sb.setProjectionMatrix(projection);
+        sb.begin();
+        sb.draw(texture, 0, 0, columns * cellSize, rows * cellSize);
+        sb.end();
+
+        if (arrows) {
+            DebugShapeRenderer.startBatch(Color.CYAN, 1, projection);
+            float maxLength = cellSize * 0.45f;
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    int cell = row * columns + column;
+                    if (counts[cell] == 0) continue;
+                    float scaleToLength = maxLength / (counts[cell] * Boid.MAX_SPEED);
+                    float dx = sumVelocityX[cell] * scaleToLength;
+                    float dy = sumVelocityY[cell] * scaleToLength;
+                    float centreX = (column + 0.5f) * cellSize;
+                    float centreY = (row + 0.5f) * cellSize;
+                    arrowStart.set(centreX - dx, centreY - dy);
+                    arrowEnd.set(centreX + dx, centreY + dy);
+                    DebugShapeRenderer.batchLine(arrowStart, arrowEnd);
+                    // The head, as two short strokes back from the tip
+                    arrowStart.set(arrowEnd.x - 0.5f * (dx - dy), arrowEnd.y - 0.5f * (dy + dx));
+                    DebugShapeRenderer.batchLine(arrowStart, arrowEnd);
+                    arrowStart.set(arrowEnd.x - 0.5f * (dx + dy), arrowEnd.y - 0.5f * (dy - dx));
+                    DebugShapeRenderer.batchLine(arrowStart, arrowEnd);
+                }
+            }
+            DebugShapeRenderer.endBatch();
+        }
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    // Boids in each cell, row by row from the bottom
+    public int[] getCounts() {
+        return counts;
+    }
+
+    public float[] getSumVelocityX() {
+        return sumVelocityX;
+    }
+
+    public float[] getSumVelocityY() {
+        return sumVelocityY;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Override
+    public void dispose() {
+        if (texture != null) {
+            texture.dispose();
+            texture = null;
+        }
+        if (pixmap != null) {
+            pixmap.dispose();
+            pixmap = null;
+        }
+    }
+
+    private void resize(int width, int height) {
+        int newColumns = Math.max(1, (width + cellSize - 1) / cellSize);
+        int newRows = Math.max(1, (height + cellSize - 1) / cellSize);
+        if (newColumns != columns || newRows != rows) {
+            columns = newColumns;
+            rows = newRows;
+            counts = new int[columns * rows];
+            sumVelocityX = new float[columns * rows];
+            sumVelocityY = new float[columns * rows];
+        }
+    }
+
+    // Black through blue, red and yellow to white, as RGBA8888
+    private static int heat(float t) {
+        float r = Math.min(1, Math.max(0, 3 * t - 1));
+        float g = Math.min(1, Math.max(0, 3 * t - 2) + Math.max(0, 1.5f * t - 0.5f));
+        float b = Math.min(1, Math.max(0, t < 1 / 3f ? 3 * t : 2 - 3 * t) + Math.max(0, 3 * t - 2));
+        return Color.rgba8888(r, g, b, 1);
+    }
+
+    private void binRange(int task) {
+        int[] taskCounts = partialCounts[task];
+        float[] taskVelocityX = partialVelocityX[task];
+        float[] taskVelocityY = partialVelocityY[task];
+        Arrays.fill(taskCounts, 0);
+        Arrays.fill(taskVelocityX, 0);
+        Arrays.fill(taskVelocityY, 0);
+        int end = (int) ((long) store.size() * (task + 1) / taskCount);
+        for (int boid = (int) ((long) store.size() * task / taskCount); boid < end; boid++) {
+            int column = Math.min(columns - 1, Math.max(0, (int) (store.positionX[boid] / cellSize)));
+            int row = Math.min(rows - 1, Math.max(0, (int) (store.positionY[boid] / cellSize)));
+            int cell = row * columns + column;
+            taskCounts[cell] += 1;
+            taskVelocityX[cell] += store.velocityX[boid];
+            taskVelocityY[cell] += store.velocityY[boid];
+        }
+    }
+
+    private void mergeRange(int start, int end) {
+        for (int cell = start; cell < end; cell++) {
+            int count = 0;
+            float velocityX = 0;
+            float velocityY = 0;
+            for (int task = 0; task < taskCount; task++) {
+                count += partialCounts[task][cell];
+                velocityX += partialVelocityX[task][cell];
+                velocityY += partialVelocityY[task][cell];
+            }
+            counts[cell] = count;
+            sumVelocityX[cell] = velocityX;
+            sumVelocityY[cell] = velocityY;
+        }
+    }
+
+    private class BinTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        BinTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new BinTask(start, middle), new BinTask(middle, end));
+            } else {
+                binRange(start);
+            }
+        }
+    }
+
+    private class MergeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int start;
+        private final int end;
+
+        MergeTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > CELLS_PER_TASK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new MergeTask(start, middle), new MergeTask(middle, end));
+            } else {
+                mergeRange(start, end);
+            }
+        }
+    }
+}
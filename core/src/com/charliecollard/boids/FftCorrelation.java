@@ -0,0 +1,231 @@
+package com.charliecollard.boids;
+
+import java.util.Arrays;
+
+/**
+ * Computes the same histogram as {@link CorrelationEngine#histogram} for a periodic world with FFTs
+ * over a grid instead of by visiting pairs, in O(N + G log G) for a grid of G cells rather than the
+ * O(N^2) of comparing every pair within half the world of each other.
+ *
+ * Each boid's velocity fluctuation is added to the cell it's in as the complex number fx + i fy, and a
+ * second grid counts the boids in each cell. The inverse transform of a grid's power spectrum is its
+ * circular autocorrelation, which in a periodic world is exactly the minimum image one. Its real part at
+ * each lag is the sum of the dot products of every ordered pair of fluctuations that far apart, and for
+ * the count grid the number of such pairs, each boid paired with itself included. Adding the lags up
+ * into buckets by their length gives the sums and counts the pairwise histogram gives. Both come back
+ * from one inverse transform, as its real and imaginary parts.
+ *
+ * Pairs are placed by the lag between their cells rather than their exact distance, so a pair near the
+ * edge of a bucket can land in the one next to it. With cells {@link #cellsPerInterval} to a bucket
+ * that moves the normalised curve by around a percent. The grid's sides are powers of two, coarsened in
+ * very large worlds so it never holds more than {@link #MAX_CELLS} cells.
+ */
+public class FftCorrelation {
+    public static int cellsPerInterval = 4;
+    private static final int MAX_CELLS = 1 << 22;
+    // Columns are copied out this many at a time, so each row is read a cache line at a time
+    private static final int COLUMN_BLOCK = 8;
+
+    private int width = -1;
+    private int height = -1;
+    private int interval = -1;
+    private int buckets = -1;
+    private int columns;
+    private int rows;
+    private double[] velocityRe = new double[0];
+    private double[] velocityIm = new double[0];
+    private double[] countRe = new double[0];
+    private double[] countIm = new double[0];
+    // The bucket each lag's pairs go in, or -1 for lags too long to plot
+    private int[] lagBuckets = new int[0];
+    private double[] columnCos, columnSin, rowCos, rowSin;
+    private double[] lineRe = new double[0];
+    private double[] lineIm = new double[0];
+    private double[] blockRe = new double[0];
+    private double[] blockIm = new double[0];
+
+    /**
+     * Fill sums and counts as {@link CorrelationEngine#histogram} does. The wrapping scheme must be
+     * periodic. Only call this from one thread at a time.
+     */
+    public void histogram(BoidStore boids, WrappingScheme wrappingScheme, float avgVelocityX, float avgVelocityY, double[] sums, long[] counts) {
+        if (!(wrappingScheme instanceof PeriodicWrappingScheme)) {
+            throw new IllegalArgumentException("FFT correlations need a periodic world, not " + wrappingScheme.getName());
+        }
+        layOut(wrappingScheme.getWidth(), wrappingScheme.getHeight(), sums.length);
+        int cells = columns * rows;
+        Arrays.fill(velocityRe, 0, cells, 0);
+        Arrays.fill(velocityIm, 0, cells, 0);
+        Arrays.fill(countRe, 0, cells, 0);
+        Arrays.fill(countIm, 0, cells, 0);
+        float columnsPerUnit = columns / (float) width;
+        float rowsPerUnit = rows / (float) height;
+        for (int i = 0; i < boids.size(); i++) {
+            int column = Math.min(columns - 1, Math.max(0, (int) (boids.positionX[i] * columnsPerUnit)));
+            int row = Math.min(rows - 1, Math.max(0, (int) (boids.positionY[i] * rowsPerUnit)));
+            int cell = row * columns + column;
+            velocityRe[cell] += boids.velocityX[i] - avgVelocityX;
+            velocityIm[cell] += boids.velocityY[i] - avgVelocityY;
+            countRe[cell] += 1;
+        }
+
+        transform(velocityRe, velocityIm, false);
+        transform(countRe, countIm, false);
+        for (int cell = 0; cell < cells; cell++) {
+            double velocityPower = velocityRe[cell] * velocityRe[cell] + velocityIm[cell] * velocityIm[cell];
+            countRe[cell] = countRe[cell] * countRe[cell] + countIm[cell] * countIm[cell];
+            countIm[cell] = velocityPower;
+        }
+        // Only the even part of the velocity power spectrum contributes to the dot products, and like the
+        // count power spectrum it transforms back to a real grid, so one inverse transform does both
+        for (int row = 0; row < rows; row++) {
+            int oppositeRow = (rows - row) % rows;
+            for (int column = 0; column < columns; column++) {
+                int cell = row * columns + column;
+                int opposite = oppositeRow * columns + (columns - column) % columns;
+                velocityRe[cell] = (countIm[cell] + countIm[opposite]) / 2;
+                velocityIm[cell] = countRe[cell];
+            }
+        }
+        transform(velocityRe, velocityIm, true);
+
+        Arrays.fill(sums, 0);
+        Arrays.fill(counts, 0);
+        double scale = 1.0 / cells;
+        for (int lag = 0; lag < cells; lag++) {
+            int bucket = lagBuckets[lag];
+            if (bucket < 0) continue;
+            sums[bucket] += velocityRe[lag] * scale;
+            counts[bucket] += Math.round(velocityIm[lag] * scale);
+        }
+    }
+
+    // Unscaled 2D transform, a row at a time then a column at a time
+    private void transform(double[] re, double[] im, boolean inverse) {
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(re, row * columns, lineRe, 0, columns);
+            System.arraycopy(im, row * columns, lineIm, 0, columns);
+            transform(lineRe, lineIm, 0, columns, columnCos, columnSin, inverse);
+            System.arraycopy(lineRe, 0, re, row * columns, columns);
+            System.arraycopy(lineIm, 0, im, row * columns, columns);
+        }
+        int block = Math.min(COLUMN_BLOCK, columns);
+        for (int first = 0; first < columns; first += block) {
+            for (int row = 0; row < rows; row++) {
+                for (int c = 0; c < block; c++) {
+                    blockRe[c * rows + row] = re[row * columns + first + c];
+                    blockIm[c * rows + row] = im[row * columns + first + c];
+                }
+            }
+            for (int c = 0; c < block; c++) {
+                transform(blockRe, blockIm, c * rows, rows, rowCos, rowSin, inverse);
+            }
+            for (int row = 0; row < rows; row++) {
+                for (int c = 0; c < block; c++) {
+                    re[row * columns + first + c] = blockRe[c * rows + row];
+                    im[row * columns + first + c] = blockIm[c * rows + row];
+                }
+            }
+        }
+    }
+
+    // Iterative radix-2 FFT of the n values from offset, in place
+    private static void transform(double[] re, double[] im, int offset, int n, double[] cos, double[] sin, boolean inverse) {
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double swap = re[offset + i];
+                re[offset + i] = re[offset + j];
+                re[offset + j] = swap;
+                swap = im[offset + i];
+                im[offset + i] = im[offset + j];
+                im[offset + j] = swap;
+            }
+        }
+        for (int length = 2; length <= n; length <<= 1) {
+            int half = length >> 1;
+            int step = n / length;
+            for (int start = offset; start < offset + n; start += length) {
+                for (int k = 0; k < half; k++) {
+                    double twiddleRe = cos[k * step];
+                    double twiddleIm = inverse ? sin[k * step] : -sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double productRe = re[b] * twiddleRe - im[b] * twiddleIm;
+                    double productIm = re[b] * twiddleIm + im[b] * twiddleRe;
+                    re[b] = re[a] - productRe;
+                    im[b] = im[a] - productIm;
+                    re[a] += productRe;
+                    im[a] += productIm;
+                }
+            }
+        }
+    }
+
+    // Size the grid and work out which bucket each lag falls in, if the world or buckets have changed
+    private void layOut(int width, int height, int buckets) {
+        int interval = CorrelationEngine.correlationInterval;
+        if (width == this.width && height == this.height && interval == this.interval && buckets == this.buckets) return;
+        this.width = width;
+        this.height = height;
+        this.interval = interval;
+        this.buckets = buckets;
+        columns = powerOfTwoAtLeast((float) width * cellsPerInterval / interval);
+        rows = powerOfTwoAtLeast((float) height * cellsPerInterval / interval);
+        while (columns * rows > MAX_CELLS) {
+            if (columns >= rows) {
+                columns /= 2;
+            } else {
+                rows /= 2;
+            }
+        }
+        int cells = columns * rows;
+        velocityRe = new double[cells];
+        velocityIm = new double[cells];
+        countRe = new double[cells];
+        countIm = new double[cells];
+        lineRe = new double[columns];
+        lineIm = new double[columns];
+        blockRe = new double[COLUMN_BLOCK * rows];
+        blockIm = new double[COLUMN_BLOCK * rows];
+        columnCos = new double[columns / 2 + 1];
+        columnSin = new double[columns / 2 + 1];
+        fillTwiddles(columnCos, columnSin, columns);
+        rowCos = new double[rows / 2 + 1];
+        rowSin = new double[rows / 2 + 1];
+        fillTwiddles(rowCos, rowSin, rows);
+
+        // Lags past halfway round are the shorter way round the other way
+        float cellWidth = width / (float) columns;
+        float cellHeight = height / (float) rows;
+        float range = interval * buckets;
+        lagBuckets = new int[cells];
+        for (int row = 0; row < rows; row++) {
+            float dy = (row <= rows / 2 ? row : row - rows) * cellHeight;
+            for (int column = 0; column < columns; column++) {
+                float dx = (column <= columns / 2 ? column : column - columns) * cellWidth;
+                float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                lagBuckets[row * columns + column] = distance < range ? (int) (distance / interval) : -1;
+            }
+        }
+    }
+
+    private static void fillTwiddles(double[] cos, double[] sin, int n) {
+        for (int k = 0; k < cos.length; k++) {
+            cos[k] = Math.cos(2 * Math.PI * k / n);
+            sin[k] = Math.sin(2 * Math.PI * k / n);
+        }
+    }
+
+    private static int powerOfTwoAtLeast(float value) {
+        int power = 1;
+        while (power < value) {
+            power *= 2;
+        }
+        return power;
+    }
+}
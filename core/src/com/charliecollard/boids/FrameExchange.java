@@ -0,0 +1,56 @@
+package com.charliecollard.boids;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A triple buffer of {@link SimulationFrame}s between the simulation thread and the render thread.
+ *
+ * The simulation thread always owns one frame to fill in, and the exchange holds the newest finished
+ * frame. Publishing swaps the filled frame for the one held, and acquiring swaps the render thread's
+ * oldest frame for it, so neither side ever waits for the other or sees a frame being written. A slow
+ * renderer just skips frames.
+ *
+ * The render thread keeps the two most recent frames it acquired so that it can interpolate between
+ * them, which makes four frames in all.
+ */
+public class FrameExchange {
+    private final AtomicReference<SimulationFrame> latest = new AtomicReference<>(new SimulationFrame());
+    // Only touched by the simulation thread
+    private SimulationFrame back = new SimulationFrame();
+    // Only touched by the render thread
+    private SimulationFrame previous = new SimulationFrame();
+    private SimulationFrame current = new SimulationFrame();
+
+    /**
+     * The frame for the simulation thread to fill in before calling {@link #publish()}.
+     */
+    public SimulationFrame getBackFrame() {
+        return back;
+    }
+
+    public void publish() {
+        back = latest.getAndSet(back);
+    }
+
+    /**
+     * Take the newest published frame if it's newer than the current one, making the current one the
+     * previous one.
+     * @return true if there was a new frame
+     */
+    public boolean acquire() {
+        if (latest.get().tick <= current.tick) return false;
+        // Only the simulation thread can replace the latest frame, and only with a newer one
+        SimulationFrame newest = latest.getAndSet(previous);
+        previous = current;
+        current = newest;
+        return true;
+    }
+
+    public SimulationFrame getCurrent() {
+        return current;
+    }
+
+    public SimulationFrame getPrevious() {
+        return previous;
+    }
+}
@@ -0,0 +1,83 @@
+package com.charliecollard.boids;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Runs a simulation without rendering for a fixed number of ticks or a fixed time, then prints a
+ * one line JSON summary of the throughput so runs can be compared between builds.
+ *
+ * Warm-up ticks run first and are left out of every figure in the summary. With no tick or time
+ * limit the runner keeps going until the process is stopped, and prints its summary on the way out.
+ */
+public class HeadlessRunner {
+    public static int ticks = 0;
+    public static float durationSeconds = 0;
+    public static int warmupTicks = 0;
+
+    private final BoidSimulator boidSimulator;
+    private final PrintStream out;
+    private volatile int measuredTicks = 0;
+    private volatile long measuredPairs = 0;
+    private volatile int measuredListRebuilds = 0;
+    private volatile double measuredApproximationError = 0;
+    private long startNanos;
+    private long startPairs;
+    private boolean summaryPrinted = false;
+
+    public HeadlessRunner(BoidSimulator boidSimulator, PrintStream out) {
+        this.boidSimulator = boidSimulator;
+        this.out = out;
+    }
+
+    public void run() {
+        for (int i = 0; i < warmupTicks; i++) {
+            boidSimulator.update();
+        }
+
+        boolean bounded = ticks > 0 || durationSeconds > 0;
+        if (!bounded) {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    boidSimulator.closeOutputs();
+                    printSummary();
+                }
+            });
+        }
+
+        startPairs = boidSimulator.getNeighbourPairsEvaluated();
+        startNanos = System.nanoTime();
+        long durationNanos = (long) (durationSeconds * 1e9);
+        while (true) {
+            if (ticks > 0 && measuredTicks >= ticks) break;
+            if (durationNanos > 0 && System.nanoTime() - startNanos >= durationNanos) break;
+            boidSimulator.update();
+            measuredTicks += 1;
+            measuredPairs = boidSimulator.getNeighbourPairsEvaluated() - startPairs;
+            if (boidSimulator.getTickMetrics().getLastListRebuild()) measuredListRebuilds += 1;
+            measuredApproximationError += boidSimulator.getTickMetrics().getLastApproximationError();
+        }
+        boidSimulator.shutdown();
+        printSummary();
+    }
+
+    private synchronized void printSummary() {
+        if (summaryPrinted) return;
+        summaryPrinted = true;
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        int boidCount = boidSimulator.getBoidCount();
+        out.println(String.format(Locale.ROOT,
+                "{\"boids\":%d,\"spawn\":\"%s\",\"seed\":%d,\"wrappingScheme\":\"%s\",\"threads\":%d,\"neighbourMode\":\"%s\",\"resortEvery\":%d,\"warmupTicks\":%d,\"ticks\":%d,\"seconds\":%.3f,"
+                        + "\"ticksPerSecond\":%.3f,\"boidUpdatesPerSecond\":%.1f,\"neighbourPairsEvaluated\":%d,\"listRebuildRate\":%.3f,\"approximationError\":%.5f,\"polarization\":%.6f}",
+                boidCount, BoidSpawner.getName(boidSimulator.getConfig().spawnDistribution), boidSimulator.getConfig().seed,
+                boidSimulator.getConfig().getWrappingScheme().getName(), boidSimulator.getConfig().threadCount,
+                boidSimulator.getConfig().neighbourMode == BoidSimulator.NEIGHBOUR_MODE_TOPOLOGICAL
+                        ? "topological-" + boidSimulator.getConfig().topologicalCount : "metric",
+                boidSimulator.getConfig().resortEvery, warmupTicks, measuredTicks, seconds,
+                measuredTicks / seconds, (double) measuredTicks * boidCount / seconds, measuredPairs,
+                measuredTicks == 0 ? 0 : (double) measuredListRebuilds / measuredTicks,
+                measuredTicks == 0 ? 0 : measuredApproximationError / measuredTicks, boidSimulator.getPolarization()));
+        out.flush();
+    }
+}
@@ -0,0 +1,143 @@
+package com.charliecollard.boids;
+
+/**
+ * The nine isometries placing a position in the simulation and in each of its eight neighbouring
+ * universes. Each isometry is a linear part made of sign flips and quarter turns about the centre of
+ * the simulation, followed by a shift of whole simulation widths and heights, precomputed here as
+ * image = (xx * x + xy * y + offsetX, yx * x + yy * y + offsetY).
+ *
+ * Finding the nearest image compares squared distances, so no square roots are taken. When the
+ * direct displacement is shorter than the distance to the nearest edge no other universe is looked at,
+ * and otherwise any universe whose bounding box is further away than the best image so far is skipped.
+ */
+public class IsometryTable {
+    // Each universe takes STRIDE consecutive floats of the table
+    private static final int XX = 0, XY = 1, YX = 2, YY = 3, OFFSET_X = 4, OFFSET_Y = 5;
+    // Bounding box of the image of the whole simulation
+    private static final int MIN_X = 6, MAX_X = 7, MIN_Y = 8, MAX_Y = 9;
+    private static final int STRIDE = 10;
+
+    public final int width;
+    public final int height;
+    private final int count;
+    private final float[] table;
+
+    /**
+     * @param linear for each universe, the linear part about the centre as {xx, xy, yx, yy}
+     * @param column for each universe, how many simulation widths it is shifted by
+     * @param row for each universe, how many simulation heights it is shifted by
+     */
+    public IsometryTable(int width, int height, int[][] linear, int[] column, int[] row) {
+        this.width = width;
+        this.height = height;
+        this.count = linear.length;
+        table = new float[count * STRIDE];
+        float centreX = width / 2f;
+        float centreY = height / 2f;
+        for (int i = 0; i < count; i++) {
+            int base = i * STRIDE;
+            table[base + XX] = linear[i][0];
+            table[base + XY] = linear[i][1];
+            table[base + YX] = linear[i][2];
+            table[base + YY] = linear[i][3];
+            // L(p - c) + c + shift = Lp + (c - Lc + shift)
+            table[base + OFFSET_X] = centreX - (linear[i][0] * centreX + linear[i][1] * centreY) + column[i] * width;
+            table[base + OFFSET_Y] = centreY - (linear[i][2] * centreX + linear[i][3] * centreY) + row[i] * height;
+            table[base + MIN_X] = Float.POSITIVE_INFINITY;
+            table[base + MAX_X] = Float.NEGATIVE_INFINITY;
+            table[base + MIN_Y] = Float.POSITIVE_INFINITY;
+            table[base + MAX_Y] = Float.NEGATIVE_INFINITY;
+            for (int corner = 0; corner < 4; corner++) {
+                float cornerX = (corner & 1) == 0 ? 0 : width;
+                float cornerY = (corner & 2) == 0 ? 0 : height;
+                float imageX = imageX(i, cornerX, cornerY);
+                float imageY = imageY(i, cornerX, cornerY);
+                table[base + MIN_X] = Math.min(table[base + MIN_X], imageX);
+                table[base + MAX_X] = Math.max(table[base + MAX_X], imageX);
+                table[base + MIN_Y] = Math.min(table[base + MIN_Y], imageY);
+                table[base + MAX_Y] = Math.max(table[base + MAX_Y], imageY);
+            }
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public float imageX(int image, float x, float y) {
+        int base = image * STRIDE;
+        return table[base + XX] * x + table[base + XY] * y + table[base + OFFSET_X];
+    }
+
+    public float imageY(int image, float x, float y) {
+        int base = image * STRIDE;
+        return table[base + YX] * x + table[base + YY] * y + table[base + OFFSET_Y];
+    }
+
+    /**
+     * Write the displacement from one position to the nearest image of another into out[offset] and
+     * out[offset + 1]. The first universe must be the identity. Ties go to the universe listed first.
+     * @return the index of the universe holding the nearest image
+     */
+    public int nearestImage(float fromX, float fromY, float toX, float toY, float[] out, int offset) {
+        float closestX = toX - fromX;
+        float closestY = toY - fromY;
+        float closestDistance2 = closestX * closestX + closestY * closestY;
+        out[offset] = closestX;
+        out[offset + 1] = closestY;
+
+        // Every other image lies outside the simulation, so none can be closer than the nearest edge
+        float edge = Math.min(Math.min(fromX, width - fromX), Math.min(fromY, height - fromY));
+        boolean inside = toX >= 0 && toX <= width && toY >= 0 && toY <= height;
+        if (inside && edge >= 0 && edge * edge >= closestDistance2) {
+            return 0;
+        }
+
+        int closestImage = 0;
+        for (int image = 1; image < count; image++) {
+            int base = image * STRIDE;
+            // Bounding boxes only hold images of positions inside the simulation
+            if (inside) {
+                float gapX = Math.max(0, Math.max(table[base + MIN_X] - fromX, fromX - table[base + MAX_X]));
+                float gapY = Math.max(0, Math.max(table[base + MIN_Y] - fromY, fromY - table[base + MAX_Y]));
+                if (gapX * gapX + gapY * gapY >= closestDistance2) continue;
+            }
+            float dx = table[base + XX] * toX + table[base + XY] * toY + table[base + OFFSET_X] - fromX;
+            float dy = table[base + YX] * toX + table[base + YY] * toY + table[base + OFFSET_Y] - fromY;
+            float distance2 = dx * dx + dy * dy;
+            if (distance2 < closestDistance2) {
+                closestImage = image;
+                closestX = dx;
+                closestY = dy;
+                closestDistance2 = distance2;
+            }
+        }
+        out[offset] = closestX;
+        out[offset + 1] = closestY;
+        return closestImage;
+    }
+
+    /**
+     * Write a velocity as seen through the given universe into out[offset] and out[offset + 1].
+     */
+    public void transformVelocity(int image, float velocityX, float velocityY, float[] out, int offset) {
+        int base = image * STRIDE;
+        out[offset] = table[base + XX] * velocityX + table[base + XY] * velocityY;
+        out[offset + 1] = table[base + YX] * velocityX + table[base + YY] * velocityY;
+    }
+
+    /**
+     * Write the position and velocity of a boid's image in every universe but the first into out as
+     * x, y, vx, vy groups.
+     * @return the number of images written
+     */
+    public int ghostImages(float x, float y, float velocityX, float velocityY, float[] out) {
+        for (int image = 1; image < count; image++) {
+            int base = (image - 1) * 4;
+            out[base] = imageX(image, x, y);
+            out[base + 1] = imageY(image, x, y);
+            transformVelocity(image, velocityX, velocityY, out, base + 2);
+        }
+        return count - 1;
+    }
+}
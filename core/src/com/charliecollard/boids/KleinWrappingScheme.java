@@ -5,54 +5,35 @@ import com.badlogic.gdx.math.Vector2;
 import javafx.util.Pair;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
-import static com.charliecollard.boids.BoidSimulator.simulationHeight;
-import static com.charliecollard.boids.BoidSimulator.simulationWidth;
-
 public class KleinWrappingScheme extends WrappingScheme {
+    // The nine universes: same, left, right, bottom, top, top-left, top-right, bottom-left and
+    // bottom-right. Universes above and below are mirrored left to right.
+    private static final int[] SAME = {1, 0, 0, 1};
+    private static final int[] MIRRORED = {-1, 0, 0, 1};
+    private static final int[][] IMAGE_LINEAR = {SAME, SAME, SAME, MIRRORED, MIRRORED, MIRRORED, MIRRORED, MIRRORED, MIRRORED};
+    private static final int[] IMAGE_COLUMN = {0, -1, 1, 0, 0, -1, 1, -1, 1};
+    private static final int[] IMAGE_ROW = {0, 0, 0, -1, 1, 1, 1, -1, -1};
+
+    // Immutable, so a thread seeing a stale or fresh copy either way gets a consistent table
+    private IsometryTable isometries;
+
+    @Override
+    public String getName() {
+        return "klein";
+    }
+
     @Override
     public Vector2 relativeDisplacement(Boid from, Boid to) {
         return relativeDisplacement(from.getPosition(), to.getPosition());
     }
 
     @Override
-    public Vector2 relativeDisplacement(final Vector2 from, Vector2 to) {
-        Vector2 flippedHorizontally = to.cpy().sub(simulationWidth/2, 0).scl(-1, 1).add(simulationWidth/2, 0);
-        List<Vector2> possiblePositions = new ArrayList<>();
-
-        // same universe
-        possiblePositions.add(to.cpy());
-        // left universe
-        possiblePositions.add(to.cpy().sub(simulationWidth, 0));
-        // right universe
-        possiblePositions.add(to.cpy().add(simulationWidth, 0));
-        // bottom universe
-        possiblePositions.add(flippedHorizontally.cpy().add(0, -simulationHeight));
-        // top universe
-        possiblePositions.add(flippedHorizontally.cpy().add(0, simulationHeight));
-        // top-left universe
-        possiblePositions.add(flippedHorizontally.cpy().add(-simulationWidth, simulationHeight));
-        // top-right universe
-        possiblePositions.add(flippedHorizontally.cpy().add(simulationWidth, simulationHeight));
-        // bottom-left universe
-        possiblePositions.add(flippedHorizontally.cpy().add(-simulationWidth, -simulationHeight));
-        // bottom-right universe
-        possiblePositions.add(flippedHorizontally.cpy().add(simulationWidth, -simulationHeight));
-
-        Vector2 closestPosition = Collections.min(possiblePositions, new Comparator<Vector2>() {
-            @Override
-            public int compare(Vector2 position1, Vector2 position2) {
-                Vector2 position1Displacement = from.cpy().sub(position1);
-                Vector2 position2Displacement = from.cpy().sub(position2);
-                float distanceDifference =  position1Displacement.len() - position2Displacement.len();
-                if (distanceDifference == 0) return 0;
-                return distanceDifference < 0 ? -1 : 1;
-            }
-        });
-        return closestPosition.sub(from);
+    public Vector2 relativeDisplacement(Vector2 from, Vector2 to) {
+        float[] displacement = new float[2];
+        isometries().nearestImage(from.x, from.y, to.x, to.y, displacement, 0);
+        return new Vector2(displacement[0], displacement[1]);
     }
 
     @Override
@@ -62,14 +43,11 @@ public class KleinWrappingScheme extends WrappingScheme {
 
     @Override
     public Vector2 relativeVelocity(Vector2 myPos, Vector2 otherPos, Vector2 otherVel) {
-        Vector2 otherRelativeDisplacement = relativeDisplacement(myPos, otherPos);
-        Vector2 otherAbsolutePosition = myPos.cpy().add(otherRelativeDisplacement);
-
-        if (Math.floor(otherAbsolutePosition.y / simulationHeight) == Math.floor(myPos.y / simulationHeight)) {
-            return otherVel;
-        } else {
-            return otherVel.scl(-1, 1);
-        }
+        float[] scratch = new float[4];
+        IsometryTable table = isometries();
+        int image = table.nearestImage(myPos.x, myPos.y, otherPos.x, otherPos.y, scratch, 0);
+        table.transformVelocity(image, otherVel.x, otherVel.y, scratch, 2);
+        return new Vector2(scratch[2], scratch[3]);
     }
 
     @Override
@@ -83,7 +61,7 @@ public class KleinWrappingScheme extends WrappingScheme {
         Vector2 newVelocity = currentVelocity.cpy();
 
         boolean oobBottom = position.y < 0;
-        boolean oobTop = position.y >= simulationHeight;
+        boolean oobTop = position.y >= height;
         if (oobBottom || oobTop) {
             return newVelocity.scl(-1, 1);
         }
@@ -98,15 +76,15 @@ public class KleinWrappingScheme extends WrappingScheme {
         boolean oobLeft = newPosition.x < 0;
         boolean oobRight = newPosition.x >= 0;
         if (oobLeft || oobRight) {
-            newPosition.x += simulationWidth * (int) -Math.floor(newPosition.x / simulationWidth);
+            newPosition.x += width * (int) -Math.floor(newPosition.x / width);
         }
 
         // Set up the vertical out of bounds parameters
         boolean oobBottom  = newPosition.y < 0;
-        boolean oobTop = newPosition.y >= simulationHeight;
+        boolean oobTop = newPosition.y >= height;
         if (oobBottom || oobTop) {
-            newPosition.y += simulationHeight * (int) -Math.floor(newPosition.y / simulationHeight);
-            newPosition.sub(simulationWidth - 2*(simulationWidth - newPosition.x), 0);
+            newPosition.y += height * (int) -Math.floor(newPosition.y / height);
+            newPosition.sub(width - 2*(width - newPosition.x), 0);
         }
         return newPosition;
     }
@@ -114,14 +92,14 @@ public class KleinWrappingScheme extends WrappingScheme {
     @Override
     public List<Pair<Vector2, Vector2>> getRenderingPositionsAndVelocities(Boid boid) {
         List<Pair<Vector2, Vector2>> positionsAndVelocities = new ArrayList<>();
-        Vector2 leftPosition = boid.getPosition().sub(simulationWidth, 0);
-        Vector2 topLeftPosition = boid.getPosition().scl(-1, 1).add(0, simulationHeight);
-        Vector2 bottomLeftPosition = boid.getPosition().scl(-1, 1).add(0, -simulationHeight);
-        Vector2 topPosition = boid.getPosition().scl(-1, 1).add(simulationWidth, simulationHeight);
-        Vector2 bottomPosition = boid.getPosition().scl(-1, 1).add(simulationWidth, -simulationHeight);
-        Vector2 topRightPosition = boid.getPosition().scl(-1, 1).add(2*simulationWidth, simulationHeight);
-        Vector2 rightPosition = boid.getPosition().add(simulationWidth, 0);
-        Vector2 bottomRightPosition = boid.getPosition().scl(-1, 1).add(2*simulationWidth, -simulationHeight);
+        Vector2 leftPosition = boid.getPosition().sub(width, 0);
+        Vector2 topLeftPosition = boid.getPosition().scl(-1, 1).add(0, height);
+        Vector2 bottomLeftPosition = boid.getPosition().scl(-1, 1).add(0, -height);
+        Vector2 topPosition = boid.getPosition().scl(-1, 1).add(width, height);
+        Vector2 bottomPosition = boid.getPosition().scl(-1, 1).add(width, -height);
+        Vector2 topRightPosition = boid.getPosition().scl(-1, 1).add(2*width, height);
+        Vector2 rightPosition = boid.getPosition().add(width, 0);
+        Vector2 bottomRightPosition = boid.getPosition().scl(-1, 1).add(2*width, -height);
         positionsAndVelocities.add(new Pair<>(leftPosition, boid.getVelocity()));
         positionsAndVelocities.add(new Pair<>(topLeftPosition, boid.getVelocity().scl(-1, 1)));
         positionsAndVelocities.add(new Pair<>(bottomLeftPosition, boid.getVelocity().scl(-1, 1)));
@@ -132,4 +110,43 @@ public class KleinWrappingScheme extends WrappingScheme {
         positionsAndVelocities.add(new Pair<>(bottomRightPosition, boid.getVelocity().scl(-1, 1)));
         return positionsAndVelocities;
     }
+
+    @Override
+    public int relativeDisplacement(float fromX, float fromY, float toX, float toY, float[] out, int offset) {
+        return isometries().nearestImage(fromX, fromY, toX, toY, out, offset);
+    }
+
+    @Override
+    public void relativeVelocity(int image, float velocityX, float velocityY, float[] out, int offset) {
+        isometries().transformVelocity(image, velocityX, velocityY, out, offset);
+    }
+
+    @Override
+    public void performWrapping(BoidStore store, int id) {
+        float x = store.positionX[id];
+        float y = store.positionY[id];
+        x += width * (int) -Math.floor(x / width);
+        if (y < 0 || y >= height) {
+            y += height * (int) -Math.floor(y / height);
+            x = width - x;
+            store.velocityX[id] = -store.velocityX[id];
+        }
+        store.positionX[id] = x;
+        store.positionY[id] = y;
+    }
+
+    @Override
+    public int ghostImages(float x, float y, float velocityX, float velocityY, float[] out) {
+        return isometries().ghostImages(x, y, velocityX, velocityY, out);
+    }
+
+    // Rebuilt whenever the simulation is resized
+    private IsometryTable isometries() {
+        IsometryTable table = isometries;
+        if (table == null || table.width != width || table.height != height) {
+            table = new IsometryTable(width, height, IMAGE_LINEAR, IMAGE_COLUMN, IMAGE_ROW);
+            isometries = table;
+        }
+        return table;
+    }
 }
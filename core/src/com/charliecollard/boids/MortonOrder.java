@@ -0,0 +1,72 @@
+package com.charliecollard.boids;
+
+import java.util.Arrays;
+
+/**
+ * Reorders a store's boids along a Z-order (Morton) curve through a grid of cells, so that boids close
+ * together in the simulation are close together in memory.
+ *
+ * Boids are spawned in no particular order and drift apart from their spawn order as they fly, so
+ * without this a boid's neighbours are scattered across the whole store and nearly every neighbour
+ * visited is a cache miss once the flock is large. With cells the size of the vision range, every boid
+ * in a cell ends up in one run of slots, and the Z curve keeps most neighbouring cells' runs nearby too.
+ *
+ * Each boid's key is its cell's column and row with their bits interleaved, and ties keep the boids'
+ * current order, so sorting a store that's already in order leaves it alone.
+ */
+public class MortonOrder {
+    // Columns and rows past this share the last one, which is far more than any world needs
+    private static final int MAX_CELL = 0xFFFF;
+
+    private long[] keys = new long[0];
+    private int[] order = new int[0];
+
+    /**
+     * Sort the boids in the store by the cell of the given size they're in.
+     * @return whether any boid changed slot
+     */
+    public boolean sort(BoidStore store, float cellSize) {
+        int count = store.size();
+        if (keys.length < count) {
+            keys = new long[store.capacity()];
+            order = new int[store.capacity()];
+        }
+        float inverseCellSize = 1 / cellSize;
+        boolean sorted = true;
+        long previousKey = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int column = Math.min(MAX_CELL, Math.max(0, (int) (store.positionX[i] * inverseCellSize)));
+            int row = Math.min(MAX_CELL, Math.max(0, (int) (store.positionY[i] * inverseCellSize)));
+            // The slot goes in the low half, so equal cells keep their current order
+            long key = (interleave(column) | interleave(row) << 1) << 32 | i;
+            sorted &= key > previousKey;
+            previousKey = key;
+            keys[i] = key;
+        }
+        if (sorted) return false;
+
+        Arrays.sort(keys, 0, count);
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keys[i];
+        }
+        store.reorder(order);
+        return true;
+    }
+
+    /**
+     * The slot each slot's boid came from in the last sort that moved any.
+     */
+    public int[] getOrder() {
+        return order;
+    }
+
+    // Spread the low 16 bits out to the even bits
+    private static long interleave(int value) {
+        long spread = value & 0xFFFFL;
+        spread = (spread | spread << 8) & 0x00FF00FFL;
+        spread = (spread | spread << 4) & 0x0F0F0F0FL;
+        spread = (spread | spread << 2) & 0x33333333L;
+        spread = (spread | spread << 1) & 0x55555555L;
+        return spread;
+    }
+}
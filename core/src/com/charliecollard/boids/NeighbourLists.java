@@ -0,0 +1,81 @@
+package com.charliecollard.boids;
+
+import java.util.Arrays;
+
+/**
+ * Every boid's neighbours for one tick, in two flat arrays that are reused from tick to tick.
+ *
+ * Neighbours are packed into one float array as dx, dy, vx, vy groups: the displacement to the
+ * neighbour and its velocity, both as seen from the boid. Each boid's neighbours follow on from the
+ * previous boid's, and an offsets array gives where each boid's group starts, so boid i's neighbours run
+ * from {@link #getOffset}(i) for {@link #getCount}(i) groups.
+ *
+ * Lists are built one boid at a time, in order: {@link #reserve} space for a candidate and write it in,
+ * {@link #accept} it if it turns out to be a neighbour, and {@link #endBoid} once the boid's candidates
+ * are done. The arrays only grow, so once the flock has settled a tick allocates nothing.
+ */
+public class NeighbourLists {
+    private int[] offsets = new int[1];
+    private float[] neighbours = new float[4 * 1024];
+    private int boidCount = 0;
+    private int neighbourCount = 0;
+
+    /**
+     * Empty the lists, ready for the first boid.
+     */
+    public void clear(int expectedBoids) {
+        if (offsets.length < expectedBoids + 1) {
+            offsets = new int[expectedBoids + 1];
+        }
+        boidCount = 0;
+        neighbourCount = 0;
+    }
+
+    /**
+     * Make room for one more neighbour of the boid in progress.
+     * @return the index in {@link #getNeighbours()} to write its dx, dy, vx, vy at
+     */
+    public int reserve() {
+        if (4 * neighbourCount + 4 > neighbours.length) {
+            neighbours = Arrays.copyOf(neighbours, neighbours.length * 2);
+        }
+        return 4 * neighbourCount;
+    }
+
+    /**
+     * Keep the neighbour last written at the reserved index.
+     */
+    public void accept() {
+        neighbourCount += 1;
+    }
+
+    public void endBoid() {
+        if (boidCount + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        boidCount += 1;
+        offsets[boidCount] = neighbourCount;
+    }
+
+    // Changes whenever the array grows, so fetch it again after reserving
+    public float[] getNeighbours() {
+        return neighbours;
+    }
+
+    public int getOffset(int boid) {
+        return 4 * offsets[boid];
+    }
+
+    public int getCount(int boid) {
+        return offsets[boid + 1] - offsets[boid];
+    }
+
+    public int getBoidCount() {
+        return boidCount;
+    }
+
+    // Neighbours across every boid
+    public int getTotalCount() {
+        return neighbourCount;
+    }
+}
@@ -0,0 +1,279 @@
+package com.charliecollard.boids;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a simulation tick across a fork-join pool. Boids are split into ranges; for each boid a worker
+ * finds its neighbours and steers it, reading positions and velocities from the store's current buffer
+ * and writing the results into the next buffer. Once every boid is done the buffers are swapped and
+ * the boids are wrapped, again in parallel.
+ *
+ * Since no boid sees another boid's new state until the swap, the tick gives exactly the same result as
+ * the single-threaded update, whatever the thread count. With {@link BoidSimulator#verifyNeighbours} on,
+ * each worker checks every boid's neighbours against a brute force search just as the single-threaded
+ * update does.
+ *
+ * Workers time how long they spend finding neighbours and how long steering for one boid in
+ * {@link BoidSimulator#PHASE_TIMING_SAMPLE}, so the steering pass's time can be split between the two
+ * for {@link TickMetrics} without reading the clock for every boid.
+ */
+public class ParallelUpdater {
+    private static final int BOIDS_PER_TASK = 512;
+
+    private final ForkJoinPool pool;
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    // State for the tick in progress, published to the workers by ForkJoinPool.invoke
+    private BoidStore store;
+    private SpatialGrid grid;
+    private VerletLists verletLists;
+    private CellAggregates aggregates;
+    private TopologicalNeighbours topological;
+    private SimulationConfig config;
+    private WrappingScheme wrappingScheme;
+    private float deltaTime;
+    private final AtomicLong pairsEvaluated = new AtomicLong();
+    private final AtomicLong pairsAccepted = new AtomicLong();
+    private final AtomicLong searchNanos = new AtomicLong();
+    private final AtomicLong steerNanos = new AtomicLong();
+    private long lastSearchWallNanos;
+    private long lastSteerWallNanos;
+    private long lastWrapWallNanos;
+
+    public ParallelUpdater(int threadCount) {
+        pool = new ForkJoinPool(threadCount);
+    }
+
+    /**
+     * Advance every boid in the store by one tick.
+     * @param grid a grid already built from the store's current positions, or null
+     * @param verletLists lists already built for the store's current positions, or null
+     * @param aggregates cells already built from the store's current state, or null
+     * @param topological a k nearest neighbour search already built from the store's current positions,
+     *                    or null. With no grid, lists, cells or search every pair is compared.
+     * @return the number of pairs of boids tested for being neighbours
+     */
+    public long update(BoidStore store, SpatialGrid grid, VerletLists verletLists, CellAggregates aggregates,
+                       TopologicalNeighbours topological, SimulationConfig config, float deltaTime) {
+        store.ensureNextBuffer();
+        pairsEvaluated.set(0);
+        pairsAccepted.set(0);
+        searchNanos.set(0);
+        steerNanos.set(0);
+        this.store = store;
+        this.grid = grid;
+        this.verletLists = verletLists;
+        this.aggregates = aggregates;
+        this.topological = topological;
+        this.config = config;
+        this.wrappingScheme = config.getWrappingScheme();
+        this.deltaTime = deltaTime;
+        long start = System.nanoTime();
+        pool.invoke(new TickTask(false, 0, store.size()));
+        store.swapBuffers();
+        long steered = System.nanoTime();
+        pool.invoke(new TickTask(true, 0, store.size()));
+        lastWrapWallNanos = System.nanoTime() - steered;
+        long steeringPass = steered - start;
+        long busy = searchNanos.get() + steerNanos.get();
+        lastSearchWallNanos = busy == 0 ? 0 : steeringPass * searchNanos.get() / busy;
+        lastSteerWallNanos = steeringPass - lastSearchWallNanos;
+        this.store = null;
+        this.grid = null;
+        this.verletLists = null;
+        this.aggregates = null;
+        this.topological = null;
+        return pairsEvaluated.get();
+    }
+
+    // Pairs found to be neighbours in the last update
+    public long getLastPairsAccepted() {
+        return pairsAccepted.get();
+    }
+
+    // The last update's steering pass, apportioned by how long the sampled boids spent finding neighbours
+    public long getLastSearchNanos() {
+        return lastSearchWallNanos;
+    }
+
+    // The rest of the last update's steering pass
+    public long getLastSteerNanos() {
+        return lastSteerWallNanos;
+    }
+
+    public long getLastWrapNanos() {
+        return lastWrapWallNanos;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    // Returns the number of pairs tested
+    private int steer(int boid, Scratch scratch) {
+        boolean timed = boid % BoidSimulator.PHASE_TIMING_SAMPLE == 0;
+        long start = timed ? System.nanoTime() : 0;
+        float x = store.positionX[boid];
+        float y = store.positionY[boid];
+        int count = 0;
+        int tested;
+        if (aggregates != null) {
+            tested = aggregates.sums(boid, x, y, scratch.sums, 0);
+            long searched = timed ? System.nanoTime() : 0;
+            Boid.steer(config, store, boid, deltaTime, scratch.sums, 0);
+            if (timed) {
+                scratch.searchNanos += searched - start;
+                scratch.steerNanos += System.nanoTime() - searched;
+            }
+            scratch.accepted += (int) scratch.sums[0];
+            return tested;
+        } else if (topological != null) {
+            tested = topological.find(boid, scratch.topologicalSearch);
+            count = scratch.topologicalSearch.getCount();
+        } else if (grid != null) {
+            int candidateCount = grid.findCandidates(boid, x, y, config.visionRange, scratch.query);
+            int[] candidates = scratch.query.getCandidates();
+            for (int c = 0; c < candidateCount; c++) {
+                count = scratch.addIfNeighbour(boid, candidates[c], count);
+            }
+            tested = candidateCount;
+        } else if (verletLists != null) {
+            int[] candidates = verletLists.getCandidates();
+            int end = verletLists.getEnd(boid);
+            for (int c = verletLists.getStart(boid); c < end; c++) {
+                count = scratch.addIfNeighbour(boid, candidates[c], count);
+            }
+            tested = end - verletLists.getStart(boid);
+        } else {
+            for (int other = 0; other < store.size(); other++) {
+                if (other != boid) {
+                    count = scratch.addIfNeighbour(boid, other, count);
+                }
+            }
+            tested = store.size() - 1;
+        }
+        long searched = timed ? System.nanoTime() : 0;
+        float[] neighbours = topological != null ? scratch.topologicalSearch.getNeighbours() : scratch.neighbours;
+        Boid.steer(config, store, boid, deltaTime, neighbours, 0, count);
+        if (timed) {
+            scratch.searchNanos += searched - start;
+            scratch.steerNanos += System.nanoTime() - searched;
+        }
+        scratch.accepted += count;
+        if (BoidSimulator.verifyNeighbours && (topological != null || grid != null || verletLists != null)) {
+            verifyNeighbours(boid, neighbours, count, scratch);
+        }
+        return tested;
+    }
+
+    // Check the search found exactly what comparing against every other boid finds, in the same order
+    private void verifyNeighbours(int boid, float[] found, int count, Scratch scratch) {
+        float[] expected;
+        int expectedCount = 0;
+        if (topological != null) {
+            topological.findExhaustively(boid, scratch.expectedTopological);
+            expected = scratch.expectedTopological.getNeighbours();
+            expectedCount = scratch.expectedTopological.getCount();
+        } else {
+            // Collected in the scratch neighbour list, which is swapped out for the search's meanwhile
+            float[] searched = scratch.neighbours;
+            scratch.neighbours = scratch.expected;
+            for (int other = 0; other < store.size(); other++) {
+                if (other != boid) {
+                    expectedCount = scratch.addIfNeighbour(boid, other, expectedCount);
+                }
+            }
+            expected = scratch.neighbours;
+            scratch.expected = expected;
+            scratch.neighbours = searched;
+        }
+        boolean same = count == expectedCount;
+        for (int n = 0; same && n < 4 * count; n++) {
+            same = expected[n] == found[n];
+        }
+        if (!same) {
+            throw new IllegalStateException("Neighbour search disagrees with brute force for boid at ("
+                    + store.positionX[boid] + ", " + store.positionY[boid] + "): expected " + expectedCount
+                    + " neighbours but found " + count);
+        }
+    }
+
+    private class TickTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean wrapping;
+        private final int start;
+        private final int end;
+
+        TickTask(boolean wrapping, int start, int end) {
+            this.wrapping = wrapping;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > BOIDS_PER_TASK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new TickTask(wrapping, start, middle), new TickTask(wrapping, middle, end));
+            } else if (wrapping) {
+                for (int boid = start; boid < end; boid++) {
+                    wrappingScheme.performWrapping(store, boid);
+                }
+            } else {
+                Scratch workerScratch = scratch.get();
+                workerScratch.searchNanos = 0;
+                workerScratch.steerNanos = 0;
+                workerScratch.accepted = 0;
+                long tested = 0;
+                for (int boid = start; boid < end; boid++) {
+                    tested += steer(boid, workerScratch);
+                }
+                pairsEvaluated.addAndGet(tested);
+                pairsAccepted.addAndGet(workerScratch.accepted);
+                searchNanos.addAndGet(workerScratch.searchNanos);
+                steerNanos.addAndGet(workerScratch.steerNanos);
+            }
+        }
+    }
+
+    // Per-thread buffers, reused from tick to tick
+    private class Scratch {
+        private final SpatialGrid.Query query = new SpatialGrid.Query();
+        private final TopologicalNeighbours.Search topologicalSearch = new TopologicalNeighbours.Search();
+        private float[] neighbours = new float[4 * 64];
+        // For --verify-neighbours
+        private final TopologicalNeighbours.Search expectedTopological = new TopologicalNeighbours.Search();
+        private float[] expected = new float[4 * 64];
+        private final float[] sums = new float[CellAggregates.SUMS];
+        private long searchNanos;
+        private long steerNanos;
+        private long accepted;
+
+        // Append other to the packed neighbour list if it's within vision range, returning the new count
+        private int addIfNeighbour(int boid, int other, int count) {
+            if (4 * count + 4 > neighbours.length) {
+                neighbours = Arrays.copyOf(neighbours, neighbours.length * 2);
+            }
+            int base = 4 * count;
+            int image = wrappingScheme.relativeDisplacement(store.positionX[boid], store.positionY[boid],
+                    store.positionX[other], store.positionY[other], neighbours, base);
+            float dx = neighbours[base];
+            float dy = neighbours[base + 1];
+            float distance = (float) Math.sqrt(dx * dx + dy * dy);
+            if (distance < config.visionRange) {
+                wrappingScheme.relativeVelocity(image, store.velocityX[other], store.velocityY[other], neighbours, base + 2);
+                return count + 1;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.charliecollard.boids;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a headless simulation for every combination of a grid of weights, vision ranges and wrapping
+ * schemes, several at a time on a thread pool, and writes a CSV table of the steady-state polarization
+ * each one settles into.
+ *
+ * Each run starts from a copy of the base config with one combination filled in, runs {@link #ticks}
+ * ticks and averages the polarization over the last {@link #averageTicks} of them. Runs share nothing but
+ * the rendering and output settings, which are static, so trajectory recording, streaming, checkpoints,
+ * the metrics CSV, loading, resuming, replaying and viewing are all switched off for the sweep.
+ */
+public class ParameterSweep {
+    public static int ticks = 2000;
+    public static int averageTicks = 500;
+    public static int threadCount = Runtime.getRuntime().availableProcessors();
+
+    private final SimulationConfig baseConfig;
+    private final int[] separationWeights;
+    private final int[] cohesionWeights;
+    private final int[] alignmentWeights;
+    private final float[] visionRanges;
+    private final String[] schemes;
+
+    public ParameterSweep(SimulationConfig baseConfig, int[] separationWeights, int[] cohesionWeights,
+                          int[] alignmentWeights, float[] visionRanges, String[] schemes) {
+        this.baseConfig = baseConfig;
+        this.separationWeights = separationWeights;
+        this.cohesionWeights = cohesionWeights;
+        this.alignmentWeights = alignmentWeights;
+        this.visionRanges = visionRanges;
+        this.schemes = schemes;
+    }
+
+    /**
+     * Run every combination and write the results to the given file, in the order the combinations were
+     * listed whatever order they finish in. Progress goes to the given stream.
+     */
+    public void run(File output, PrintStream progress) throws IOException {
+        BoidSimulator.renderingOn = false;
+        BoidSimulator.debugCorrelations = false;
+        BoidSimulator.filepathToLoad = null;
+        BoidSimulator.replayFile = null;
+        BoidSimulator.streamAddress = null;
+        TrajectoryRecorder.recordFile = null;
+        StreamServer.streamPort = -1;
+        CheckpointWriter.checkpointEvery = 0;
+        CheckpointWriter.resume = false;
+        TickMetrics.csvFile = null;
+
+        List<SimulationConfig> configs = new ArrayList<>();
+        for (String scheme : schemes) {
+            for (float visionRange : visionRanges) {
+                for (int separation : separationWeights) {
+                    for (int cohesion : cohesionWeights) {
+                        for (int alignment : alignmentWeights) {
+                            SimulationConfig config = baseConfig.copy();
+                            config.setWrappingScheme(WrappingScheme.forName(scheme));
+                            config.visionRange = visionRange;
+                            config.separationWeight = separation;
+                            config.cohesionWeight = cohesion;
+                            config.alignmentWeight = alignment;
+                            configs.add(config);
+                        }
+                    }
+                }
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(output))) {
+            List<Future<SweepResult>> futures = new ArrayList<>();
+            for (SimulationConfig config : configs) {
+                futures.add(pool.submit(new SweepRun(config)));
+            }
+            writer.write("scheme,separation,cohesion,alignment,visionRange,boids,ticks,meanPolarization,stdPolarization,seconds");
+            writer.newLine();
+            for (int i = 0; i < futures.size(); i++) {
+                SweepResult result = futures.get(i).get();
+                SimulationConfig config = result.config;
+                writer.write(String.format(Locale.ROOT, "%s,%d,%d,%d,%.3f,%d,%d,%.6f,%.6f,%.3f",
+                        config.getWrappingScheme().getName(), config.separationWeight, config.cohesionWeight,
+                        config.alignmentWeight, config.visionRange, config.boidCount, ticks,
+                        result.meanPolarization, result.stdPolarization, result.seconds));
+                writer.newLine();
+                writer.flush();
+                progress.println(String.format(Locale.ROOT, "Sweep run %d of %d done: polarization %.4f",
+                        i + 1, futures.size(), result.meanPolarization));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Sweep run failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Parse a comma separated list of whole numbers, as given on the command line.
+     */
+    public static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.valueOf(parts[i].trim());
+        }
+        return values;
+    }
+
+    public static float[] parseFloats(String list) {
+        String[] parts = list.split(",");
+        float[] values = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Float.valueOf(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static class SweepResult {
+        SimulationConfig config;
+        double meanPolarization;
+        double stdPolarization;
+        double seconds;
+    }
+
+    private static class SweepRun implements Callable<SweepResult> {
+        private final SimulationConfig config;
+
+        SweepRun(SimulationConfig config) {
+            this.config = config;
+        }
+
+        @Override
+        public SweepResult call() {
+            long start = System.nanoTime();
+            BoidSimulator boidSimulator = new BoidSimulator(config);
+            int averaged = Math.max(1, Math.min(averageTicks, ticks));
+            double sum = 0;
+            double sumSquares = 0;
+            for (int tick = 0; tick < ticks; tick++) {
+                boidSimulator.update();
+                if (tick >= ticks - averaged) {
+                    double polarization = boidSimulator.getPolarization();
+                    sum += polarization;
+                    sumSquares += polarization * polarization;
+                }
+            }
+            boidSimulator.shutdown();
+
+            SweepResult result = new SweepResult();
+            result.config = config;
+            result.meanPolarization = sum / averaged;
+            result.stdPolarization = Math.sqrt(Math.max(0, sumSquares / averaged - result.meanPolarization * result.meanPolarization));
+            result.seconds = (System.nanoTime() - start) / 1e9;
+            return result;
+        }
+    }
+}
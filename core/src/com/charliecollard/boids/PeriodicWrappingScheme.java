@@ -7,10 +7,12 @@ import javafx.util.Pair;
 import java.util.ArrayList;
 import java.util.List;
 
-import static com.charliecollard.boids.BoidSimulator.simulationHeight;
-import static com.charliecollard.boids.BoidSimulator.simulationWidth;
-
 public class PeriodicWrappingScheme extends WrappingScheme {
+    @Override
+    public String getName() {
+        return "periodic";
+    }
+
     @Override
     public Vector2 relativeDisplacement(Boid from, Boid to) {
         return relativeDisplacement(from.getPosition(), to.getPosition());
@@ -19,25 +21,25 @@ public class PeriodicWrappingScheme extends WrappingScheme {
     @Override
     public Vector2 relativeDisplacement(Vector2 from, Vector2 to) {
         float xDisplacement, yDisplacement;
-        float leftHorDist = Math.abs(from.x-(to.x-simulationWidth));
+        float leftHorDist = Math.abs(from.x-(to.x-width));
         float middleHorDist = Math.abs(from.x-to.x);
-        float rightHorDist = Math.abs(from.x-(to.x+simulationWidth));
-        float bottomVerDist = Math.abs(from.y-(to.y-simulationHeight));
+        float rightHorDist = Math.abs(from.x-(to.x+width));
+        float bottomVerDist = Math.abs(from.y-(to.y-height));
         float middleVerDist = Math.abs(from.y-to.y);
-        float topVerDist = Math.abs(from.y-(to.y+simulationHeight));
+        float topVerDist = Math.abs(from.y-(to.y+height));
         if (leftHorDist < middleHorDist && leftHorDist < rightHorDist) {
-            xDisplacement = from.x - (to.x-simulationWidth);
+            xDisplacement = from.x - (to.x-width);
         } else if (middleHorDist < leftHorDist && middleHorDist < rightHorDist) {
             xDisplacement = from.x - to.x;
         } else {
-            xDisplacement = from.x - (to.x + simulationWidth);
+            xDisplacement = from.x - (to.x + width);
         }
         if (bottomVerDist < middleVerDist && bottomVerDist < topVerDist) {
-            yDisplacement = from.y - (to.y-simulationHeight);
+            yDisplacement = from.y - (to.y-height);
         } else if (middleVerDist < bottomVerDist && middleVerDist < topVerDist) {
             yDisplacement = from.y - to.y;
         } else {
-            yDisplacement = from.y - (to.y + simulationHeight);
+            yDisplacement = from.y - (to.y + height);
         }
         return new Vector2(-xDisplacement, -yDisplacement);
     }
@@ -64,11 +66,11 @@ public class PeriodicWrappingScheme extends WrappingScheme {
 
     @Override
     public Vector2 wrappedPosition(Vector2 positionToWrap) {
-        if (positionToWrap.x < 0 || positionToWrap.x >= simulationWidth) {
-            positionToWrap.x += simulationWidth * (int) -Math.floor(positionToWrap.x / simulationWidth);
+        if (positionToWrap.x < 0 || positionToWrap.x >= width) {
+            positionToWrap.x += width * (int) -Math.floor(positionToWrap.x / width);
         }
-        if (positionToWrap.y < 0 || positionToWrap.y >= simulationHeight) {
-            positionToWrap.y += simulationHeight * (int) -Math.floor(positionToWrap.y / simulationHeight);
+        if (positionToWrap.y < 0 || positionToWrap.y >= height) {
+            positionToWrap.y += height * (int) -Math.floor(positionToWrap.y / height);
         }
         return positionToWrap;
     }
@@ -76,14 +78,85 @@ public class PeriodicWrappingScheme extends WrappingScheme {
     @Override
     public List<Pair<Vector2, Vector2>> getRenderingPositionsAndVelocities(Boid boid) {
         List<Pair<Vector2, Vector2>> positionsAndVelocities = new ArrayList<>();
-        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(-simulationWidth, -simulationHeight), boid.getVelocity()));
-        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(0, -simulationHeight), boid.getVelocity()));
-        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(simulationWidth, -simulationHeight), boid.getVelocity()));
-        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(-simulationWidth, 0), boid.getVelocity()));
-        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(simulationWidth, 0), boid.getVelocity()));
-        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(-simulationWidth, simulationHeight), boid.getVelocity()));
-        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(0, simulationHeight), boid.getVelocity()));
-        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(simulationWidth, simulationHeight), boid.getVelocity()));
+        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(-width, -height), boid.getVelocity()));
+        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(0, -height), boid.getVelocity()));
+        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(width, -height), boid.getVelocity()));
+        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(-width, 0), boid.getVelocity()));
+        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(width, 0), boid.getVelocity()));
+        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(-width, height), boid.getVelocity()));
+        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(0, height), boid.getVelocity()));
+        positionsAndVelocities.add(new Pair<>(boid.getPosition().add(width, height), boid.getVelocity()));
         return positionsAndVelocities;
     }
+
+    @Override
+    public int relativeDisplacement(float fromX, float fromY, float toX, float toY, float[] out, int offset) {
+        // Same choices as the Vector2 version; the image index is 3 * horizontal + vertical where
+        // 0 is the middle, 1 is left/bottom and 2 is right/top
+        float xDisplacement, yDisplacement;
+        int horizontal, vertical;
+        float leftHorDist = Math.abs(fromX-(toX-width));
+        float middleHorDist = Math.abs(fromX-toX);
+        float rightHorDist = Math.abs(fromX-(toX+width));
+        float bottomVerDist = Math.abs(fromY-(toY-height));
+        float middleVerDist = Math.abs(fromY-toY);
+        float topVerDist = Math.abs(fromY-(toY+height));
+        if (leftHorDist < middleHorDist && leftHorDist < rightHorDist) {
+            xDisplacement = fromX - (toX-width);
+            horizontal = 1;
+        } else if (middleHorDist < leftHorDist && middleHorDist < rightHorDist) {
+            xDisplacement = fromX - toX;
+            horizontal = 0;
+        } else {
+            xDisplacement = fromX - (toX + width);
+            horizontal = 2;
+        }
+        if (bottomVerDist < middleVerDist && bottomVerDist < topVerDist) {
+            yDisplacement = fromY - (toY-height);
+            vertical = 1;
+        } else if (middleVerDist < bottomVerDist && middleVerDist < topVerDist) {
+            yDisplacement = fromY - toY;
+            vertical = 0;
+        } else {
+            yDisplacement = fromY - (toY + height);
+            vertical = 2;
+        }
+        out[offset] = -xDisplacement;
+        out[offset + 1] = -yDisplacement;
+        return 3 * horizontal + vertical;
+    }
+
+    @Override
+    public void relativeVelocity(int image, float velocityX, float velocityY, float[] out, int offset) {
+        out[offset] = velocityX;
+        out[offset + 1] = velocityY;
+    }
+
+    @Override
+    public void performWrapping(BoidStore store, int id) {
+        float x = store.positionX[id];
+        float y = store.positionY[id];
+        if (x < 0 || x >= width) {
+            store.positionX[id] = x + width * (int) -Math.floor(x / width);
+        }
+        if (y < 0 || y >= height) {
+            store.positionY[id] = y + height * (int) -Math.floor(y / height);
+        }
+    }
+
+    @Override
+    public int ghostImages(float x, float y, float velocityX, float velocityY, float[] out) {
+        int written = 0;
+        for (int row = -1; row <= 1; row++) {
+            for (int column = -1; column <= 1; column++) {
+                if (row == 0 && column == 0) continue;
+                out[written * 4] = x + column * width;
+                out[written * 4 + 1] = y + row * height;
+                out[written * 4 + 2] = velocityX;
+                out[written * 4 + 3] = velocityY;
+                written += 1;
+            }
+        }
+        return written;
+    }
 }
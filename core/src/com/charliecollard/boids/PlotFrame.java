@@ -21,14 +21,14 @@ public class PlotFrame extends ApplicationFrame {
     private ChartPanel chartPanel;
     private List<Integer> buckets = new ArrayList<>();
 
-    public PlotFrame(String title) {
+    public PlotFrame(String title, int simulationWidth) {
         super(title);
         for (int i=0; i<100; i++) {
             buckets.add(i*10);
         }
 
         dataset = new DefaultXYDataset();
-        JFreeChart chart = createChart(dataset);
+        JFreeChart chart = createChart(dataset, simulationWidth);
         chartPanel = new ChartPanel(chart);
         chartPanel.setPreferredSize(new Dimension(500, 270));
         setContentPane(chartPanel);
@@ -36,7 +36,7 @@ public class PlotFrame extends ApplicationFrame {
         this.pack();
     }
 
-    private static JFreeChart createChart(XYDataset dataset) {
+    private static JFreeChart createChart(XYDataset dataset, int simulationWidth) {
         JFreeChart chart = ChartFactory.createScatterPlot(
                 "Correlations against distance",
                 "Distance",
@@ -52,7 +52,7 @@ public class PlotFrame extends ApplicationFrame {
         plot.setDomainGridlinePaint(Color.GRAY);
         plot.setRangeGridlinesVisible(true);
         plot.setRangeGridlinePaint(Color.GRAY);
-        plot.getDomainAxis().setRange(0, BoidSimulator.simulationWidth/2);
+        plot.getDomainAxis().setRange(0, simulationWidth/2);
         plot.getRangeAxis().setAutoRange(true);
         ValueMarker marker = new ValueMarker(0);
         marker.setPaint(Color.black);
@@ -0,0 +1,79 @@
+package com.charliecollard.boids;
+
+/**
+ * The parameters of one simulation: the world, the flocking weights and how a tick is run. Every
+ * {@link BoidSimulator} has its own, so several simulations with different settings can run side by side
+ * in one JVM.
+ *
+ * The world's size is kept by the wrapping scheme, since it's the scheme that needs it in the inner
+ * loops; setting either the size or the scheme keeps the two in step.
+ */
+public class SimulationConfig {
+    public int boidCount = 200;
+    public float visionRange = 40f;
+    public int separationWeight = 60;
+    public int cohesionWeight = 20;
+    public int alignmentWeight = 1;
+    public int boidSusceptibility = 20;
+    public int updateMode = Boid.UPDATE_DETERMINISTIC;
+    public int neighbourSearch = BoidSimulator.NEIGHBOURS_GRID;
+    public int threadCount = 1;
+    public int neighbourMode = BoidSimulator.NEIGHBOUR_MODE_METRIC;
+    // How many nearest neighbours each boid heeds in topological mode
+    public int topologicalCount = 7;
+    // For Verlet list neighbour search, 0 picks a skin from the timestep
+    public float verletSkin = 0;
+    // Ticks between sorting the boids' storage into Morton order, 0 for never
+    public int resortEvery = 0;
+    public int spawnDistribution = BoidSpawner.SPAWN_UNIFORM;
+    // The same seed and distribution always give the same starting flock
+    public long seed = System.nanoTime();
+    private WrappingScheme wrappingScheme = new PeriodicWrappingScheme();
+
+    public SimulationConfig copy() {
+        SimulationConfig copy = new SimulationConfig();
+        copy.boidCount = boidCount;
+        copy.visionRange = visionRange;
+        copy.separationWeight = separationWeight;
+        copy.cohesionWeight = cohesionWeight;
+        copy.alignmentWeight = alignmentWeight;
+        copy.boidSusceptibility = boidSusceptibility;
+        copy.updateMode = updateMode;
+        copy.neighbourSearch = neighbourSearch;
+        copy.threadCount = threadCount;
+        copy.neighbourMode = neighbourMode;
+        copy.topologicalCount = topologicalCount;
+        copy.verletSkin = verletSkin;
+        copy.resortEvery = resortEvery;
+        copy.spawnDistribution = spawnDistribution;
+        copy.seed = seed;
+        // Schemes hold caches sized to the world, so each simulation gets its own
+        copy.setWrappingScheme(WrappingScheme.forName(wrappingScheme.getName()));
+        copy.setSize(getWidth(), getHeight());
+        return copy;
+    }
+
+    public WrappingScheme getWrappingScheme() {
+        return wrappingScheme;
+    }
+
+    /**
+     * Switch to another wrapping scheme, which takes on the current world size.
+     */
+    public void setWrappingScheme(WrappingScheme wrappingScheme) {
+        wrappingScheme.setSize(getWidth(), getHeight());
+        this.wrappingScheme = wrappingScheme;
+    }
+
+    public int getWidth() {
+        return wrappingScheme.getWidth();
+    }
+
+    public int getHeight() {
+        return wrappingScheme.getHeight();
+    }
+
+    public void setSize(int width, int height) {
+        wrappingScheme.setSize(width, height);
+    }
+}
@@ -0,0 +1,25 @@
+package com.charliecollard.boids;
+
+/**
+ * The state of the simulation at the end of one tick, as handed from the simulation thread to the
+ * renderer through a {@link FrameExchange}. A frame is only written by the simulation thread before it
+ * is published, and only read by the render thread after it has been acquired, so it needs no locking.
+ */
+public class SimulationFrame {
+    public final BoidStore boids = new BoidStore();
+    // -1 until the frame has been filled in for the first time
+    public long tick = -1;
+    public long publishedNanos;
+    public int width;
+    public int height;
+    public WrappingScheme wrappingScheme;
+    public float visionRange;
+    public int separationWeight;
+    public int cohesionWeight;
+    public int alignmentWeight;
+    public float averageVelocityX;
+    public float averageVelocityY;
+    public float polarization;
+    public long pairsTested;
+    public long pairsAccepted;
+}
@@ -0,0 +1,56 @@
+package com.charliecollard.boids;
+
+/**
+ * Runs the simulation on its own thread at {@link BoidSimulator#tickRate} ticks per second, whatever
+ * the frame rate, and publishes a frame after every tick for the renderer.
+ *
+ * Ticks are scheduled against a fixed clock, so a tick that runs long is made up for by sleeping less
+ * after the next ones. If the simulation falls more than {@link #MAX_TICKS_BEHIND} ticks behind it
+ * stops trying to catch up and carries on from the current time, running as fast as it can.
+ */
+public class SimulationThread extends Thread {
+    private static final int MAX_TICKS_BEHIND = 5;
+
+    private final BoidSimulator boidSimulator;
+    private volatile boolean running = true;
+
+    public SimulationThread(BoidSimulator boidSimulator) {
+        super("Simulation");
+        this.boidSimulator = boidSimulator;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        long tickNanos = 1000000000L / Math.max(1, BoidSimulator.tickRate);
+        long nextTick = System.nanoTime();
+        while (running) {
+            boidSimulator.update();
+            boidSimulator.publishFrame();
+            nextTick += tickNanos;
+            long wait = nextTick - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else if (wait < -MAX_TICKS_BEHIND * tickNanos) {
+                nextTick = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Stop after the tick in progress and wait for the thread to finish.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
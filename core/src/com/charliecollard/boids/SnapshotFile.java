@@ -0,0 +1,194 @@
+package com.charliecollard.boids;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Reads and writes saved simulation state. A snapshot is a little-endian header followed by four
+ * blocks of floats holding every boid's x position, y position, x velocity and y velocity:
+ *
+ * <pre>
+ *  0  magic "BOID"            24  vision range (float)
+ *  4  version                 28  separation weight
+ *  8  header length in bytes  32  cohesion weight
+ * 12  boid count              36  alignment weight
+ * 16  simulation width        40  boid susceptibility
+ * 20  simulation height       44  wrapping scheme name length, then the name padded to 4 bytes
+ * </pre>
+ *
+ * The blocks start at the header length, so later versions can add header fields that older readers
+ * skip over. Loading maps the file into memory and copies each block straight into the store.
+ *
+ * Saves used to be Java serialized lists of boids with a .ser extension; {@link #convertSerialized}
+ * turns one of those into a snapshot.
+ */
+public class SnapshotFile {
+    public static final String EXTENSION = ".boids";
+    public static final String SERIALIZED_EXTENSION = ".ser";
+    public static final int VERSION = 1;
+    private static final int MAGIC = 'B' | 'O' << 8 | 'I' << 16 | 'D' << 24;
+    private static final int FIXED_HEADER_BYTES = 48;
+    private static final int WRITE_CHUNK_FLOATS = 16 * 1024;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Save the boids in the store along with the weights, vision range, world size and wrapping scheme
+     * of the simulation's config. The file is forced to disk before this returns.
+     */
+    public static void write(File file, BoidStore store, SimulationConfig config) throws IOException {
+        if (!store.isInIdOrder()) {
+            // Saved by id, so a save taken after the store has been reordered loads with the same ids
+            BoidStore ordered = new BoidStore(store.size());
+            ordered.copyFrom(store);
+            store = ordered;
+        }
+        byte[] schemeName = config.getWrappingScheme().getName().getBytes(ASCII);
+        int headerBytes = FIXED_HEADER_BYTES + (schemeName.length + 3) / 4 * 4;
+        int count = store.size();
+
+        ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(headerBytes);
+        header.putInt(count);
+        header.putInt(config.getWidth());
+        header.putInt(config.getHeight());
+        header.putFloat(config.visionRange);
+        header.putInt(config.separationWeight);
+        header.putInt(config.cohesionWeight);
+        header.putInt(config.alignmentWeight);
+        header.putInt(config.boidSusceptibility);
+        header.putInt(schemeName.length);
+        header.put(schemeName);
+        header.position(0);
+
+        try (FileOutputStream fileOut = new FileOutputStream(file);
+             FileChannel channel = fileOut.getChannel()) {
+            writeFully(channel, header);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(WRITE_CHUNK_FLOATS * 4).order(ByteOrder.LITTLE_ENDIAN);
+            writeBlock(channel, chunk, store.positionX, count);
+            writeBlock(channel, chunk, store.positionY, count);
+            writeBlock(channel, chunk, store.velocityX, count);
+            writeBlock(channel, chunk, store.velocityY, count);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Replace the contents of the store with the boids in a snapshot, and restore the weights, vision
+     * range, world size and wrapping scheme it was saved with into the config.
+     */
+    public static void read(File file, BoidStore store, SimulationConfig config) throws IOException {
+        try (FileInputStream fileIn = new FileInputStream(file);
+             FileChannel channel = fileIn.getChannel()) {
+            long fileBytes = channel.size();
+            if (fileBytes < FIXED_HEADER_BYTES) {
+                throw new IOException(file + " is too short to be a snapshot");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileBytes);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            int version = mapped.getInt(4);
+            if (version < 1 || version > VERSION) {
+                throw new IOException(file + " is snapshot version " + version + ", only up to " + VERSION + " can be read");
+            }
+            int headerBytes = mapped.getInt(8);
+            int count = mapped.getInt(12);
+            int schemeNameLength = mapped.getInt(44);
+            if (count < 0 || schemeNameLength < 0 || FIXED_HEADER_BYTES + schemeNameLength > headerBytes
+                    || headerBytes + 16L * count > fileBytes) {
+                throw new IOException(file + " is truncated or corrupt");
+            }
+            byte[] schemeName = new byte[schemeNameLength];
+            mapped.position(FIXED_HEADER_BYTES);
+            mapped.get(schemeName);
+            WrappingScheme wrappingScheme;
+            try {
+                wrappingScheme = WrappingScheme.forName(new String(schemeName, ASCII));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " uses an unknown wrapping scheme", e);
+            }
+
+            mapped.position(headerBytes);
+            FloatBuffer blocks = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            store.clear();
+            store.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                store.add(0, 0, 0, 0);
+            }
+            blocks.get(store.positionX, 0, count);
+            blocks.get(store.positionY, 0, count);
+            blocks.get(store.velocityX, 0, count);
+            blocks.get(store.velocityY, 0, count);
+
+            config.setWrappingScheme(wrappingScheme);
+            config.setSize(mapped.getInt(16), mapped.getInt(20));
+            config.visionRange = mapped.getFloat(24);
+            config.separationWeight = mapped.getInt(28);
+            config.cohesionWeight = mapped.getInt(32);
+            config.alignmentWeight = mapped.getInt(36);
+            config.boidSusceptibility = mapped.getInt(40);
+        }
+    }
+
+    /**
+     * Convert an old Java serialized save into a snapshot alongside it, with the same name but the
+     * snapshot extension. The old format didn't record any settings, so those in the config are saved.
+     * @return the snapshot
+     */
+    @SuppressWarnings("unchecked")
+    public static File convertSerialized(File serializedFile, SimulationConfig config) throws IOException {
+        List<Boid> boids;
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(serializedFile)))) {
+            boids = (List<Boid>) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException(serializedFile + " is not a saved list of boids", e);
+        }
+        BoidStore store = new BoidStore(boids.size());
+        for (Boid boid : boids) {
+            store.add(boid.getPositionX(), boid.getPositionY(), boid.getVelocityX(), boid.getVelocityY());
+        }
+        File snapshot = snapshotFor(serializedFile);
+        write(snapshot, store, config);
+        return snapshot;
+    }
+
+    // The snapshot a serialized save converts to
+    public static File snapshotFor(File serializedFile) {
+        String name = serializedFile.getName();
+        if (name.endsWith(SERIALIZED_EXTENSION)) {
+            name = name.substring(0, name.length() - SERIALIZED_EXTENSION.length());
+        }
+        return new File(serializedFile.getParentFile(), name + EXTENSION);
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer chunk, float[] values, int count) throws IOException {
+        chunk.clear();
+        FloatBuffer floats = chunk.asFloatBuffer();
+        for (int start = 0; start < count; start += WRITE_CHUNK_FLOATS) {
+            int length = Math.min(WRITE_CHUNK_FLOATS, count - start);
+            floats.clear();
+            floats.put(values, start, length);
+            chunk.clear();
+            chunk.limit(length * 4);
+            writeFully(channel, chunk);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -7,10 +7,12 @@ import javafx.util.Pair;
 import java.util.ArrayList;
 import java.util.List;
 
-import static com.charliecollard.boids.BoidSimulator.simulationHeight;
-import static com.charliecollard.boids.BoidSimulator.simulationWidth;
-
 public class SolidWrappingScheme extends WrappingScheme {
+    @Override
+    public String getName() {
+        return "solid";
+    }
+
     @Override
     public Vector2 relativeDisplacement(Boid from, Boid to) {
         return relativeDisplacement(from.getPosition(), to.getPosition());
@@ -43,13 +45,13 @@ public class SolidWrappingScheme extends WrappingScheme {
         if (position.x < 0) {
             newVelocity.scl(-1, 1);
         }
-        if (position.x > simulationWidth) {
+        if (position.x > width) {
             newVelocity.scl(-1, 1);
         }
         if (position.y < 0) {
             newVelocity.scl(1, -1);
         }
-        if (position.y > simulationHeight) {
+        if (position.y > height) {
             newVelocity.scl(1, -1);
         }
         return newVelocity;
@@ -61,14 +63,14 @@ public class SolidWrappingScheme extends WrappingScheme {
         if (newPosition.x < 0) {
             newPosition.x = -newPosition.x;
         }
-        if (newPosition.x > simulationWidth) {
-            newPosition.x = simulationWidth - (newPosition.x - simulationWidth);
+        if (newPosition.x > width) {
+            newPosition.x = width - (newPosition.x - width);
         }
         if (newPosition.y < 0) {
             newPosition.y = -newPosition.y;
         }
-        if (newPosition.y > simulationHeight) {
-            newPosition.y = simulationHeight - (newPosition.y - simulationHeight);
+        if (newPosition.y > height) {
+            newPosition.y = height - (newPosition.y - height);
         }
         return newPosition;
     }
@@ -77,4 +79,46 @@ public class SolidWrappingScheme extends WrappingScheme {
     public List<Pair<Vector2, Vector2>> getRenderingPositionsAndVelocities(Boid boid) {
         return new ArrayList<>();
     }
+
+    @Override
+    public int relativeDisplacement(float fromX, float fromY, float toX, float toY, float[] out, int offset) {
+        out[offset] = toX - fromX;
+        out[offset + 1] = toY - fromY;
+        return SAME_UNIVERSE;
+    }
+
+    @Override
+    public void relativeVelocity(int image, float velocityX, float velocityY, float[] out, int offset) {
+        out[offset] = velocityX;
+        out[offset + 1] = velocityY;
+    }
+
+    @Override
+    public void performWrapping(BoidStore store, int id) {
+        float x = store.positionX[id];
+        float y = store.positionY[id];
+        if (x < 0 || x > width) {
+            store.velocityX[id] = -store.velocityX[id];
+        }
+        if (y < 0 || y > height) {
+            store.velocityY[id] = -store.velocityY[id];
+        }
+        if (x < 0) {
+            store.positionX[id] = -x;
+        }
+        if (x > width) {
+            store.positionX[id] = width - (x - width);
+        }
+        if (y < 0) {
+            store.positionY[id] = -y;
+        }
+        if (y > height) {
+            store.positionY[id] = height - (y - height);
+        }
+    }
+
+    @Override
+    public int ghostImages(float x, float y, float velocityX, float velocityY, float[] out) {
+        return 0;
+    }
 }
@@ -0,0 +1,264 @@
+package com.charliecollard.boids;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid of square cells, one vision range wide, used to find the boids that might be within
+ * vision range of each other without comparing every pair.
+ *
+ * The grid covers the simulation area plus a margin of one vision range on every side. Boids close
+ * to an edge are also inserted at the positions of their images in the neighbouring universes (as
+ * given by the wrapping scheme), so a boid near one edge finds the boids it can see across it.
+ * Queries only return candidates, sorted by index and without duplicates; the caller still decides
+ * whether a candidate is a neighbour using the wrapping scheme, exactly as the brute force search does.
+ *
+ * Cells can also be smaller than the range, for searches that work outwards from a boid a ring of cells
+ * at a time until they've found what they need, as {@link TopologicalNeighbours} does.
+ */
+public class SpatialGrid {
+    private float cellSize;
+    private float originX;
+    private float originY;
+    private int columns;
+    private int rows;
+    private int[] cellStart = new int[1];
+
+    private int entryCount = 0;
+    private int[] entryBoid = new int[64];
+    private float[] entryX = new float[64];
+    private float[] entryY = new float[64];
+    private int[] entryCell = new int[64];
+    private int[] sortedBoid = new int[64];
+
+    private int boidCount = 0;
+    private Query defaultQuery = new Query();
+    private float[] ghostImages = new float[WrappingScheme.MAX_GHOST_IMAGES * 4];
+
+    /**
+     * Rebuild the grid from the current positions of the boids.
+     * @param range the largest distance a query will need to see, normally the boid vision range
+     */
+    public void build(BoidStore boids, WrappingScheme wrappingScheme, float range) {
+        build(boids, wrappingScheme, range, range);
+    }
+
+    /**
+     * Rebuild the grid from the current positions of the boids, with cells of the given size.
+     * @param range the largest distance a search will need to see across an edge
+     */
+    public void build(BoidStore boids, WrappingScheme wrappingScheme, float range, float cellSize) {
+        int simulationWidth = wrappingScheme.getWidth();
+        int simulationHeight = wrappingScheme.getHeight();
+        this.cellSize = Math.max(cellSize, 1f);
+        originX = -range;
+        originY = -range;
+        columns = Math.max(1, (int) Math.ceil((simulationWidth + 2 * range) / this.cellSize));
+        rows = Math.max(1, (int) Math.ceil((simulationHeight + 2 * range) / this.cellSize));
+        int cellTotal = columns * rows;
+        if (cellStart.length < cellTotal + 1) {
+            cellStart = new int[cellTotal + 1];
+        }
+        boidCount = boids.size();
+
+        entryCount = 0;
+        for (int i = 0; i < boids.size(); i++) {
+            float x = boids.positionX[i];
+            float y = boids.positionY[i];
+            addEntry(i, x, y);
+            boolean nearEdge = x < range || x > simulationWidth - range
+                    || y < range || y > simulationHeight - range;
+            if (nearEdge) {
+                int imageCount = wrappingScheme.ghostImages(x, y, boids.velocityX[i], boids.velocityY[i], ghostImages);
+                for (int image = 0; image < imageCount; image++) {
+                    float imageX = ghostImages[image * 4];
+                    float imageY = ghostImages[image * 4 + 1];
+                    if (imageX >= -range && imageX <= simulationWidth + range
+                            && imageY >= -range && imageY <= simulationHeight + range) {
+                        addEntry(i, imageX, imageY);
+                    }
+                }
+            }
+        }
+
+        // Counting sort of the entries by cell
+        Arrays.fill(cellStart, 0, cellTotal + 1, 0);
+        for (int e = 0; e < entryCount; e++) {
+            int cell = cellIndex(entryX[e], entryY[e]);
+            entryCell[e] = cell;
+            cellStart[cell + 1] += 1;
+        }
+        for (int c = 0; c < cellTotal; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        if (sortedBoid.length < entryCount) {
+            sortedBoid = new int[entryBoid.length];
+        }
+        for (int e = 0; e < entryCount; e++) {
+            // cellStart[cell] is used as the insertion cursor and restored below
+            sortedBoid[cellStart[entryCell[e]]++] = entryBoid[e];
+        }
+        for (int c = cellTotal; c > 0; c--) {
+            cellStart[c] = cellStart[c - 1];
+        }
+        cellStart[0] = 0;
+    }
+
+    /**
+     * Find every boid with an entry within range of the given position, excluding the querying boid.
+     * The result is sorted in ascending index order so callers visit candidates in the same order as a
+     * full scan over the boid list would.
+     * @return the number of candidates written to {@link #getCandidates()}
+     */
+    public int findCandidates(int self, float x, float y, float range) {
+        return findCandidates(self, x, y, range, defaultQuery);
+    }
+
+    /**
+     * As {@link #findCandidates(int, float, float, float)}, but using the given query's scratch space so
+     * several threads can search the same grid at once.
+     * @return the number of candidates written to {@link Query#getCandidates()}
+     */
+    public int findCandidates(int self, float x, float y, float range, Query query) {
+        int found = findUnsortedCandidates(self, x, y, range, query);
+        Arrays.sort(query.candidates, 0, found);
+        return found;
+    }
+
+    /**
+     * As {@link #findCandidates(int, float, float, float, Query)}, but leaving the candidates in whatever
+     * order the grid holds them, for callers whose result doesn't depend on the order.
+     * @return the number of candidates written to {@link Query#getCandidates()}
+     */
+    public int findUnsortedCandidates(int self, float x, float y, float range, Query query) {
+        int[] lastSeen = query.prepare(boidCount);
+        int queryStamp = query.stamp;
+        int[] candidates = query.candidates;
+        int minColumn = column(x - range);
+        int maxColumn = column(x + range);
+        int minRow = row(y - range);
+        int maxRow = row(y + range);
+        int found = 0;
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minColumn; c <= maxColumn; c++) {
+                int cell = r * columns + c;
+                for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+                    int boidIndex = sortedBoid[e];
+                    if (boidIndex == self || lastSeen[boidIndex] == queryStamp) continue;
+                    lastSeen[boidIndex] = queryStamp;
+                    if (found == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, found * 2);
+                        query.candidates = candidates;
+                    }
+                    candidates[found++] = boidIndex;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Start a search that works outwards through rings of cells with {@link #findCandidatesInRing}.
+     */
+    public void startSearch(Query query) {
+        query.prepare(boidCount);
+    }
+
+    /**
+     * Find every boid with an entry in the cells exactly ring cells away from the cell holding the given
+     * position, excluding the querying boid and any boid already found since the search was started.
+     * Once rings 0 to r have been searched, every boid with an entry closer than r cells' width has been
+     * found. Candidates come in whatever order the grid holds them.
+     * @return the number of candidates written to {@link Query#getCandidates()}
+     */
+    public int findCandidatesInRing(int self, float x, float y, int ring, Query query) {
+        int[] lastSeen = query.lastSeen;
+        int queryStamp = query.stamp;
+        int[] candidates = query.candidates;
+        int centreColumn = column(x);
+        int centreRow = row(y);
+        int found = 0;
+        for (int r = Math.max(0, centreRow - ring); r <= Math.min(rows - 1, centreRow + ring); r++) {
+            boolean edgeRow = r == centreRow - ring || r == centreRow + ring;
+            // Rows in between only have the cells at either end of the ring
+            int step = edgeRow ? 1 : Math.max(1, 2 * ring);
+            for (int c = centreColumn - ring; c <= centreColumn + ring; c += step) {
+                if (c < 0 || c >= columns) continue;
+                int cell = r * columns + c;
+                for (int e = cellStart[cell]; e < cellStart[cell + 1]; e++) {
+                    int boidIndex = sortedBoid[e];
+                    if (boidIndex == self || lastSeen[boidIndex] == queryStamp) continue;
+                    lastSeen[boidIndex] = queryStamp;
+                    if (found == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, found * 2);
+                        query.candidates = candidates;
+                    }
+                    candidates[found++] = boidIndex;
+                }
+            }
+        }
+        return found;
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public int[] getCandidates() {
+        return defaultQuery.candidates;
+    }
+
+    /**
+     * Scratch space for one thread's queries against a grid.
+     */
+    public static class Query {
+        private int[] candidates = new int[64];
+        private int[] lastSeen = new int[64];
+        private int stamp = 0;
+
+        public int[] getCandidates() {
+            return candidates;
+        }
+
+        private int[] prepare(int boidCount) {
+            if (lastSeen.length < boidCount) {
+                lastSeen = new int[boidCount];
+                stamp = 0;
+            }
+            stamp += 1;
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(lastSeen, 0);
+                stamp = 1;
+            }
+            return lastSeen;
+        }
+    }
+
+    private void addEntry(int boidIndex, float x, float y) {
+        if (entryCount == entryBoid.length) {
+            int newLength = entryCount * 2;
+            entryBoid = Arrays.copyOf(entryBoid, newLength);
+            entryX = Arrays.copyOf(entryX, newLength);
+            entryY = Arrays.copyOf(entryY, newLength);
+            entryCell = Arrays.copyOf(entryCell, newLength);
+        }
+        entryBoid[entryCount] = boidIndex;
+        entryX[entryCount] = x;
+        entryY[entryCount] = y;
+        entryCount += 1;
+    }
+
+    private int cellIndex(float x, float y) {
+        return row(y) * columns + column(x);
+    }
+
+    // Positions outside the grid are clamped to the border cells, which keeps queries monotonic
+    private int column(float x) {
+        int column = (int) Math.floor((x - originX) / cellSize);
+        return Math.min(Math.max(column, 0), columns - 1);
+    }
+
+    private int row(float y) {
+        int row = (int) Math.floor((y - originY) / cellSize);
+        return Math.min(Math.max(row, 0), rows - 1);
+    }
+}
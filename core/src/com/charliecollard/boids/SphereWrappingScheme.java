@@ -5,67 +5,38 @@ import com.badlogic.gdx.math.Vector2;
 import javafx.util.Pair;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
-import static com.charliecollard.boids.BoidSimulator.simulationHeight;
-import static com.charliecollard.boids.BoidSimulator.simulationWidth;
-
 public class SphereWrappingScheme extends WrappingScheme {
+    // The nine universes: same, left, right, bottom, top, top-left, top-right, bottom-left and
+    // bottom-right. Each is the simulation turned about its centre and then shifted; left and right
+    // are turned anticlockwise, top and bottom clockwise and the corners half way round.
+    private static final int[] SAME = {1, 0, 0, 1};
+    private static final int[] ANTICLOCKWISE = {0, -1, 1, 0};
+    private static final int[] CLOCKWISE = {0, 1, -1, 0};
+    private static final int[] HALF_TURN = {-1, 0, 0, -1};
+    private static final int[][] IMAGE_LINEAR = {SAME, ANTICLOCKWISE, ANTICLOCKWISE, CLOCKWISE, CLOCKWISE, HALF_TURN, HALF_TURN, HALF_TURN, HALF_TURN};
+    private static final int[] IMAGE_COLUMN = {0, -1, 1, 0, 0, -1, 1, -1, 1};
+    private static final int[] IMAGE_ROW = {0, 0, 0, -1, 1, 1, 1, -1, -1};
+
+    // Immutable, so a thread seeing a stale or fresh copy either way gets a consistent table
+    private IsometryTable isometries;
+
+    @Override
+    public String getName() {
+        return "sphere";
+    }
+
     @Override
     public Vector2 relativeDisplacement(Boid from, Boid to) {
         return relativeDisplacement(from.getPosition(), to.getPosition());
     }
 
     @Override
-    public Vector2 relativeDisplacement(final Vector2 from, Vector2 to) {
-        Vector2 screenCentre = new Vector2(simulationWidth/2f, simulationHeight/2f);
-        Vector2 clockwiseRotation = to.cpy().sub(screenCentre).rotate(-90).add(screenCentre);
-        Vector2 anticlockwiseRotation = to.cpy().sub(screenCentre).rotate(90).add(screenCentre);
-        Vector2 halfRotation = to.cpy().sub(screenCentre).rotate(180).add(screenCentre);
-
-        List<Vector2> possiblePositions = new ArrayList<Vector2>();
-        // same universe
-        Vector2 samePosition = to.cpy();
-        // left universe
-        Vector2 leftPosition = anticlockwiseRotation.cpy().add(-simulationWidth, 0);
-        // right universe
-        Vector2 rightPosition = anticlockwiseRotation.cpy().add(simulationWidth, 0);
-        // bottom universe
-        Vector2 bottomPosition = clockwiseRotation.cpy().add(0, -simulationHeight);
-        // top universe
-        Vector2 topPosition = clockwiseRotation.cpy().add(0, simulationHeight);
-        // top-left universe
-        Vector2 topLeftPosition = halfRotation.cpy().add(-simulationWidth, simulationHeight);
-        // top-right universe
-        Vector2 topRightPosition = halfRotation.cpy().add(simulationWidth, simulationHeight);
-        // bottom-left universe
-        Vector2 bottomLeftPosition = halfRotation.cpy().add(-simulationWidth, -simulationHeight);
-        // bottom-right universe
-        Vector2 bottomRightPosition = halfRotation.cpy().add(simulationWidth, -simulationHeight);
-
-        possiblePositions.add(samePosition);
-        possiblePositions.add(leftPosition);
-        possiblePositions.add(rightPosition);
-        possiblePositions.add(bottomPosition);
-        possiblePositions.add(topPosition);
-        possiblePositions.add(topLeftPosition);
-        possiblePositions.add(topRightPosition);
-        possiblePositions.add(bottomLeftPosition);
-        possiblePositions.add(bottomRightPosition);
-
-        Vector2 closestPosition = Collections.min(possiblePositions, new Comparator<Vector2>() {
-            @Override
-            public int compare(Vector2 position1, Vector2 position2) {
-                Vector2 position1Displacement = from.cpy().sub(position1);
-                Vector2 position2Displacement = from.cpy().sub(position2);
-                float distanceDifference =  position1Displacement.len() - position2Displacement.len();
-                if (distanceDifference == 0) return 0;
-                return distanceDifference < 0 ? -1 : 1;
-            }
-        });
-        return closestPosition.sub(from);
+    public Vector2 relativeDisplacement(Vector2 from, Vector2 to) {
+        float[] displacement = new float[2];
+        isometries().nearestImage(from.x, from.y, to.x, to.y, displacement, 0);
+        return new Vector2(displacement[0], displacement[1]);
     }
 
     @Override
@@ -75,28 +46,11 @@ public class SphereWrappingScheme extends WrappingScheme {
 
     @Override
     public Vector2 relativeVelocity(Vector2 myPos, Vector2 otherPos, Vector2 otherVel) {
-        Vector2 otherRelativeDisplacement = relativeDisplacement(myPos, otherPos);
-        Vector2 otherAbsolutePosition = myPos.cpy().add(otherRelativeDisplacement);
-
-        // corners
-        if (    (otherAbsolutePosition.x < 0 && otherAbsolutePosition.y > simulationHeight)
-                || (otherAbsolutePosition.x > simulationWidth && otherAbsolutePosition.y > simulationHeight)
-                || (otherAbsolutePosition.x < 0 && otherAbsolutePosition.y < 0)
-                || (otherAbsolutePosition.x > simulationWidth && otherAbsolutePosition.y < 0)) {
-            return otherVel.rotate(180);
-        }
-
-        // left or right
-        if (otherAbsolutePosition.x < 0 || otherAbsolutePosition.x > simulationWidth) {
-            return otherVel.rotate(90);
-        }
-
-        // up or down
-        if (otherAbsolutePosition.y < 0 || otherAbsolutePosition.y > simulationHeight) {
-            return otherVel.rotate(-90);
-        }
-
-        return otherVel;
+        float[] scratch = new float[4];
+        IsometryTable table = isometries();
+        int image = table.nearestImage(myPos.x, myPos.y, otherPos.x, otherPos.y, scratch, 0);
+        table.transformVelocity(image, otherVel.x, otherVel.y, scratch, 2);
+        return new Vector2(scratch[2], scratch[3]);
     }
 
     @Override
@@ -110,20 +64,20 @@ public class SphereWrappingScheme extends WrappingScheme {
         Vector2 newVelocity = currentVelocity.cpy();
 
         // corners
-        if (    (position.x < 0 && position.y > simulationHeight)
-                || (position.x > simulationWidth && position.y > simulationHeight)
+        if (    (position.x < 0 && position.y > height)
+                || (position.x > width && position.y > height)
                 || (position.x < 0 && position.y < 0)
-                || (position.x > simulationWidth && position.y < 0)) {
+                || (position.x > width && position.y < 0)) {
             return newVelocity.rotate(180);
         }
 
         // left or right
-        if (position.x < 0 || position.x > simulationWidth) {
+        if (position.x < 0 || position.x > width) {
             return newVelocity.rotate(-90);
         }
 
         // up or down
-        if (position.y < 0 || position.y > simulationHeight) {
+        if (position.y < 0 || position.y > height) {
             return newVelocity.rotate(90);
         }
         return newVelocity;
@@ -135,9 +89,9 @@ public class SphereWrappingScheme extends WrappingScheme {
 
         // Set up the out of bounds parameters
         boolean oobLeft = newPosition.x < 0;
-        boolean oobRight = newPosition.x >= simulationWidth;
+        boolean oobRight = newPosition.x >= width;
         boolean oobBottom  = newPosition.y < 0;
-        boolean oobTop = newPosition.y >= simulationHeight;
+        boolean oobTop = newPosition.y >= height;
         boolean oobTopLeft = oobTop && oobLeft;
         boolean oobTopRight = oobTop && oobRight;
         boolean oobBottomLeft = oobBottom && oobLeft;
@@ -146,16 +100,16 @@ public class SphereWrappingScheme extends WrappingScheme {
         // handle the corners first
         if (oobTopLeft) {
             // rotate about the top-left corner
-            newPosition.sub(0, simulationHeight).rotate(180).add(0, simulationHeight);
+            newPosition.sub(0, height).rotate(180).add(0, height);
         } else if (oobTopRight) {
             // rotate about the top-right corner
-            newPosition.sub(simulationWidth, simulationHeight).rotate(180).add(simulationWidth, simulationHeight);
+            newPosition.sub(width, height).rotate(180).add(width, height);
         } else if (oobBottomLeft) {
             // rotate about the bottom-left corner (the origin)
             newPosition.rotate(180);
         } else if (oobBottomRight) {
             // rotate about the bottom-right corner
-            newPosition.sub(simulationWidth, 0).rotate(180).add(simulationWidth, 0);
+            newPosition.sub(width, 0).rotate(180).add(width, 0);
         }
         // handle the edges (should be mutually exclusive to the corners)
         else if (oobLeft) {
@@ -163,13 +117,13 @@ public class SphereWrappingScheme extends WrappingScheme {
             newPosition.rotate(-90);
         } else if (oobRight) {
             // rotate about the top-right corner
-            newPosition.sub(simulationWidth, simulationHeight).rotate(-90).add(simulationWidth, simulationHeight);
+            newPosition.sub(width, height).rotate(-90).add(width, height);
         } else if (oobBottom) {
             // rotate about the bottom-left corner (the origin)
             newPosition.rotate(90);
         } else if (oobTop) {
             // rotate about the top-right corner
-            newPosition.sub(simulationWidth, simulationHeight).rotate(90).add(simulationWidth, simulationHeight);
+            newPosition.sub(width, height).rotate(90).add(width, height);
         }
         return newPosition;
     }
@@ -177,14 +131,14 @@ public class SphereWrappingScheme extends WrappingScheme {
     @Override
     public List<Pair<Vector2, Vector2>> getRenderingPositionsAndVelocities(Boid boid) {
         List<Pair<Vector2, Vector2>> positionsAndVelocities = new ArrayList<>();
-        Vector2 leftPosition = boid.getPosition().sub(simulationWidth/2, simulationHeight/2).rotate(90).add(-simulationWidth/2, simulationHeight/2);
-        Vector2 topLeftPosition = boid.getPosition().sub(simulationWidth/2, simulationHeight/2).rotate(180).add(-simulationWidth/2, 3*simulationHeight/2);
-        Vector2 bottomLeftPosition = boid.getPosition().sub(simulationWidth/2, simulationHeight/2).rotate(180).add(-simulationWidth/2, -simulationHeight/2);
-        Vector2 topPosition = boid.getPosition().sub(simulationWidth/2, simulationHeight/2).rotate(-90).add(simulationWidth/2, 3*simulationHeight/2);
-        Vector2 bottomPosition = boid.getPosition().sub(simulationWidth/2, simulationHeight/2).rotate(-90).add(simulationWidth/2, -simulationHeight/2);
-        Vector2 topRightPosition = boid.getPosition().sub(simulationWidth/2, simulationHeight/2).rotate(180).add(3*simulationWidth/2, 3*simulationHeight/2);
-        Vector2 rightPosition = boid.getPosition().sub(simulationWidth/2, simulationHeight/2).rotate(90).add(3*simulationWidth/2, simulationHeight/2);
-        Vector2 bottomRightPosition = boid.getPosition().sub(simulationWidth/2, simulationHeight/2).rotate(180).add(3*simulationWidth/2, -simulationHeight/2);
+        Vector2 leftPosition = boid.getPosition().sub(width/2, height/2).rotate(90).add(-width/2, height/2);
+        Vector2 topLeftPosition = boid.getPosition().sub(width/2, height/2).rotate(180).add(-width/2, 3*height/2);
+        Vector2 bottomLeftPosition = boid.getPosition().sub(width/2, height/2).rotate(180).add(-width/2, -height/2);
+        Vector2 topPosition = boid.getPosition().sub(width/2, height/2).rotate(-90).add(width/2, 3*height/2);
+        Vector2 bottomPosition = boid.getPosition().sub(width/2, height/2).rotate(-90).add(width/2, -height/2);
+        Vector2 topRightPosition = boid.getPosition().sub(width/2, height/2).rotate(180).add(3*width/2, 3*height/2);
+        Vector2 rightPosition = boid.getPosition().sub(width/2, height/2).rotate(90).add(3*width/2, height/2);
+        Vector2 bottomRightPosition = boid.getPosition().sub(width/2, height/2).rotate(180).add(3*width/2, -height/2);
         positionsAndVelocities.add(new Pair<>(leftPosition, boid.getVelocity().rotate(90)));
         positionsAndVelocities.add(new Pair<>(topLeftPosition, boid.getVelocity().rotate(180)));
         positionsAndVelocities.add(new Pair<>(bottomLeftPosition, boid.getVelocity().rotate(180)));
@@ -195,4 +149,104 @@ public class SphereWrappingScheme extends WrappingScheme {
         positionsAndVelocities.add(new Pair<>(bottomRightPosition, boid.getVelocity().rotate(180)));
         return positionsAndVelocities;
     }
+
+    @Override
+    public int relativeDisplacement(float fromX, float fromY, float toX, float toY, float[] out, int offset) {
+        return isometries().nearestImage(fromX, fromY, toX, toY, out, offset);
+    }
+
+    @Override
+    public void relativeVelocity(int image, float velocityX, float velocityY, float[] out, int offset) {
+        isometries().transformVelocity(image, velocityX, velocityY, out, offset);
+    }
+
+    @Override
+    public void performWrapping(BoidStore store, int id) {
+        float x = store.positionX[id];
+        float y = store.positionY[id];
+        float vx = store.velocityX[id];
+        float vy = store.velocityY[id];
+
+        // Same cases as wrappedVelocity, with exact quarter turns
+        if ((x < 0 && y > height) || (x > width && y > height)
+                || (x < 0 && y < 0) || (x > width && y < 0)) {
+            store.velocityX[id] = -vx;
+            store.velocityY[id] = -vy;
+        } else if (x < 0 || x > width) {
+            store.velocityX[id] = rotatedX(-1, vx, vy);
+            store.velocityY[id] = rotatedY(-1, vx, vy);
+        } else if (y < 0 || y > height) {
+            store.velocityX[id] = rotatedX(1, vx, vy);
+            store.velocityY[id] = rotatedY(1, vx, vy);
+        }
+
+        // Same cases as wrappedPosition
+        boolean oobLeft = x < 0;
+        boolean oobRight = x >= width;
+        boolean oobBottom = y < 0;
+        boolean oobTop = y >= height;
+        float newX = x;
+        float newY = y;
+        if (oobTop && oobLeft) {
+            newX = -x;
+            newY = 2 * height - y;
+        } else if (oobTop && oobRight) {
+            newX = 2 * width - x;
+            newY = 2 * height - y;
+        } else if (oobBottom && oobLeft) {
+            newX = -x;
+            newY = -y;
+        } else if (oobBottom && oobRight) {
+            newX = 2 * width - x;
+            newY = -y;
+        } else if (oobLeft) {
+            newX = y;
+            newY = -x;
+        } else if (oobRight) {
+            newX = y - height + width;
+            newY = width - x + height;
+        } else if (oobBottom) {
+            newX = -y;
+            newY = x;
+        } else if (oobTop) {
+            newX = height - y + width;
+            newY = x - width + height;
+        }
+        store.positionX[id] = newX;
+        store.positionY[id] = newY;
+    }
+
+    @Override
+    public int ghostImages(float x, float y, float velocityX, float velocityY, float[] out) {
+        return isometries().ghostImages(x, y, velocityX, velocityY, out);
+    }
+
+    // Rebuilt whenever the simulation is resized
+    private IsometryTable isometries() {
+        IsometryTable table = isometries;
+        if (table == null || table.width != width || table.height != height) {
+            table = new IsometryTable(width, height, IMAGE_LINEAR, IMAGE_COLUMN, IMAGE_ROW);
+            isometries = table;
+        }
+        return table;
+    }
+
+    // Rotate (x, y) by a whole number of anticlockwise quarter turns
+    private static float rotatedX(int quarterTurns, float x, float y) {
+        switch (quarterTurns) {
+            case 1: return -y;
+            case -1: return y;
+            case 2: return -x;
+            default: return x;
+        }
+    }
+
+    private static float rotatedY(int quarterTurns, float x, float y) {
+        switch (quarterTurns) {
+            case 1: return x;
+            case -1: return -x;
+            case 2: return -y;
+            default: return y;
+        }
+    }
 }
@@ -0,0 +1,16 @@
+package com.charliecollard.boids;
+
+/**
+ * Sums a boid's neighbours into the totals its separation, cohesion and alignment steers are made from.
+ *
+ * Neighbours are packed as dx, dy, vx, vy groups as in {@link Boid#update}, and the sums are written as
+ * {@link CellAggregates} lays them out: neighbour count, then the sums of the inverse-square separation
+ * terms, of displacements and of velocities, x then y.
+ *
+ * With no kernel set on {@link Boid#steeringKernel} the boids use the scalar loops built into Boid, which
+ * are what every platform can run. A kernel is free to add the terms up in a different order, so it may
+ * differ from those loops in the last bits.
+ */
+public interface SteeringKernel {
+    void sum(float[] neighbours, int offset, int count, float[] sums);
+}
@@ -0,0 +1,318 @@
+package com.charliecollard.boids;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes every tick of the simulation over a local TCP socket, so a headless run can be watched live
+ * with a {@link StreamViewer} by any number of viewers.
+ *
+ * Each viewer is sent a {@link TrajectoryFile} header, then a float chunk for every tick it keeps up
+ * with, and no index. The tick thread only copies the store into a recycled direct buffer and hands it
+ * over; one server thread accepts viewers and writes to all of them without blocking, each frame going
+ * out as a gathering write of its chunk header and payload, which every viewer shares rather than
+ * copies. A viewer still taking one frame when the next is published skips to the newest as soon as it
+ * has finished, so a slow viewer sees fewer frames and never holds up the simulation or other viewers.
+ */
+public class StreamServer {
+    public static int streamPort = -1;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ByteBuffer header;
+    private final Thread serverThread;
+    private final AtomicReference<Frame> pendingFrame = new AtomicReference<>();
+    private final ConcurrentLinkedQueue<Frame> freeFrames = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+    // Only touched by the tick thread
+    private long published = 0;
+
+    // Only touched by the server thread
+    private final ArrayList<Viewer> viewers = new ArrayList<>();
+    private final ByteBuffer discard = ByteBuffer.allocate(256);
+    private Frame latest;
+    private long skippedFrames = 0;
+
+    /**
+     * Start listening for viewers on the loopback interface.
+     * @param port the port to listen on, or 0 for any free one
+     */
+    public StreamServer(int port, WrappingScheme wrappingScheme) throws IOException {
+        header = createHeader(wrappingScheme);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        serverThread = new Thread("Stream server") {
+            @Override
+            public void run() {
+                serve();
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Hand the current state of the store to the server thread to send to every viewer that's ready.
+     */
+    public void publish(BoidStore store, int tick) {
+        if (closed) return;
+        // There's only ever one frame more than viewers in use, so this only allocates as viewers join
+        Frame frame = freeFrames.poll();
+        if (frame == null) {
+            frame = new Frame();
+        }
+        frame.copyFrom(store, tick);
+        published += 1;
+        frame.sequence = published;
+        Frame unsent = pendingFrame.getAndSet(frame);
+        if (unsent != null) {
+            freeFrames.add(unsent);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Disconnect every viewer and stop listening.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        selector.wakeup();
+        try {
+            serverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (skippedFrames > 0) {
+            System.out.println("Stream viewers skipped " + skippedFrames + " frames while catching up");
+        }
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+                Frame frame = pendingFrame.getAndSet(null);
+                if (frame != null) {
+                    setLatest(frame);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Viewer viewer = (Viewer) key.attachment();
+                        if (key.isReadable()) checkStillConnected(viewer);
+                        if (key.isValid() && key.isWritable()) send(viewer);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Viewer viewer : new ArrayList<>(viewers)) {
+                disconnect(viewer);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void setLatest(Frame frame) {
+        Frame previous = latest;
+        latest = frame;
+        if (previous != null && previous.senders == 0) {
+            freeFrames.add(previous);
+        }
+        // Backwards, since a viewer found to have gone is removed
+        for (int i = viewers.size() - 1; i >= 0; i--) {
+            Viewer viewer = viewers.get(i);
+            if (viewer.frame == null) {
+                startSending(viewer, frame);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Viewer viewer = new Viewer(channel, header.duplicate());
+        viewer.key = channel.register(selector, SelectionKey.OP_READ, viewer);
+        viewers.add(viewer);
+        if (latest != null) {
+            startSending(viewer, latest);
+        } else {
+            send(viewer);
+        }
+    }
+
+    private void startSending(Viewer viewer, Frame frame) {
+        if (viewer.lastSequence > 0) {
+            skippedFrames += frame.sequence - viewer.lastSequence - 1;
+        }
+        viewer.frame = frame;
+        viewer.lastSequence = frame.sequence;
+        viewer.buffers[1] = frame.chunkHeader.duplicate();
+        viewer.buffers[2] = frame.payload.duplicate();
+        frame.senders += 1;
+        send(viewer);
+    }
+
+    // Write as much of the header and the viewer's frame as the socket takes without blocking
+    private void send(Viewer viewer) {
+        boolean sendingFrame = viewer.frame != null;
+        try {
+            viewer.channel.write(viewer.buffers, 0, sendingFrame ? 3 : 1);
+        } catch (IOException e) {
+            disconnect(viewer);
+            return;
+        }
+        if (viewer.buffers[0].hasRemaining()
+                || sendingFrame && (viewer.buffers[1].hasRemaining() || viewer.buffers[2].hasRemaining())) {
+            viewer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        viewer.key.interestOps(SelectionKey.OP_READ);
+        if (!sendingFrame) return;
+        release(viewer);
+        if (latest != null && latest.sequence > viewer.lastSequence) {
+            startSending(viewer, latest);
+        }
+    }
+
+    // Viewers never send anything, so reading only tells us when one has gone
+    private void checkStillConnected(Viewer viewer) {
+        try {
+            discard.clear();
+            if (viewer.channel.read(discard) < 0) {
+                disconnect(viewer);
+            }
+        } catch (IOException e) {
+            disconnect(viewer);
+        }
+    }
+
+    private void disconnect(Viewer viewer) {
+        release(viewer);
+        viewers.remove(viewer);
+        viewer.key.cancel();
+        try {
+            viewer.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void release(Viewer viewer) {
+        Frame frame = viewer.frame;
+        if (frame == null) return;
+        viewer.frame = null;
+        frame.senders -= 1;
+        if (frame.senders == 0 && frame != latest) {
+            freeFrames.add(frame);
+        }
+    }
+
+    private static ByteBuffer createHeader(WrappingScheme wrappingScheme) {
+        byte[] schemeName = wrappingScheme.getName().getBytes(TrajectoryFile.ASCII);
+        int headerBytes = TrajectoryFile.FIXED_HEADER_BYTES + (schemeName.length + 3) / 4 * 4;
+        ByteBuffer header = ByteBuffer.allocateDirect(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(TrajectoryFile.MAGIC);
+        header.putInt(TrajectoryFile.VERSION);
+        header.putInt(headerBytes);
+        header.putInt(wrappingScheme.getWidth());
+        header.putInt(wrappingScheme.getHeight());
+        header.putInt(1);
+        header.putInt(TrajectoryFile.ENCODING_FLOAT);
+        header.putInt(schemeName.length);
+        header.put(schemeName);
+        header.clear();
+        return header;
+    }
+
+    private static class Viewer {
+        private final SocketChannel channel;
+        // The stream header, which is only sent once, then the chunk header and payload of the current frame
+        private final ByteBuffer[] buffers = new ByteBuffer[3];
+        private SelectionKey key;
+        private Frame frame;
+        private long lastSequence = 0;
+
+        private Viewer(SocketChannel channel, ByteBuffer header) {
+            this.channel = channel;
+            buffers[0] = header;
+        }
+    }
+
+    private static class Frame {
+        private final ByteBuffer chunkHeader = ByteBuffer.allocateDirect(TrajectoryFile.CHUNK_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer payload = ByteBuffer.allocateDirect(0);
+        private long sequence;
+        // Only touched by the server thread, how many viewers are part way through sending this frame
+        private int senders = 0;
+
+        private void copyFrom(BoidStore store, int tick) {
+            int count = store.size();
+            if (payload.capacity() < 16 * count) {
+                payload = ByteBuffer.allocateDirect(16 * store.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            chunkHeader.clear();
+            chunkHeader.putInt(tick);
+            chunkHeader.putInt(count);
+            chunkHeader.putInt(TrajectoryFile.ENCODING_FLOAT);
+            chunkHeader.putInt(16 * count);
+            chunkHeader.flip();
+
+            payload.clear();
+            FloatBuffer floats = payload.asFloatBuffer();
+            if (store.isInIdOrder()) {
+                floats.put(store.positionX, 0, count).put(store.positionY, 0, count)
+                        .put(store.velocityX, 0, count).put(store.velocityY, 0, count);
+            } else {
+                // Sent by id, as in a recording, so each boid keeps its place however the store is ordered
+                for (int i = 0; i < count; i++) {
+                    int id = store.ids[i];
+                    floats.put(id, store.positionX[i]);
+                    floats.put(count + id, store.positionY[i]);
+                    floats.put(2 * count + id, store.velocityX[i]);
+                    floats.put(3 * count + id, store.velocityY[i]);
+                }
+            }
+            payload.limit(16 * count);
+        }
+    }
+}
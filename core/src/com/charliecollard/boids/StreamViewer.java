@@ -0,0 +1,155 @@
+package com.charliecollard.boids;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Follows a {@link StreamServer}, keeping the newest frame it has sent ready for a simulation to show in
+ * place of running its own. Frames are read on a background thread as fast as they arrive and any the
+ * simulation hasn't taken yet are replaced, so however slowly the viewer draws it always shows the
+ * latest tick and never makes the server hold frames back for it.
+ */
+public class StreamViewer {
+    public final int width;
+    public final int height;
+    public final WrappingScheme wrappingScheme;
+
+    private final String address;
+    private final SocketChannel channel;
+    private final Thread readerThread;
+    // Only touched by the reader thread
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private Frame reading = new Frame();
+    // Guarded by this
+    private Frame latest = new Frame();
+    private boolean fresh = false;
+
+    /**
+     * Connect to a server and read its header, then start reading frames in the background.
+     * @param address host:port of the server
+     */
+    public StreamViewer(String address) throws IOException {
+        this.address = address;
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Stream address " + address + " needs to be host:port");
+        }
+        channel = SocketChannel.open(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        try {
+            read(TrajectoryFile.FIXED_HEADER_BYTES);
+            if (buffer.getInt(0) != TrajectoryFile.MAGIC) {
+                throw new IOException(address + " is not a boid stream");
+            }
+            int version = buffer.getInt(4);
+            if (version < 1 || version > TrajectoryFile.VERSION) {
+                throw new IOException(address + " streams version " + version + ", only up to " + TrajectoryFile.VERSION + " can be read");
+            }
+            int headerBytes = buffer.getInt(8);
+            width = buffer.getInt(12);
+            height = buffer.getInt(16);
+            int schemeNameLength = buffer.getInt(28);
+            if (schemeNameLength < 0 || TrajectoryFile.FIXED_HEADER_BYTES + schemeNameLength > headerBytes) {
+                throw new IOException(address + " sent a corrupt header");
+            }
+            read(headerBytes - TrajectoryFile.FIXED_HEADER_BYTES);
+            byte[] schemeName = new byte[schemeNameLength];
+            buffer.get(schemeName);
+            try {
+                wrappingScheme = WrappingScheme.forName(new String(schemeName, TrajectoryFile.ASCII));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(address + " uses an unknown wrapping scheme", e);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        readerThread = new Thread("Stream viewer") {
+            @Override
+            public void run() {
+                readFrames();
+            }
+        };
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Replace the contents of the store with the newest frame, if one has arrived since the last call.
+     * @return whether the store changed
+     */
+    public synchronized boolean readLatest(BoidStore store) {
+        if (!fresh) return false;
+        fresh = false;
+        int count = latest.count;
+        store.clear();
+        store.addBlank(count);
+        System.arraycopy(latest.components[0], 0, store.positionX, 0, count);
+        System.arraycopy(latest.components[1], 0, store.positionY, 0, count);
+        System.arraycopy(latest.components[2], 0, store.velocityX, 0, count);
+        System.arraycopy(latest.components[3], 0, store.velocityY, 0, count);
+        return true;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readFrames() {
+        try {
+            while (true) {
+                read(TrajectoryFile.CHUNK_HEADER_BYTES);
+                int count = buffer.getInt(4);
+                int encoding = buffer.getInt(8);
+                int payloadBytes = buffer.getInt(12);
+                if (encoding != TrajectoryFile.ENCODING_FLOAT || payloadBytes != 16 * count) {
+                    throw new IOException(address + " sent a frame that isn't " + count + " boids as floats");
+                }
+                read(payloadBytes);
+                reading.count = count;
+                if (reading.components[0].length < count) {
+                    for (int c = 0; c < 4; c++) {
+                        reading.components[c] = new float[count];
+                    }
+                }
+                buffer.asFloatBuffer().get(reading.components[0], 0, count).get(reading.components[1], 0, count)
+                        .get(reading.components[2], 0, count).get(reading.components[3], 0, count);
+                synchronized (this) {
+                    Frame read = reading;
+                    reading = latest;
+                    latest = read;
+                    fresh = true;
+                }
+            }
+        } catch (EOFException e) {
+            System.out.println("Stream from " + address + " ended");
+        } catch (IOException e) {
+            if (channel.isOpen()) {
+                System.out.println("Stream from " + address + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Read exactly the given number of bytes into the start of the buffer, leaving it positioned at the start
+    private void read(int bytes) throws IOException {
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocateDirect(Math.max(bytes, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        buffer.limit(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private static class Frame {
+        private int count;
+        private final float[][] components = new float[4][0];
+    }
+}
@@ -0,0 +1,305 @@
+package com.charliecollard.boids;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Time spent in each phase of a tick, and how many neighbour pairs were tested and accepted, kept for
+ * the most recent {@link #WINDOW} ticks.
+ *
+ * The simulation adds to the current tick's phases as it goes and calls {@link #endTick} once the tick
+ * is complete. Percentiles are worked out from the window on demand. Every tick can also be written to
+ * a CSV file, which replaces any file already there; once it holds {@link #csvMaxRows} ticks it is moved
+ * aside to the same name with ".1" added, replacing any older one, and a new file is started.
+ *
+ * Ticks are recorded from the simulation thread; the getters may be called from any thread, such as a
+ * JMX client's, and see a recent if not perfectly consistent picture.
+ */
+public class TickMetrics implements TickMetricsMBean {
+    public static final int PHASE_NEIGHBOURS = 0;
+    public static final int PHASE_STEERING = 1;
+    public static final int PHASE_WRAPPING = 2;
+    public static final int PHASE_ORDER_PARAMETER = 3;
+    public static final int PHASE_PLOT = 4;
+    public static final int PHASE_RENDER = 5;
+    public static final int PHASE_COUNT = 6;
+    public static final String[] PHASE_NAMES = {"neighbours", "steering", "wrapping", "orderParameter", "plot", "render"};
+    public static final int WINDOW = 512;
+    public static String csvFile;
+    public static int csvMaxRows = 100000;
+
+    private final long[] current = new long[PHASE_COUNT];
+    // Ring buffers over the window, the extra phase slot is the whole tick
+    private final long[][] phaseNanos = new long[PHASE_COUNT + 1][WINDOW];
+    private final long[] pairsTested = new long[WINDOW];
+    private final long[] pairsAccepted = new long[WINDOW];
+    private final int[] boidCounts = new int[WINDOW];
+    // Whether each tick rebuilt its neighbour lists, for Verlet list search
+    private final boolean[] listRebuilds = new boolean[WINDOW];
+    private boolean currentListRebuild = false;
+    // Measured error of the tick's approximate neighbour search, for aggregate search
+    private final double[] approximationErrors = new double[WINDOW];
+    private double currentApproximationError = 0;
+    private volatile long tickCount = 0;
+    private final long[] sortScratch = new long[WINDOW];
+
+    private BufferedWriter csvWriter;
+    private int csvRows = 0;
+
+    /**
+     * Add time to a phase of the tick in progress.
+     */
+    public void add(int phase, long nanos) {
+        current[phase] += nanos;
+    }
+
+    /**
+     * Note that the tick in progress rebuilt its Verlet lists.
+     */
+    public void markListRebuild() {
+        currentListRebuild = true;
+    }
+
+    /**
+     * Record how far the tick in progress's approximate neighbour search was from the exact one.
+     */
+    public void setApproximationError(double error) {
+        currentApproximationError = error;
+    }
+
+    /**
+     * Close off the tick in progress.
+     */
+    public void endTick(long tested, long accepted, int boidCount) {
+        int slot = (int) (tickCount % WINDOW);
+        long total = 0;
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            phaseNanos[phase][slot] = current[phase];
+            total += current[phase];
+        }
+        phaseNanos[PHASE_COUNT][slot] = total;
+        pairsTested[slot] = tested;
+        pairsAccepted[slot] = accepted;
+        boidCounts[slot] = boidCount;
+        listRebuilds[slot] = currentListRebuild;
+        approximationErrors[slot] = currentApproximationError;
+        if (csvFile != null) {
+            writeCsvRow(tested, accepted, boidCount);
+        }
+        Arrays.fill(current, 0);
+        currentListRebuild = false;
+        currentApproximationError = 0;
+        tickCount += 1;
+    }
+
+    /**
+     * The given percentile of a phase's time per tick over the window, in milliseconds.
+     * @param phase one of the PHASE constants, or PHASE_COUNT for the whole tick
+     */
+    public synchronized double percentileMillis(int phase, double percentile) {
+        int samples = (int) Math.min(tickCount, WINDOW);
+        if (samples == 0) return 0;
+        System.arraycopy(phaseNanos[phase], 0, sortScratch, 0, samples);
+        Arrays.sort(sortScratch, 0, samples);
+        int rank = (int) Math.ceil(percentile / 100 * samples) - 1;
+        return sortScratch[Math.max(0, Math.min(samples - 1, rank))] / 1e6;
+    }
+
+    public void close() {
+        if (csvWriter != null) {
+            try {
+                csvWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            csvWriter = null;
+        }
+    }
+
+    private void writeCsvRow(long tested, long accepted, int boidCount) {
+        try {
+            if (csvWriter == null || csvRows >= csvMaxRows) {
+                File file = new File(csvFile);
+                if (csvWriter != null) {
+                    csvWriter.close();
+                    File rolled = new File(csvFile + ".1");
+                    if (rolled.exists() && !rolled.delete() || !file.renameTo(rolled)) {
+                        throw new IOException("Couldn't move " + file + " aside to " + rolled);
+                    }
+                }
+                csvWriter = new BufferedWriter(new FileWriter(file));
+                csvWriter.write("tick,boids");
+                for (String name : PHASE_NAMES) {
+                    csvWriter.write("," + name + "Millis");
+                }
+                csvWriter.write(",pairsTested,pairsAccepted,meanNeighbours,listRebuilt,approximationError");
+                csvWriter.newLine();
+                csvRows = 0;
+            }
+            StringBuilder row = new StringBuilder();
+            row.append(tickCount).append(',').append(boidCount);
+            for (int phase = 0; phase < PHASE_COUNT; phase++) {
+                row.append(',').append(String.format(Locale.ROOT, "%.4f", current[phase] / 1e6));
+            }
+            row.append(',').append(tested).append(',').append(accepted);
+            row.append(',').append(String.format(Locale.ROOT, "%.3f", boidCount > 0 ? (double) accepted / boidCount : 0));
+            row.append(',').append(currentListRebuild ? 1 : 0);
+            row.append(',').append(String.format(Locale.ROOT, "%.5f", currentApproximationError));
+            csvWriter.write(row.toString());
+            csvWriter.newLine();
+            csvRows += 1;
+        } catch (IOException e) {
+            e.printStackTrace();
+            csvFile = null;
+            close();
+        }
+    }
+
+    private double windowMean(long[] values) {
+        int samples = (int) Math.min(tickCount, WINDOW);
+        if (samples == 0) return 0;
+        double sum = 0;
+        for (int i = 0; i < samples; i++) {
+            sum += values[i];
+        }
+        return sum / samples;
+    }
+
+    @Override
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    @Override
+    public int getBoidCount() {
+        return tickCount == 0 ? 0 : boidCounts[(int) ((tickCount - 1) % WINDOW)];
+    }
+
+    // Whether the last complete tick rebuilt its Verlet lists
+    public boolean getLastListRebuild() {
+        return tickCount != 0 && listRebuilds[(int) ((tickCount - 1) % WINDOW)];
+    }
+
+    // The approximation error measured in the last complete tick
+    public double getLastApproximationError() {
+        return tickCount == 0 ? 0 : approximationErrors[(int) ((tickCount - 1) % WINDOW)];
+    }
+
+    @Override
+    public double getNeighbourSearchP50Millis() {
+        return percentileMillis(PHASE_NEIGHBOURS, 50);
+    }
+
+    @Override
+    public double getNeighbourSearchP99Millis() {
+        return percentileMillis(PHASE_NEIGHBOURS, 99);
+    }
+
+    @Override
+    public double getSteeringP50Millis() {
+        return percentileMillis(PHASE_STEERING, 50);
+    }
+
+    @Override
+    public double getSteeringP99Millis() {
+        return percentileMillis(PHASE_STEERING, 99);
+    }
+
+    @Override
+    public double getWrappingP50Millis() {
+        return percentileMillis(PHASE_WRAPPING, 50);
+    }
+
+    @Override
+    public double getWrappingP99Millis() {
+        return percentileMillis(PHASE_WRAPPING, 99);
+    }
+
+    @Override
+    public double getOrderParameterP50Millis() {
+        return percentileMillis(PHASE_ORDER_PARAMETER, 50);
+    }
+
+    @Override
+    public double getOrderParameterP99Millis() {
+        return percentileMillis(PHASE_ORDER_PARAMETER, 99);
+    }
+
+    @Override
+    public double getPlotP50Millis() {
+        return percentileMillis(PHASE_PLOT, 50);
+    }
+
+    @Override
+    public double getPlotP99Millis() {
+        return percentileMillis(PHASE_PLOT, 99);
+    }
+
+    @Override
+    public double getRenderP50Millis() {
+        return percentileMillis(PHASE_RENDER, 50);
+    }
+
+    @Override
+    public double getRenderP99Millis() {
+        return percentileMillis(PHASE_RENDER, 99);
+    }
+
+    @Override
+    public double getTickP50Millis() {
+        return percentileMillis(PHASE_COUNT, 50);
+    }
+
+    @Override
+    public double getTickP99Millis() {
+        return percentileMillis(PHASE_COUNT, 99);
+    }
+
+    @Override
+    public double getPairsTestedPerTick() {
+        return windowMean(pairsTested);
+    }
+
+    @Override
+    public double getPairsAcceptedPerTick() {
+        return windowMean(pairsAccepted);
+    }
+
+    @Override
+    public double getMeanNeighbourCount() {
+        long boids = 0;
+        long accepted = 0;
+        int samples = (int) Math.min(tickCount, WINDOW);
+        for (int i = 0; i < samples; i++) {
+            boids += boidCounts[i];
+            accepted += pairsAccepted[i];
+        }
+        return boids == 0 ? 0 : (double) accepted / boids;
+    }
+
+    @Override
+    public double getRecentListRebuildRate() {
+        int samples = (int) Math.min(tickCount, WINDOW);
+        if (samples == 0) return 0;
+        int rebuilt = 0;
+        for (int i = 0; i < samples; i++) {
+            if (listRebuilds[i]) rebuilt += 1;
+        }
+        return (double) rebuilt / samples;
+    }
+
+    @Override
+    public double getRecentApproximationError() {
+        int samples = (int) Math.min(tickCount, WINDOW);
+        if (samples == 0) return 0;
+        double sum = 0;
+        for (int i = 0; i < samples; i++) {
+            sum += approximationErrors[i];
+        }
+        return sum / samples;
+    }
+}
@@ -0,0 +1,34 @@
+package com.charliecollard.boids;
+
+/**
+ * Management interface of {@link TickMetrics}. Percentiles are over the most recent
+ * {@link TickMetrics#WINDOW} ticks, counters are per tick and averaged over the same window.
+ */
+public interface TickMetricsMBean {
+    long getTickCount();
+    int getBoidCount();
+
+    double getNeighbourSearchP50Millis();
+    double getNeighbourSearchP99Millis();
+    double getSteeringP50Millis();
+    double getSteeringP99Millis();
+    double getWrappingP50Millis();
+    double getWrappingP99Millis();
+    double getOrderParameterP50Millis();
+    double getOrderParameterP99Millis();
+    double getPlotP50Millis();
+    double getPlotP99Millis();
+    double getRenderP50Millis();
+    double getRenderP99Millis();
+    double getTickP50Millis();
+    double getTickP99Millis();
+
+    double getPairsTestedPerTick();
+    double getPairsAcceptedPerTick();
+    double getMeanNeighbourCount();
+    // Fraction of the window's ticks that rebuilt their Verlet lists, 0 with any other neighbour search
+    double getRecentListRebuildRate();
+    // Relative steering error of aggregate search against visiting every neighbour, averaged over the
+    // window, 0 with any other search
+    double getRecentApproximationError();
+}
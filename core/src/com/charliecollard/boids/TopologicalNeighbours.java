@@ -0,0 +1,174 @@
+package com.charliecollard.boids;
+
+/**
+ * Finds each boid's k nearest neighbours, whatever their distance, for the topological interaction rule
+ * where every boid heeds a fixed number of others rather than everything within its vision range.
+ *
+ * The boids are put in a {@link SpatialGrid} with cells sized so that a cell holds a couple of boids at
+ * the flock's average density, and each boid's search works outwards from its own cell a ring of cells
+ * at a time. Once the k closest found so far are all closer than the rings searched reach, nothing
+ * further out can beat them and the search stops. In a dense cluster that's after a ring or two, so
+ * the cost per boid stays bounded however tightly the flock packs, where the metric rule's grows with
+ * the number of boids in range.
+ *
+ * Boids near an edge are also in the grid at their images across it, out to a horizon of a few cells,
+ * and distances are measured to each candidate's nearest image with the wrapping scheme, so neighbours
+ * are found across edges just as the metric search finds them. A boid with fewer than k others inside
+ * the horizon compares against every boid instead, so the result is always exactly the k nearest.
+ *
+ * Neighbours come out nearest first, with ties going to the lower index, so the result doesn't depend
+ * on the order the grid holds the boids in and every thread count gives the same answer.
+ */
+public class TopologicalNeighbours {
+    // Searches give up on the grid and compare every boid past this many average spacings
+    private static final float HORIZON_SPACINGS = 4;
+
+    private final SpatialGrid grid = new SpatialGrid();
+    private BoidStore boids;
+    private WrappingScheme wrappingScheme;
+    private int k;
+    private float horizon;
+    private int maxRing;
+
+    /**
+     * Rebuild the grid from the current positions of the boids, ready to find each one's k nearest.
+     */
+    public void build(BoidStore boids, WrappingScheme wrappingScheme, int k) {
+        this.boids = boids;
+        this.wrappingScheme = wrappingScheme;
+        this.k = Math.max(1, k);
+        float width = wrappingScheme.getWidth();
+        float height = wrappingScheme.getHeight();
+        // The radius that holds k boids on average
+        float spacing = (float) Math.sqrt(this.k * width * height / (Math.PI * Math.max(1, boids.size())));
+        horizon = Math.min(HORIZON_SPACINGS * spacing, Math.max(width, height));
+        float cellSize = Math.min(spacing, horizon);
+        grid.build(boids, wrappingScheme, horizon, cellSize);
+        maxRing = (int) Math.ceil(horizon / grid.getCellSize());
+    }
+
+    /**
+     * Find a boid's k nearest neighbours, packed into the search's neighbours as dx, dy, vx, vy groups.
+     * @return the number of pairs tested
+     */
+    public int find(int boid, Search search) {
+        search.reset(k);
+        float x = boids.positionX[boid];
+        float y = boids.positionY[boid];
+        int wanted = Math.min(k, boids.size() - 1);
+        float cellSize = grid.getCellSize();
+        int tested = 0;
+        grid.startSearch(search.query);
+        for (int ring = 0; ring <= maxRing; ring++) {
+            int candidateCount = grid.findCandidatesInRing(boid, x, y, ring, search.query);
+            int[] candidates = search.query.getCandidates();
+            tested += candidateCount;
+            for (int c = 0; c < candidateCount; c++) {
+                consider(boid, candidates[c], search);
+            }
+            if (search.count == wanted) {
+                // Everything not yet seen is at least this far away
+                float reach = Math.min(ring * cellSize, horizon);
+                if (wanted == boids.size() - 1 || search.bestDistanceSquared[search.count - 1] < reach * reach) {
+                    pack(boid, search);
+                    return tested;
+                }
+            }
+        }
+        return tested + findExhaustively(boid, search);
+    }
+
+    /**
+     * Find a boid's k nearest neighbours by comparing it against every other boid.
+     * @return the number of pairs tested
+     */
+    public int findExhaustively(int boid, Search search) {
+        search.reset(k);
+        for (int other = 0; other < boids.size(); other++) {
+            if (other != boid) {
+                consider(boid, other, search);
+            }
+        }
+        pack(boid, search);
+        return boids.size() - 1;
+    }
+
+    // Insert other among the best found so far if it's closer than the furthest of them
+    private void consider(int boid, int other, Search search) {
+        int image = wrappingScheme.relativeDisplacement(boids.positionX[boid], boids.positionY[boid],
+                boids.positionX[other], boids.positionY[other], search.displacement, 0);
+        float dx = search.displacement[0];
+        float dy = search.displacement[1];
+        float distanceSquared = dx * dx + dy * dy;
+        int slot = search.count;
+        if (search.count == search.bestBoid.length) {
+            if (!closer(distanceSquared, other, search.count - 1, search)) return;
+            slot = search.count - 1;
+        } else {
+            search.count += 1;
+        }
+        while (slot > 0 && closer(distanceSquared, other, slot - 1, search)) {
+            search.bestDistanceSquared[slot] = search.bestDistanceSquared[slot - 1];
+            search.bestBoid[slot] = search.bestBoid[slot - 1];
+            search.bestImage[slot] = search.bestImage[slot - 1];
+            search.bestX[slot] = search.bestX[slot - 1];
+            search.bestY[slot] = search.bestY[slot - 1];
+            slot -= 1;
+        }
+        search.bestDistanceSquared[slot] = distanceSquared;
+        search.bestBoid[slot] = other;
+        search.bestImage[slot] = image;
+        search.bestX[slot] = dx;
+        search.bestY[slot] = dy;
+    }
+
+    private static boolean closer(float distanceSquared, int other, int slot, Search search) {
+        return distanceSquared < search.bestDistanceSquared[slot]
+                || (distanceSquared == search.bestDistanceSquared[slot] && other < search.bestBoid[slot]);
+    }
+
+    private void pack(int boid, Search search) {
+        for (int n = 0; n < search.count; n++) {
+            int other = search.bestBoid[n];
+            search.neighbours[4 * n] = search.bestX[n];
+            search.neighbours[4 * n + 1] = search.bestY[n];
+            wrappingScheme.relativeVelocity(search.bestImage[n], boids.velocityX[other], boids.velocityY[other], search.neighbours, 4 * n + 2);
+        }
+    }
+
+    /**
+     * Scratch space and results for one thread's searches.
+     */
+    public static class Search {
+        private final SpatialGrid.Query query = new SpatialGrid.Query();
+        private final float[] displacement = new float[2];
+        private float[] bestDistanceSquared = new float[0];
+        private int[] bestBoid = new int[0];
+        private int[] bestImage = new int[0];
+        private float[] bestX = new float[0];
+        private float[] bestY = new float[0];
+        private float[] neighbours = new float[0];
+        private int count;
+
+        // Packed as dx, dy, vx, vy groups, nearest first
+        public float[] getNeighbours() {
+            return neighbours;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        private void reset(int k) {
+            if (bestBoid.length != k) {
+                bestDistanceSquared = new float[k];
+                bestBoid = new int[k];
+                bestImage = new int[k];
+                bestX = new float[k];
+                bestY = new float[k];
+                neighbours = new float[4 * k];
+            }
+            count = 0;
+        }
+    }
+}
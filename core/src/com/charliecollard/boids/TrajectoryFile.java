@@ -0,0 +1,109 @@
+package com.charliecollard.boids;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Layout shared by {@link TrajectoryRecorder} and {@link TrajectoryReader}. Everything is little-endian.
+ * A trajectory is a header, then one chunk per recorded tick, then an index of the chunks:
+ *
+ * <pre>
+ * header  magic "BTRJ", version, header length, width, height, ticks between frames, encoding,
+ *         wrapping scheme name length, then the name padded to 4 bytes
+ * chunk   tick, boid count, encoding, payload length, payload
+ * index   for each chunk its file offset (8 bytes), tick and encoding, then the index offset
+ *         (8 bytes), chunk count and magic "BIDX"
+ * </pre>
+ *
+ * The payload holds x positions, y positions, x velocities then y velocities. With
+ * {@link #ENCODING_FLOAT} each is a plain float. With {@link #ENCODING_QUANTIZED} each is 16 bits,
+ * positions as a fraction of the simulation size and velocities as a fraction of the maximum speed.
+ * {@link #ENCODING_DELTA} chunks hold how far each quantized value is from a prediction as a zigzag
+ * varint, taken modulo 2^16 so that a boid wrapping across the edge is still a small change. Velocities
+ * are predicted to be the same as in the previous chunk and positions to carry on moving as they did
+ * between the two chunks before, so a boid flying straight costs a byte per value. Every
+ * {@link #KEYFRAME_INTERVAL}th chunk of a delta recording is stored quantized so seeking never has far
+ * to decode. If a recording was cut off before the index was written, the reader rebuilds it by
+ * walking the chunks.
+ */
+public class TrajectoryFile {
+    public static final int ENCODING_FLOAT = 0;
+    public static final int ENCODING_QUANTIZED = 1;
+    public static final int ENCODING_DELTA = 2;
+    public static final String EXTENSION = ".traj";
+    public static final int VERSION = 1;
+    public static final int KEYFRAME_INTERVAL = 64;
+
+    static final int MAGIC = 'B' | 'T' << 8 | 'R' << 16 | 'J' << 24;
+    static final int INDEX_MAGIC = 'B' | 'I' << 8 | 'D' << 16 | 'X' << 24;
+    static final int FIXED_HEADER_BYTES = 32;
+    static final int CHUNK_HEADER_BYTES = 16;
+    static final int INDEX_ENTRY_BYTES = 16;
+    static final int TRAILER_BYTES = 16;
+    static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final float QUANTIZED_POSITION_STEPS = 65535f;
+    private static final float QUANTIZED_VELOCITY_STEPS = 32767f;
+
+    private TrajectoryFile() {
+    }
+
+    /**
+     * Parse an encoding from its command line name: 'float', 'quantized' or 'delta'.
+     */
+    public static int encodingForName(String name) {
+        if (name.equals("float")) return ENCODING_FLOAT;
+        if (name.equals("quantized")) return ENCODING_QUANTIZED;
+        if (name.equals("delta")) return ENCODING_DELTA;
+        throw new IllegalArgumentException("Unknown trajectory encoding " + name);
+    }
+
+    // Quantized values are kept as unsigned 16 bit ints
+
+    static int quantizePosition(float position, int size) {
+        int steps = Math.round(position / size * QUANTIZED_POSITION_STEPS);
+        return Math.max(0, Math.min(0xffff, steps));
+    }
+
+    static float dequantizePosition(int quantized, int size) {
+        return quantized / QUANTIZED_POSITION_STEPS * size;
+    }
+
+    static int quantizeVelocity(float velocity) {
+        int steps = Math.round(velocity / Boid.MAX_SPEED * QUANTIZED_VELOCITY_STEPS);
+        return Math.max(-32767, Math.min(32767, steps)) & 0xffff;
+    }
+
+    static float dequantizeVelocity(int quantized) {
+        return (short) quantized / QUANTIZED_VELOCITY_STEPS * Boid.MAX_SPEED;
+    }
+
+    // The expected quantized value of a delta frame, from the last value and, for positions, the one before
+    static int predict(int[] last, int[] before, int i) {
+        if (before == null) return last[i];
+        return (2 * last[i] - before[i]) & 0xffff;
+    }
+
+    static void putDelta(ByteBuffer buffer, int predicted, int current) {
+        int delta = (short) (current - predicted);
+        int zigzag = (delta << 1) ^ (delta >> 31);
+        while ((zigzag & ~0x7f) != 0) {
+            buffer.put((byte) (zigzag & 0x7f | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    static int getDelta(ByteBuffer buffer, int predicted) {
+        int zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            zigzag |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        int delta = (zigzag >>> 1) ^ -(zigzag & 1);
+        return (predicted + delta) & 0xffff;
+    }
+}
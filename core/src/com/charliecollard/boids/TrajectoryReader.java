@@ -0,0 +1,232 @@
+package com.charliecollard.boids;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads back a {@link TrajectoryFile} frame by frame, in any order. Delta encoded frames are decoded
+ * forward from the nearest keyframe, so stepping through a recording in order only ever decodes each
+ * frame once.
+ */
+public class TrajectoryReader {
+    public final int width;
+    public final int height;
+    public final int recordEvery;
+    public final WrappingScheme wrappingScheme;
+
+    private final File file;
+    private final FileChannel channel;
+    private long[] chunkOffsets;
+    private int[] chunkTicks;
+    private int[] chunkEncodings;
+    private int chunkCount;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    // The quantized values of the last frame decoded, which delta frames build on
+    private int[][] decoded = new int[4][0];
+    private int[][] decodedBefore = new int[2][0];
+    private int decodedFrame = -1;
+    private int decodedCount = 0;
+
+    public TrajectoryReader(File file) throws IOException {
+        this.file = file;
+        channel = new FileInputStream(file).getChannel();
+        try {
+            read(0, TrajectoryFile.FIXED_HEADER_BYTES);
+            if (buffer.getInt(0) != TrajectoryFile.MAGIC) {
+                throw new IOException(file + " is not a trajectory");
+            }
+            int version = buffer.getInt(4);
+            if (version < 1 || version > TrajectoryFile.VERSION) {
+                throw new IOException(file + " is trajectory version " + version + ", only up to " + TrajectoryFile.VERSION + " can be read");
+            }
+            int headerBytes = buffer.getInt(8);
+            width = buffer.getInt(12);
+            height = buffer.getInt(16);
+            recordEvery = buffer.getInt(20);
+            int schemeNameLength = buffer.getInt(28);
+            if (schemeNameLength < 0 || TrajectoryFile.FIXED_HEADER_BYTES + schemeNameLength > headerBytes) {
+                throw new IOException(file + " has a corrupt header");
+            }
+            read(TrajectoryFile.FIXED_HEADER_BYTES, schemeNameLength);
+            byte[] schemeName = new byte[schemeNameLength];
+            buffer.get(schemeName);
+            try {
+                wrappingScheme = WrappingScheme.forName(new String(schemeName, TrajectoryFile.ASCII));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " uses an unknown wrapping scheme", e);
+            }
+            if (!readIndex()) {
+                rebuildIndex(headerBytes);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public int getFrameCount() {
+        return chunkCount;
+    }
+
+    // The simulation tick a frame was recorded on
+    public int getTick(int frame) {
+        return chunkTicks[frame];
+    }
+
+    /**
+     * Replace the contents of the store with the boids in the given frame.
+     */
+    public void readFrame(int frame, BoidStore store) throws IOException {
+        if (frame < 0 || frame >= chunkCount) {
+            throw new IndexOutOfBoundsException("Frame " + frame + " of " + chunkCount);
+        }
+        int count;
+        if (chunkEncodings[frame] == TrajectoryFile.ENCODING_FLOAT) {
+            count = decodeChunk(frame);
+        } else if (decodedFrame == frame) {
+            count = decodedCount;
+        } else {
+            int start = frame;
+            while (chunkEncodings[start] == TrajectoryFile.ENCODING_DELTA) start--;
+            if (decodedFrame >= start && decodedFrame < frame) start = decodedFrame + 1;
+            count = 0;
+            for (int f = start; f <= frame; f++) {
+                count = decodeChunk(f);
+            }
+        }
+
+        store.clear();
+        store.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            store.add(0, 0, 0, 0);
+        }
+        if (chunkEncodings[frame] == TrajectoryFile.ENCODING_FLOAT) {
+            buffer.position(TrajectoryFile.CHUNK_HEADER_BYTES);
+            buffer.asFloatBuffer().get(store.positionX, 0, count).get(store.positionY, 0, count)
+                    .get(store.velocityX, 0, count).get(store.velocityY, 0, count);
+        } else {
+            for (int i = 0; i < count; i++) {
+                store.positionX[i] = TrajectoryFile.dequantizePosition(decoded[0][i], width);
+                store.positionY[i] = TrajectoryFile.dequantizePosition(decoded[1][i], height);
+                store.velocityX[i] = TrajectoryFile.dequantizeVelocity(decoded[2][i]);
+                store.velocityY[i] = TrajectoryFile.dequantizeVelocity(decoded[3][i]);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Read a chunk into the buffer, decoding quantized values into decoded. Returns the boid count.
+    private int decodeChunk(int frame) throws IOException {
+        long offset = chunkOffsets[frame];
+        read(offset, TrajectoryFile.CHUNK_HEADER_BYTES);
+        int count = buffer.getInt(4);
+        int payloadBytes = buffer.getInt(12);
+        read(offset, TrajectoryFile.CHUNK_HEADER_BYTES + payloadBytes);
+        buffer.position(TrajectoryFile.CHUNK_HEADER_BYTES);
+        int encoding = chunkEncodings[frame];
+        if (encoding == TrajectoryFile.ENCODING_FLOAT) {
+            return count;
+        }
+        decodedFrame = -1;
+        if (encoding == TrajectoryFile.ENCODING_DELTA && decoded[0].length < count) {
+            throw new IOException(file + " has a delta frame with more boids than the frame before it");
+        }
+        if (decoded[0].length < count) {
+            for (int c = 0; c < 4; c++) {
+                decoded[c] = Arrays.copyOf(decoded[c], count);
+            }
+            for (int c = 0; c < 2; c++) {
+                decodedBefore[c] = Arrays.copyOf(decodedBefore[c], count);
+            }
+        }
+        for (int c = 0; c < 4; c++) {
+            int[] values = decoded[c];
+            int[] before = c < 2 ? decodedBefore[c] : null;
+            for (int i = 0; i < count; i++) {
+                int value = encoding == TrajectoryFile.ENCODING_DELTA
+                        ? TrajectoryFile.getDelta(buffer, TrajectoryFile.predict(values, before, i)) : buffer.getShort() & 0xffff;
+                if (before != null) {
+                    before[i] = encoding == TrajectoryFile.ENCODING_DELTA ? values[i] : value;
+                }
+                values[i] = value;
+            }
+        }
+        decodedFrame = frame;
+        decodedCount = count;
+        return count;
+    }
+
+    // Load the index from the end of the file, returning false if it isn't there
+    private boolean readIndex() throws IOException {
+        long size = channel.size();
+        if (size < TrajectoryFile.FIXED_HEADER_BYTES + TrajectoryFile.TRAILER_BYTES) return false;
+        read(size - TrajectoryFile.TRAILER_BYTES, TrajectoryFile.TRAILER_BYTES);
+        if (buffer.getInt(12) != TrajectoryFile.INDEX_MAGIC) return false;
+        long indexOffset = buffer.getLong(0);
+        int count = buffer.getInt(8);
+        if (count < 0 || indexOffset + (long) count * TrajectoryFile.INDEX_ENTRY_BYTES + TrajectoryFile.TRAILER_BYTES != size) {
+            return false;
+        }
+        read(indexOffset, count * TrajectoryFile.INDEX_ENTRY_BYTES);
+        allocateIndex(count);
+        for (int i = 0; i < count; i++) {
+            chunkOffsets[i] = buffer.getLong();
+            chunkTicks[i] = buffer.getInt();
+            chunkEncodings[i] = buffer.getInt();
+        }
+        chunkCount = count;
+        return true;
+    }
+
+    // Walk the chunks of a recording that stopped before writing its index
+    private void rebuildIndex(long offset) throws IOException {
+        long size = channel.size();
+        allocateIndex(256);
+        chunkCount = 0;
+        while (offset + TrajectoryFile.CHUNK_HEADER_BYTES <= size) {
+            read(offset, TrajectoryFile.CHUNK_HEADER_BYTES);
+            long next = offset + TrajectoryFile.CHUNK_HEADER_BYTES + buffer.getInt(12);
+            // A chunk cut off part way through is dropped
+            if (next > size) break;
+            if (chunkCount == chunkOffsets.length) {
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+                chunkTicks = Arrays.copyOf(chunkTicks, chunkCount * 2);
+                chunkEncodings = Arrays.copyOf(chunkEncodings, chunkCount * 2);
+            }
+            chunkOffsets[chunkCount] = offset;
+            chunkTicks[chunkCount] = buffer.getInt(0);
+            chunkEncodings[chunkCount] = buffer.getInt(8);
+            chunkCount += 1;
+            offset = next;
+        }
+    }
+
+    private void allocateIndex(int capacity) {
+        chunkOffsets = new long[capacity];
+        chunkTicks = new int[capacity];
+        chunkEncodings = new int[capacity];
+    }
+
+    // Fill the buffer with the given bytes of the file, leaving it positioned at the start
+    private void read(long offset, int length) throws IOException {
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException(file + " ends part way through a frame");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,281 @@
+package com.charliecollard.boids;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Appends the positions and velocities of every boid to a {@link TrajectoryFile} every few ticks.
+ *
+ * The tick thread only copies the store into one of a few recycled frames and queues it; encoding and
+ * writing happen on a background thread. If the writer falls so far behind that no frame is free the
+ * tick is skipped rather than waiting on the disk, and the number of skipped ticks is reported when
+ * the recording is closed.
+ */
+public class TrajectoryRecorder {
+    public static String recordFile;
+    public static int recordEvery = 1;
+    public static int encoding = TrajectoryFile.ENCODING_FLOAT;
+    private static final int BUFFERED_FRAMES = 4;
+
+    private final File file;
+    private final int frameEncoding;
+    private final int width;
+    private final int height;
+    private final ArrayBlockingQueue<Frame> freeFrames = new ArrayBlockingQueue<>(BUFFERED_FRAMES);
+    private final ArrayBlockingQueue<Frame> pendingFrames = new ArrayBlockingQueue<>(BUFFERED_FRAMES + 1);
+    private final Frame endOfRecording = new Frame();
+    private final Thread writerThread;
+    private int droppedFrames = 0;
+    private boolean closed = false;
+
+    // Only touched by the writer thread
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private long position = 0;
+    private long[] chunkOffsets = new long[256];
+    private int[] chunkTicks = new int[256];
+    private int[] chunkEncodings = new int[256];
+    private int chunkCount = 0;
+    private int[][] previous = new int[4][0];
+    private int[][] beforePrevious = new int[2][0];
+    private int previousCount = -1;
+    private int chunksSinceKeyframe = 0;
+    private volatile IOException failure;
+
+    /**
+     * Start a recording of a world with the given wrapping scheme and size, writing the header straight away.
+     * @param encoding one of the TrajectoryFile encodings
+     */
+    public TrajectoryRecorder(File file, int encoding, WrappingScheme wrappingScheme) throws IOException {
+        if (recordEvery < 1) {
+            throw new IllegalArgumentException("Can't record every " + recordEvery + " ticks");
+        }
+        this.file = file;
+        this.frameEncoding = encoding;
+        width = wrappingScheme.getWidth();
+        height = wrappingScheme.getHeight();
+        channel = new FileOutputStream(file).getChannel();
+        writeHeader(wrappingScheme.getName());
+        for (int i = 0; i < BUFFERED_FRAMES; i++) {
+            freeFrames.add(new Frame());
+        }
+        writerThread = new Thread("Trajectory writer") {
+            @Override
+            public void run() {
+                writeFrames();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queue the current state of the store to be written, if the tick is one that should be recorded.
+     */
+    public void record(BoidStore store, int tick) {
+        if (closed || tick % recordEvery != 0) return;
+        Frame frame = freeFrames.poll();
+        if (frame == null) {
+            droppedFrames += 1;
+            return;
+        }
+        frame.copyFrom(store, tick);
+        pendingFrames.add(frame);
+    }
+
+    /**
+     * Finish writing every queued frame and the index, then close the file.
+     */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            pendingFrames.put(endOfRecording);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            System.out.println("Recording to " + file.getPath() + " failed: " + failure.getMessage());
+        } else if (droppedFrames > 0) {
+            System.out.println("Recording to " + file.getPath() + " skipped " + droppedFrames + " frames while the writer caught up");
+        }
+    }
+
+    private void writeFrames() {
+        try {
+            while (true) {
+                Frame frame = pendingFrames.take();
+                if (frame == endOfRecording) break;
+                writeChunk(frame);
+                freeFrames.add(frame);
+            }
+            writeIndex();
+        } catch (IOException e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            // Leave the index off, the reader can rebuild it
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeHeader(String wrappingSchemeName) throws IOException {
+        byte[] schemeName = wrappingSchemeName.getBytes(TrajectoryFile.ASCII);
+        int headerBytes = TrajectoryFile.FIXED_HEADER_BYTES + (schemeName.length + 3) / 4 * 4;
+        buffer.clear();
+        buffer.putInt(TrajectoryFile.MAGIC);
+        buffer.putInt(TrajectoryFile.VERSION);
+        buffer.putInt(headerBytes);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(recordEvery);
+        buffer.putInt(frameEncoding);
+        buffer.putInt(schemeName.length);
+        buffer.put(schemeName);
+        buffer.position(headerBytes);
+        flush();
+    }
+
+    private void writeChunk(Frame frame) throws IOException {
+        int count = frame.count;
+        int chunkEncoding = frameEncoding;
+        if (chunkEncoding == TrajectoryFile.ENCODING_DELTA
+                && (count != previousCount || chunksSinceKeyframe >= TrajectoryFile.KEYFRAME_INTERVAL)) {
+            chunkEncoding = TrajectoryFile.ENCODING_QUANTIZED;
+        }
+        // Varint deltas take at most three bytes per value
+        int payloadLimit = count * 4 * (chunkEncoding == TrajectoryFile.ENCODING_QUANTIZED ? 2 : 4);
+        ensureBuffer(TrajectoryFile.CHUNK_HEADER_BYTES + payloadLimit);
+
+        buffer.clear();
+        buffer.putInt(frame.tick);
+        buffer.putInt(count);
+        buffer.putInt(chunkEncoding);
+        buffer.putInt(0);
+        if (chunkEncoding == TrajectoryFile.ENCODING_FLOAT) {
+            for (float[] component : frame.components) {
+                buffer.asFloatBuffer().put(component, 0, count);
+                buffer.position(buffer.position() + count * 4);
+            }
+        } else {
+            if (frameEncoding == TrajectoryFile.ENCODING_DELTA && previous[0].length < count) {
+                for (int c = 0; c < 4; c++) {
+                    previous[c] = Arrays.copyOf(previous[c], count);
+                }
+                for (int c = 0; c < 2; c++) {
+                    beforePrevious[c] = Arrays.copyOf(beforePrevious[c], count);
+                }
+            }
+            for (int c = 0; c < 4; c++) {
+                float[] values = frame.components[c];
+                int[] last = previous[c];
+                int[] before = c < 2 ? beforePrevious[c] : null;
+                for (int i = 0; i < count; i++) {
+                    int quantized = quantize(c, values[i]);
+                    if (chunkEncoding == TrajectoryFile.ENCODING_DELTA) {
+                        TrajectoryFile.putDelta(buffer, TrajectoryFile.predict(last, before, i), quantized);
+                    } else {
+                        buffer.putShort((short) quantized);
+                    }
+                    if (frameEncoding == TrajectoryFile.ENCODING_DELTA) {
+                        if (before != null) {
+                            before[i] = chunkEncoding == TrajectoryFile.ENCODING_DELTA ? last[i] : quantized;
+                        }
+                        last[i] = quantized;
+                    }
+                }
+            }
+            chunksSinceKeyframe = chunkEncoding == TrajectoryFile.ENCODING_DELTA ? chunksSinceKeyframe + 1 : 1;
+            previousCount = count;
+        }
+        buffer.putInt(12, buffer.position() - TrajectoryFile.CHUNK_HEADER_BYTES);
+
+        if (chunkCount == chunkOffsets.length) {
+            chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+            chunkTicks = Arrays.copyOf(chunkTicks, chunkCount * 2);
+            chunkEncodings = Arrays.copyOf(chunkEncodings, chunkCount * 2);
+        }
+        chunkOffsets[chunkCount] = position;
+        chunkTicks[chunkCount] = frame.tick;
+        chunkEncodings[chunkCount] = chunkEncoding;
+        chunkCount += 1;
+        flush();
+    }
+
+    private void writeIndex() throws IOException {
+        long indexOffset = position;
+        ensureBuffer(chunkCount * TrajectoryFile.INDEX_ENTRY_BYTES + TrajectoryFile.TRAILER_BYTES);
+        buffer.clear();
+        for (int i = 0; i < chunkCount; i++) {
+            buffer.putLong(chunkOffsets[i]);
+            buffer.putInt(chunkTicks[i]);
+            buffer.putInt(chunkEncodings[i]);
+        }
+        buffer.putLong(indexOffset);
+        buffer.putInt(chunkCount);
+        buffer.putInt(TrajectoryFile.INDEX_MAGIC);
+        flush();
+    }
+
+    private int quantize(int component, float value) {
+        if (component == 0) return TrajectoryFile.quantizePosition(value, width);
+        if (component == 1) return TrajectoryFile.quantizePosition(value, height);
+        return TrajectoryFile.quantizeVelocity(value);
+    }
+
+    private void ensureBuffer(int bytes) {
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocateDirect(Math.max(bytes, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // Write everything up to the buffer's position
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    private static class Frame {
+        private int tick;
+        private int count;
+        private final float[][] components = new float[4][0];
+
+        private void copyFrom(BoidStore store, int tick) {
+            this.tick = tick;
+            count = store.size();
+            if (components[0].length < count) {
+                for (int c = 0; c < 4; c++) {
+                    components[c] = new float[store.capacity()];
+                }
+            }
+            if (store.isInIdOrder()) {
+                System.arraycopy(store.positionX, 0, components[0], 0, count);
+                System.arraycopy(store.positionY, 0, components[1], 0, count);
+                System.arraycopy(store.velocityX, 0, components[2], 0, count);
+                System.arraycopy(store.velocityY, 0, components[3], 0, count);
+                return;
+            }
+            // Recorded by id, so each boid keeps its place in the file however the store is ordered
+            for (int i = 0; i < count; i++) {
+                int id = store.ids[i];
+                components[0][id] = store.positionX[i];
+                components[1][id] = store.positionY[i];
+                components[2][id] = store.velocityX[i];
+                components[3][id] = store.velocityY[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.charliecollard.boids;
+
+import java.util.Arrays;
+
+/**
+ * Neighbour candidates kept from tick to tick, Verlet list style, so the grid only has to be searched
+ * every few ticks.
+ *
+ * When the lists are built, each boid gets every other boid within its vision range plus a skin. Until
+ * some boid has moved more than half the skin, no pair can have come within vision range without
+ * already being on each other's lists, so the candidates can be reused and only their current distances
+ * need checking. Movement is measured with the wrapping scheme, so a boid that has just wrapped to the
+ * far side counts as having moved as far as it really did, not the width of the simulation.
+ *
+ * Each boid's candidates are kept in ascending index order, the same order a grid search gives, so the
+ * neighbours found are exactly those of the grid search in the same order, and so is the result.
+ *
+ * Boids fly at close to {@link Boid#MAX_SPEED}, so how many ticks a list lasts follows directly from the
+ * skin and the timestep. A thicker skin means fewer rebuilds but longer lists and a bigger grid search
+ * when a rebuild does happen, so unless the config sets one the skin is picked by {@link #skinFor} to
+ * balance the two. Lists only pay off when a boid's vision range is several ticks' travel across; at
+ * the default 40 pixels a boid covers 6 pixels a tick and the plain grid search is faster.
+ */
+public class VerletLists {
+    // Measured cost of testing a pair found by a grid search, sorting included, relative to one on a list
+    private static final float GRID_PAIR_COST = 4;
+    private static final int MAX_TICKS_PER_BUILD = 16;
+
+    private int[] offsets = new int[1];
+    private int[] candidates = new int[1024];
+    private float[] builtX = new float[0];
+    private float[] builtY = new float[0];
+    // Recycled by reorder
+    private int[] reorderedOffsets = new int[1];
+    private int[] reorderedCandidates = new int[0];
+    private float[] reorderedX = new float[0];
+    private float[] reorderedY = new float[0];
+    private int[] slotOf = new int[0];
+    private final float[] displacement = new float[2];
+    private int boidCount = -1;
+    private float builtRange;
+    private WrappingScheme builtScheme;
+    private float skin;
+    private long rebuilds = 0;
+
+    /**
+     * The skin to use for a config and timestep: its own if it sets one, otherwise the one that makes a
+     * tick cheapest for boids at full speed.
+     *
+     * A skin that lets boids go k ticks between rebuilds costs a grid search over (range + skin) every k
+     * ticks plus a walk of the lists every tick. Grid searches look at the 3 by 3 cells around a boid
+     * and lists hold a circle, so per boid that's 9 (range + skin)^2 / k pairs at the grid's price and
+     * pi (range + skin)^2 at the list's.
+     */
+    public static float skinFor(SimulationConfig config, float deltaTime) {
+        if (config.verletSkin > 0) return config.verletSkin;
+        float timestep = config.updateMode == Boid.UPDATE_TIMED ? deltaTime : 0.02f;
+        float step = Boid.MAX_SPEED * timestep;
+        if (step <= 0) return 0;
+        float bestSkin = 0;
+        float bestCost = Float.MAX_VALUE;
+        for (int ticks = 2; ticks <= MAX_TICKS_PER_BUILD; ticks++) {
+            // Room for ticks - 1 steps each side before a rebuild, with a quarter step to spare for rounding
+            float skin = 2 * (ticks - 0.75f) * step;
+            float reach = config.visionRange + skin;
+            float cost = reach * reach * (9 * GRID_PAIR_COST / ticks + Boid.PI);
+            if (cost < bestCost) {
+                bestCost = cost;
+                bestSkin = skin;
+            }
+        }
+        return bestSkin;
+    }
+
+    /**
+     * Whether the lists have to be rebuilt before the boids' neighbours can be found from them, either
+     * because some boid has moved more than half the skin or because the flock or its settings changed.
+     */
+    public boolean needsRebuild(BoidStore store, WrappingScheme wrappingScheme, float visionRange, float skin) {
+        if (store.size() != boidCount || wrappingScheme != builtScheme || visionRange + skin != builtRange
+                || skin != this.skin) {
+            return true;
+        }
+        float limitSquared = skin * skin / 4;
+        for (int i = 0; i < boidCount; i++) {
+            float dx = store.positionX[i] - builtX[i];
+            float dy = store.positionY[i] - builtY[i];
+            if (dx * dx + dy * dy > limitSquared) {
+                // Either it has really moved that far or it has wrapped, which the scheme can tell apart
+                wrappingScheme.relativeDisplacement(builtX[i], builtY[i], store.positionX[i], store.positionY[i], displacement, 0);
+                dx = displacement[0];
+                dy = displacement[1];
+                if (dx * dx + dy * dy > limitSquared) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Build the lists from the current positions.
+     * @param grid a grid already built from the current positions with a range of at least visionRange + skin
+     * @return the number of pairs tested
+     */
+    public long build(BoidStore store, SpatialGrid grid, WrappingScheme wrappingScheme, float visionRange, float skin) {
+        boidCount = store.size();
+        builtScheme = wrappingScheme;
+        builtRange = visionRange + skin;
+        this.skin = skin;
+        if (offsets.length < boidCount + 1) {
+            offsets = new int[boidCount + 1];
+        }
+        if (builtX.length < boidCount) {
+            builtX = new float[store.capacity()];
+            builtY = new float[store.capacity()];
+        }
+        System.arraycopy(store.positionX, 0, builtX, 0, boidCount);
+        System.arraycopy(store.positionY, 0, builtY, 0, boidCount);
+
+        long tested = 0;
+        float rangeSquared = builtRange * builtRange;
+        int total = 0;
+        for (int i = 0; i < boidCount; i++) {
+            offsets[i] = total;
+            int candidateCount = grid.findCandidates(i, builtX[i], builtY[i], builtRange);
+            int[] found = grid.getCandidates();
+            tested += candidateCount;
+            if (total + candidateCount > candidates.length) {
+                candidates = Arrays.copyOf(candidates, Math.max(candidates.length * 2, total + candidateCount));
+            }
+            for (int c = 0; c < candidateCount; c++) {
+                int other = found[c];
+                wrappingScheme.relativeDisplacement(builtX[i], builtY[i], builtX[other], builtY[other], displacement, 0);
+                if (displacement[0] * displacement[0] + displacement[1] * displacement[1] < rangeSquared) {
+                    candidates[total++] = other;
+                }
+            }
+        }
+        offsets[boidCount] = total;
+        rebuilds += 1;
+        return tested;
+    }
+
+    /**
+     * Follow the boids to the slots a {@link BoidStore#reorder} moved them to, so the lists stay usable.
+     * Each list is sorted again so candidates stay in ascending index order.
+     * @param order the slot each slot's boid came from
+     */
+    public void reorder(int[] order, int count) {
+        if (count != boidCount) {
+            invalidate();
+            return;
+        }
+        if (slotOf.length < boidCount) {
+            slotOf = new int[builtX.length];
+            reorderedX = new float[builtX.length];
+            reorderedY = new float[builtX.length];
+        }
+        if (reorderedOffsets.length < offsets.length) {
+            reorderedOffsets = new int[offsets.length];
+        }
+        if (reorderedCandidates.length < candidates.length) {
+            reorderedCandidates = new int[candidates.length];
+        }
+        for (int i = 0; i < boidCount; i++) {
+            slotOf[order[i]] = i;
+        }
+        int total = 0;
+        for (int i = 0; i < boidCount; i++) {
+            int old = order[i];
+            reorderedOffsets[i] = total;
+            reorderedX[i] = builtX[old];
+            reorderedY[i] = builtY[old];
+            for (int c = offsets[old]; c < offsets[old + 1]; c++) {
+                reorderedCandidates[total++] = slotOf[candidates[c]];
+            }
+            Arrays.sort(reorderedCandidates, reorderedOffsets[i], total);
+        }
+        reorderedOffsets[boidCount] = total;
+
+        int[] swap = offsets;
+        offsets = reorderedOffsets;
+        reorderedOffsets = swap;
+        swap = candidates;
+        candidates = reorderedCandidates;
+        reorderedCandidates = swap;
+        float[] swapFloats = builtX;
+        builtX = reorderedX;
+        reorderedX = swapFloats;
+        swapFloats = builtY;
+        builtY = reorderedY;
+        reorderedY = swapFloats;
+    }
+
+    /**
+     * Force a rebuild before the lists are next used, as when the boids have been moved between slots.
+     */
+    public void invalidate() {
+        boidCount = -1;
+    }
+
+    // Changes whenever the lists are rebuilt, so fetch it again after building
+    public int[] getCandidates() {
+        return candidates;
+    }
+
+    public int getStart(int boid) {
+        return offsets[boid];
+    }
+
+    public int getEnd(int boid) {
+        return offsets[boid + 1];
+    }
+
+    // Candidate pairs across every boid
+    public int getTotalCount() {
+        return offsets[boidCount];
+    }
+
+    public float getSkin() {
+        return skin;
+    }
+
+    public long getRebuildCount() {
+        return rebuilds;
+    }
+}
@@ -6,6 +6,39 @@ import javafx.util.Pair;
 import java.util.List;
 
 public abstract class WrappingScheme {
+    public static final int SAME_UNIVERSE = 0;
+    public static final int MAX_GHOST_IMAGES = 8;
+
+    // The size of the world the scheme wraps
+    protected int width = 880;
+    protected int height = 880;
+
+    /**
+     * Create a wrapping scheme from its command line name: 'periodic', 'solid', 'sphere' or 'klein'.
+     */
+    public static WrappingScheme forName(String name) {
+        if (name.equals("periodic")) return new PeriodicWrappingScheme();
+        if (name.equals("solid")) return new SolidWrappingScheme();
+        if (name.equals("sphere")) return new SphereWrappingScheme();
+        if (name.equals("klein")) return new KleinWrappingScheme();
+        throw new IllegalArgumentException("Unknown wrapping scheme " + name);
+    }
+
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // The command line name of the scheme, as accepted by forName
+    public abstract String getName();
     public abstract Vector2 relativeDisplacement(Boid from, Boid to);
     public abstract Vector2 relativeDisplacement(Vector2 from, Vector2 to);
     public abstract Vector2 relativeVelocity(Boid from, Boid to);
@@ -14,4 +47,33 @@ public abstract class WrappingScheme {
     public abstract Vector2 wrappedVelocity(Vector2 position, Vector2 currentVelocity);
     public abstract Vector2 wrappedPosition(Vector2 positionToWrap);
     public abstract List<Pair<Vector2, Vector2>> getRenderingPositionsAndVelocities(Boid boid);
+
+    // The methods below do the same jobs without allocating, for use in the simulation's inner loops.
+    // Results are written into caller-supplied arrays so they can go straight into packed buffers.
+
+    /**
+     * Write the displacement from one position to the nearest image of another into out[offset] and
+     * out[offset + 1].
+     * @return which universe the nearest image lies in, {@link #SAME_UNIVERSE} or a scheme-specific
+     * index that can be passed to {@link #relativeVelocity(int, float, float, float[], int)}
+     */
+    public abstract int relativeDisplacement(float fromX, float fromY, float toX, float toY, float[] out, int offset);
+
+    /**
+     * Write the velocity of a boid as seen through the given image into out[offset] and out[offset + 1].
+     * @param image a universe index returned by {@link #relativeDisplacement(float, float, float, float, float[], int)}
+     */
+    public abstract void relativeVelocity(int image, float velocityX, float velocityY, float[] out, int offset);
+
+    /**
+     * Wrap the position and velocity of a boid in place.
+     */
+    public abstract void performWrapping(BoidStore store, int id);
+
+    /**
+     * Write the position and velocity of each image of a boid in the surrounding universes into out,
+     * as x, y, vx, vy groups. The array must hold at least {@link #MAX_GHOST_IMAGES} groups.
+     * @return the number of images written
+     */
+    public abstract int ghostImages(float x, float y, float velocityX, float velocityY, float[] out);
 }
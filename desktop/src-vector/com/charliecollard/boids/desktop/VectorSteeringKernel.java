@@ -0,0 +1,104 @@
+package com.charliecollard.boids.desktop;
+
+import com.charliecollard.boids.SteeringKernel;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A steering kernel that sums all three terms in one pass with the incubating Vector API, for desktop
+ * JVMs of version 16 or later run with --add-modules jdk.incubator.vector.
+ *
+ * Neighbours are loaded a whole vector at a time straight from their packed dx, dy, vx, vy groups, so
+ * each lane always holds the same component. Cohesion and alignment are plain lane-wise sums. For
+ * separation, each lane's square is added to its partner's, which gives every dx and dy lane its
+ * neighbour's squared distance without leaving the packed layout. The lanes are only split back into
+ * components once, at the end, by folding them in halves, and neighbours left over after the last whole
+ * vector are summed one by one as in the scalar loops.
+ */
+public class VectorSteeringKernel implements SteeringKernel {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+    // Matches the separation scale in Boid
+    private static final float SEPARATION_STRENGTH = 30;
+    // Swaps each dx lane with its dy and each vx lane with its vy
+    private static final VectorShuffle<Float> SWAP_PAIRS = VectorShuffle.fromOp(SPECIES, i -> i ^ 1);
+    private static final VectorMask<Float> DISPLACEMENT_LANES = componentLanes(0).or(componentLanes(1));
+    // Shorter lists than this many vectors are quicker summed one by one than set up and folded
+    private static final int MIN_VECTORS = 4;
+
+    public VectorSteeringKernel() {
+        if (LANES % 4 != 0) {
+            throw new UnsupportedOperationException("Vectors of " + LANES + " floats don't hold whole neighbours");
+        }
+    }
+
+    @Override
+    public void sum(float[] neighbours, int offset, int count, float[] sums) {
+        int end = offset + 4 * count;
+        int vectorEnd = 4 * count < MIN_VECTORS * LANES ? offset : offset + SPECIES.loopBound(4 * count);
+        float separationX = 0;
+        float separationY = 0;
+        float cohesionX = 0;
+        float cohesionY = 0;
+        float alignmentX = 0;
+        float alignmentY = 0;
+        int n = offset;
+        if (vectorEnd > offset) {
+            FloatVector strength = FloatVector.broadcast(SPECIES, SEPARATION_STRENGTH);
+            FloatVector separation = FloatVector.zero(SPECIES);
+            FloatVector totals = FloatVector.zero(SPECIES);
+            for (; n < vectorEnd; n += LANES) {
+                FloatVector values = FloatVector.fromArray(SPECIES, neighbours, n);
+                totals = totals.add(values);
+                FloatVector squares = values.mul(values);
+                FloatVector distanceSquared = squares.add(squares.rearrange(SWAP_PAIRS));
+                VectorMask<Float> separating = distanceSquared.compare(VectorOperators.NE, 0f).and(DISPLACEMENT_LANES);
+                separation = separation.add(values.mul(strength.div(distanceSquared)), separating);
+            }
+            // Fold the upper half of the lanes onto the lower until one neighbour's worth is left
+            for (int width = LANES / 2; width >= 4; width /= 2) {
+                separation = separation.add(separation.slice(width));
+                totals = totals.add(totals.slice(width));
+            }
+            separationX = separation.lane(0);
+            separationY = separation.lane(1);
+            cohesionX = totals.lane(0);
+            cohesionY = totals.lane(1);
+            alignmentX = totals.lane(2);
+            alignmentY = totals.lane(3);
+        }
+        for (; n < end; n += 4) {
+            float dx = neighbours[n];
+            float dy = neighbours[n + 1];
+            float distanceSquared = dx * dx + dy * dy;
+            if (distanceSquared != 0) {
+                float scale = SEPARATION_STRENGTH / distanceSquared;
+                separationX += dx * scale;
+                separationY += dy * scale;
+            }
+            cohesionX += dx;
+            cohesionY += dy;
+            alignmentX += neighbours[n + 2];
+            alignmentY += neighbours[n + 3];
+        }
+
+        sums[0] = count;
+        sums[1] = separationX;
+        sums[2] = separationY;
+        sums[3] = cohesionX;
+        sums[4] = cohesionY;
+        sums[5] = alignmentX;
+        sums[6] = alignmentY;
+    }
+
+    private static VectorMask<Float> componentLanes(int component) {
+        boolean[] lanes = new boolean[LANES];
+        for (int i = component; i < LANES; i += 4) {
+            lanes[i] = true;
+        }
+        return VectorMask.fromArray(SPECIES, lanes, 0);
+    }
+}
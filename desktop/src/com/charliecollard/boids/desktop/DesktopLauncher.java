@@ -5,12 +5,22 @@ import com.badlogic.gdx.backends.lwjgl.LwjglApplicationConfiguration;
 import com.charliecollard.boids.*;
 import org.apache.commons.cli.*;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
 public class DesktopLauncher {
+    private static final String VECTOR_KERNEL = "com.charliecollard.boids.desktop.VectorSteeringKernel";
+
     public static void main(String[] args) {
         LwjglApplicationConfiguration config = new LwjglApplicationConfiguration();
         config.width = 880;
         config.height = 880;
         config.resizable = false;
+        SimulationConfig simulationConfig = new SimulationConfig();
 
         Option width = Option.builder("w")
                 .longOpt("width")
@@ -48,6 +58,18 @@ public class DesktopLauncher {
                 .hasArg()
                 .required(false)
                 .build();
+        Option spawn = Option.builder()
+                .longOpt("spawn")
+                .desc("How to lay out the initial boids: uniform (default), clustered, ring or aligned")
+                .hasArg()
+                .required(false)
+                .build();
+        Option seed = Option.builder()
+                .longOpt("seed")
+                .desc("Seed for the initial boids, the same seed always gives the same starting flock")
+                .hasArg()
+                .required(false)
+                .build();
         Option boidVisionRange = Option.builder("r")
                 .longOpt("boid-vision-range")
                 .desc("The range at which each boid considers its neighbours")
@@ -104,6 +126,249 @@ public class DesktopLauncher {
                 .desc("Display the correlation against distance plot")
                 .required(false)
                 .build();
+        Option correlationBackend = Option.builder()
+                .longOpt("correlation-backend")
+                .desc("With --plot-correlations, 'pairs' (default) to compare boids pairwise, or 'fft' to use FFTs over a grid "
+                        + "in a periodic world, which is much quicker for large flocks")
+                .hasArg()
+                .required(false)
+                .build();
+        Option verifyCorrelations = Option.builder()
+                .longOpt("verify-correlations")
+                .desc("With --correlation-backend fft, also compare boids pairwise for every plot and print how far the curves differ")
+                .required(false)
+                .build();
+        Option correlationAverage = Option.builder()
+                .longOpt("correlation-average")
+                .desc("With --plot-correlations, plot the average of this many of the most recent correlation curves (default 1)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option renderMode = Option.builder()
+                .longOpt("render-mode")
+                .desc("How to draw the flock, either 'boids' (default) or 'density' for a heatmap of boids per cell")
+                .hasArg()
+                .required(false)
+                .build();
+        Option densityCell = Option.builder()
+                .longOpt("density-cell")
+                .desc("With --render-mode density, the width of a heatmap cell in pixels (default 10)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option densityArrows = Option.builder()
+                .longOpt("density-arrows")
+                .desc("With --render-mode density, draw an arrow along each cell's mean velocity")
+                .required(false)
+                .build();
+        Option tickRate = Option.builder()
+                .longOpt("tick-rate")
+                .desc("Simulation ticks per second, independent of the frame rate (default 50)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option neighbourSearch = Option.builder()
+                .longOpt("neighbour-search")
+                .desc("How boids find their neighbours: 'grid' (default), 'verlet' to reuse lists between ticks, 'aggregate' to "
+                        + "approximate whole cells for large vision ranges, or 'brute'")
+                .hasArg()
+                .required(false)
+                .build();
+        Option verletSkin = Option.builder()
+                .longOpt("verlet-skin")
+                .desc("With --neighbour-search verlet, how far beyond vision range lists reach (default from the timestep)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option steeringKernel = Option.builder()
+                .longOpt("steering-kernel")
+                .desc("How neighbours are summed: 'scalar' (default) or 'vector' for the Vector API kernel, which needs Java 16 "
+                        + "or later run with --add-modules jdk.incubator.vector")
+                .hasArg()
+                .required(false)
+                .build();
+        Option neighbourMode = Option.builder()
+                .longOpt("neighbour-mode")
+                .desc("Which boids each one heeds: 'metric' for all within vision range (default), or 'topological' for "
+                        + "its --k nearest at any distance")
+                .hasArg()
+                .required(false)
+                .build();
+        Option topologicalCount = Option.builder()
+                .longOpt("k")
+                .desc("With --neighbour-mode topological, how many nearest neighbours each boid heeds (default 7)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option resortEvery = Option.builder()
+                .longOpt("resort-every")
+                .desc("Sort the boids' storage into Morton order every this many ticks, for cache locality, 0 for never (default 0)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option verifyNeighbours = Option.builder()
+                .longOpt("verify-neighbours")
+                .desc("Check every tick that the grid neighbour search agrees with the brute force search")
+                .required(false)
+                .build();
+        Option threads = Option.builder()
+                .longOpt("threads")
+                .desc("Number of threads to update the boids with, 1 (default) updates them on the render thread")
+                .hasArg()
+                .required(false)
+                .build();
+        Option ticks = Option.builder()
+                .longOpt("ticks")
+                .desc("With --headless, stop after this many ticks and print a summary")
+                .hasArg()
+                .required(false)
+                .build();
+        Option duration = Option.builder()
+                .longOpt("duration")
+                .desc("With --headless, stop after this many seconds and print a summary")
+                .hasArg()
+                .required(false)
+                .build();
+        Option warmup = Option.builder()
+                .longOpt("warmup")
+                .desc("With --headless, ticks to run before measuring (default 0)")
+                .hasArg()
+                .required(false)
+                .build();
+
+        Option record = Option.builder()
+                .longOpt("record")
+                .desc("Record the boids' trajectories to this file")
+                .hasArg()
+                .required(false)
+                .build();
+        Option recordEvery = Option.builder()
+                .longOpt("record-every")
+                .desc("With --record, record every nth tick (default 1)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option recordEncoding = Option.builder()
+                .longOpt("record-encoding")
+                .desc("With --record, how to store each frame, one of 'float' (default), 'quantized' or 'delta'")
+                .hasArg()
+                .required(false)
+                .build();
+        Option replay = Option.builder()
+                .longOpt("replay")
+                .desc("Play back a recorded trajectory file instead of simulating")
+                .hasArg()
+                .required(false)
+                .build();
+        Option replaySpeed = Option.builder()
+                .longOpt("replay-speed")
+                .desc("With --replay, recorded frames to advance per rendered frame (default 1, negative plays backwards)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option checkpointEvery = Option.builder()
+                .longOpt("checkpoint-every")
+                .desc("Save a checkpoint in the background every this many ticks, 0 for never (default)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option checkpointDir = Option.builder()
+                .longOpt("checkpoint-dir")
+                .desc("Directory to write checkpoints to and resume them from (default ./checkpoints)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option checkpointKeep = Option.builder()
+                .longOpt("checkpoint-keep")
+                .desc("How many of the newest checkpoints to keep (default 3)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option resume = Option.builder()
+                .longOpt("resume")
+                .desc("Carry on from the newest checkpoint that reads back whole")
+                .required(false)
+                .build();
+        Option stream = Option.builder()
+                .longOpt("stream")
+                .desc("Publish every tick to viewers connecting to this port on localhost, 0 for any free port")
+                .hasArg()
+                .required(false)
+                .build();
+        Option view = Option.builder()
+                .longOpt("view")
+                .desc("Show the boids streamed from host:port by another run with --stream instead of simulating")
+                .hasArg()
+                .required(false)
+                .build();
+
+        Option metricsCsv = Option.builder()
+                .longOpt("metrics-csv")
+                .desc("Write per-tick phase timings and neighbour counts to this CSV file, overwriting it if it exists")
+                .hasArg()
+                .required(false)
+                .build();
+        Option metricsCsvRows = Option.builder()
+                .longOpt("metrics-csv-rows")
+                .desc("With --metrics-csv, ticks per file before it is moved aside to FILE.1 (default 100000)")
+                .hasArg()
+                .required(false)
+                .build();
+
+        Option sweepSeparation = Option.builder()
+                .longOpt("sweep-separation")
+                .desc("Run a headless parameter sweep over these comma separated separation weightings")
+                .hasArg()
+                .required(false)
+                .build();
+        Option sweepCohesion = Option.builder()
+                .longOpt("sweep-cohesion")
+                .desc("In a sweep, comma separated cohesion weightings to try")
+                .hasArg()
+                .required(false)
+                .build();
+        Option sweepAlignment = Option.builder()
+                .longOpt("sweep-alignment")
+                .desc("In a sweep, comma separated alignment weightings to try")
+                .hasArg()
+                .required(false)
+                .build();
+        Option sweepVisionRange = Option.builder()
+                .longOpt("sweep-vision-range")
+                .desc("In a sweep, comma separated vision ranges to try")
+                .hasArg()
+                .required(false)
+                .build();
+        Option sweepSchemes = Option.builder()
+                .longOpt("sweep-schemes")
+                .desc("In a sweep, comma separated boundary conditions to try")
+                .hasArg()
+                .required(false)
+                .build();
+        Option sweepOutput = Option.builder()
+                .longOpt("sweep-output")
+                .desc("CSV file to write the sweep results to (default sweep.csv)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option sweepTicks = Option.builder()
+                .longOpt("sweep-ticks")
+                .desc("Ticks to run each simulation in a sweep for (default 2000)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option sweepAverage = Option.builder()
+                .longOpt("sweep-average")
+                .desc("Final ticks of each sweep run to average the polarization over (default 500)")
+                .hasArg()
+                .required(false)
+                .build();
+        Option sweepThreads = Option.builder()
+                .longOpt("sweep-threads")
+                .desc("Simulations to run at once in a sweep (default one per processor)")
+                .hasArg()
+                .required(false)
+                .build();
 
         Options options = new Options();
         options.addOption(width);
@@ -112,6 +377,8 @@ public class DesktopLauncher {
         options.addOption(initialSeparation);
         options.addOption(initialCohesion);
         options.addOption(initialAlignment);
+        options.addOption(spawn);
+        options.addOption(seed);
         options.addOption(boidVisionRange);
         options.addOption(boundaryCondition);
         options.addOption(updateMode);
@@ -122,36 +389,79 @@ public class DesktopLauncher {
         options.addOption(fullscreen);
         options.addOption(headless);
         options.addOption(plotCorrelations);
+        options.addOption(correlationBackend);
+        options.addOption(verifyCorrelations);
+        options.addOption(correlationAverage);
+        options.addOption(renderMode);
+        options.addOption(densityCell);
+        options.addOption(densityArrows);
+        options.addOption(tickRate);
+        options.addOption(neighbourSearch);
+        options.addOption(verletSkin);
+        options.addOption(steeringKernel);
+        options.addOption(neighbourMode);
+        options.addOption(topologicalCount);
+        options.addOption(resortEvery);
+        options.addOption(verifyNeighbours);
+        options.addOption(threads);
+        options.addOption(ticks);
+        options.addOption(duration);
+        options.addOption(warmup);
+        options.addOption(record);
+        options.addOption(recordEvery);
+        options.addOption(recordEncoding);
+        options.addOption(replay);
+        options.addOption(replaySpeed);
+        options.addOption(checkpointEvery);
+        options.addOption(checkpointDir);
+        options.addOption(checkpointKeep);
+        options.addOption(resume);
+        options.addOption(stream);
+        options.addOption(view);
+        options.addOption(metricsCsv);
+        options.addOption(metricsCsvRows);
+        options.addOption(sweepSeparation);
+        options.addOption(sweepCohesion);
+        options.addOption(sweepAlignment);
+        options.addOption(sweepVisionRange);
+        options.addOption(sweepSchemes);
+        options.addOption(sweepOutput);
+        options.addOption(sweepTicks);
+        options.addOption(sweepAverage);
+        options.addOption(sweepThreads);
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd;
+        ParameterSweep sweep = null;
         try {
             cmd = parser.parse(options, args);
             if (cmd.hasOption("width")) {
                 int passedWidth = Integer.valueOf(cmd.getOptionValue("width"));
                 config.width = passedWidth;
-                BoidSimulator.simulationWidth = passedWidth;
+                simulationConfig.setSize(passedWidth, simulationConfig.getHeight());
             }
             if (cmd.hasOption("height")) {
                 int passedHeight = Integer.valueOf(cmd.getOptionValue("height"));
                 config.height = passedHeight;
-                BoidSimulator.simulationHeight = passedHeight;
-            }
-            if (cmd.hasOption("number")) BoidSimulator.boidCount = Integer.valueOf(cmd.getOptionValue("number"));
-            if (cmd.hasOption("separation")) Boid.separationWeight = Integer.valueOf(cmd.getOptionValue("separation"));
-            if (cmd.hasOption("cohesion")) Boid.cohesionWeight = Integer.valueOf(cmd.getOptionValue("cohesion"));
-            if (cmd.hasOption("alignment")) Boid.alignmentWeight = Integer.valueOf(cmd.getOptionValue("alignment"));
-            if (cmd.hasOption("boid-vision-range")) Boid.visionRange = Integer.valueOf(cmd.getOptionValue("boid-vision-range"));
-            if (cmd.hasOption("boid-susceptibility")) Boid.boidSusceptibility = Integer.valueOf(cmd.getOptionValue("boid-susceptibility"));
+                simulationConfig.setSize(simulationConfig.getWidth(), passedHeight);
+            }
+            if (cmd.hasOption("number")) simulationConfig.boidCount = Integer.valueOf(cmd.getOptionValue("number"));
+            if (cmd.hasOption("spawn")) simulationConfig.spawnDistribution = BoidSpawner.forName(cmd.getOptionValue("spawn"));
+            if (cmd.hasOption("seed")) simulationConfig.seed = Long.valueOf(cmd.getOptionValue("seed"));
+            if (cmd.hasOption("separation")) simulationConfig.separationWeight = Integer.valueOf(cmd.getOptionValue("separation"));
+            if (cmd.hasOption("cohesion")) simulationConfig.cohesionWeight = Integer.valueOf(cmd.getOptionValue("cohesion"));
+            if (cmd.hasOption("alignment")) simulationConfig.alignmentWeight = Integer.valueOf(cmd.getOptionValue("alignment"));
+            if (cmd.hasOption("boid-vision-range")) simulationConfig.visionRange = Integer.valueOf(cmd.getOptionValue("boid-vision-range"));
+            if (cmd.hasOption("boid-susceptibility")) simulationConfig.boidSusceptibility = Integer.valueOf(cmd.getOptionValue("boid-susceptibility"));
             if (cmd.hasOption("boundary-condition")) {
                 String boundCond = cmd.getOptionValue("boundary-condition");
-                if (boundCond.equals("sphere")) BoidSimulator.wrappingScheme = new SphereWrappingScheme();
-                if (boundCond.equals("solid")) BoidSimulator.wrappingScheme = new SolidWrappingScheme();
-                if (boundCond.equals("klein")) BoidSimulator.wrappingScheme = new KleinWrappingScheme();
+                if (boundCond.equals("sphere")) simulationConfig.setWrappingScheme(new SphereWrappingScheme());
+                if (boundCond.equals("solid")) simulationConfig.setWrappingScheme(new SolidWrappingScheme());
+                if (boundCond.equals("klein")) simulationConfig.setWrappingScheme(new KleinWrappingScheme());
             }
             if (cmd.hasOption("update-mode")) {
                 String updateModeStr = cmd.getOptionValue("update-mode");
-                if (updateModeStr.equals("timed")) BoidSimulator.updateMode = Boid.UPDATE_TIMED;
+                if (updateModeStr.equals("timed")) simulationConfig.updateMode = Boid.UPDATE_TIMED;
             }
             if (cmd.hasOption("boid-sprite")) {
                 String sprite = cmd.getOptionValue("boid-sprite");
@@ -164,21 +474,129 @@ public class DesktopLauncher {
             if (cmd.hasOption("fullscreen")) config.fullscreen = true;
             if (cmd.hasOption("headless")) BoidSimulator.renderingOn = false;
             if (cmd.hasOption("plot-correlations")) BoidSimulator.debugCorrelations = true;
-        } catch (ParseException | NumberFormatException e) {
+            if (cmd.hasOption("correlation-backend")) {
+                String backendStr = cmd.getOptionValue("correlation-backend");
+                if (backendStr.equals("pairs")) CorrelationEngine.backend = CorrelationEngine.BACKEND_PAIRS;
+                if (backendStr.equals("fft")) CorrelationEngine.backend = CorrelationEngine.BACKEND_FFT;
+            }
+            if (cmd.hasOption("verify-correlations")) CorrelationEngine.verifyFft = true;
+            if (cmd.hasOption("correlation-average")) {
+                CorrelationEngine.averagingWindow = Math.max(1, Integer.valueOf(cmd.getOptionValue("correlation-average")));
+            }
+            if (cmd.hasOption("render-mode")) {
+                String renderModeStr = cmd.getOptionValue("render-mode");
+                if (renderModeStr.equals("density")) BoidSimulator.renderMode = BoidSimulator.RENDER_DENSITY;
+            }
+            if (cmd.hasOption("density-cell")) DensityRenderer.cellSize = Math.max(1, Integer.valueOf(cmd.getOptionValue("density-cell")));
+            if (cmd.hasOption("density-arrows")) DensityRenderer.arrows = true;
+            if (cmd.hasOption("tick-rate")) BoidSimulator.tickRate = Math.max(1, Integer.valueOf(cmd.getOptionValue("tick-rate")));
+            if (cmd.hasOption("neighbour-search")) {
+                String searchStr = cmd.getOptionValue("neighbour-search");
+                if (searchStr.equals("brute")) simulationConfig.neighbourSearch = BoidSimulator.NEIGHBOURS_BRUTE_FORCE;
+                if (searchStr.equals("verlet")) simulationConfig.neighbourSearch = BoidSimulator.NEIGHBOURS_VERLET;
+                if (searchStr.equals("aggregate")) simulationConfig.neighbourSearch = BoidSimulator.NEIGHBOURS_AGGREGATE;
+            }
+            if (cmd.hasOption("verlet-skin")) simulationConfig.verletSkin = Float.valueOf(cmd.getOptionValue("verlet-skin"));
+            if (cmd.hasOption("steering-kernel")) {
+                String kernelStr = cmd.getOptionValue("steering-kernel");
+                if (kernelStr.equals("vector")) Boid.steeringKernel = loadVectorKernel();
+            }
+            if (cmd.hasOption("neighbour-mode")) {
+                String modeStr = cmd.getOptionValue("neighbour-mode");
+                if (modeStr.equals("metric")) simulationConfig.neighbourMode = BoidSimulator.NEIGHBOUR_MODE_METRIC;
+                if (modeStr.equals("topological")) simulationConfig.neighbourMode = BoidSimulator.NEIGHBOUR_MODE_TOPOLOGICAL;
+            }
+            if (cmd.hasOption("k")) simulationConfig.topologicalCount = Integer.valueOf(cmd.getOptionValue("k"));
+            if (cmd.hasOption("resort-every")) simulationConfig.resortEvery = Integer.valueOf(cmd.getOptionValue("resort-every"));
+            if (cmd.hasOption("verify-neighbours")) BoidSimulator.verifyNeighbours = true;
+            if (cmd.hasOption("threads")) simulationConfig.threadCount = Integer.valueOf(cmd.getOptionValue("threads"));
+            if (cmd.hasOption("ticks")) HeadlessRunner.ticks = Integer.valueOf(cmd.getOptionValue("ticks"));
+            if (cmd.hasOption("duration")) HeadlessRunner.durationSeconds = Float.valueOf(cmd.getOptionValue("duration"));
+            if (cmd.hasOption("warmup")) HeadlessRunner.warmupTicks = Integer.valueOf(cmd.getOptionValue("warmup"));
+            if (cmd.hasOption("record")) TrajectoryRecorder.recordFile = cmd.getOptionValue("record");
+            if (cmd.hasOption("record-every")) TrajectoryRecorder.recordEvery = Math.max(1, Integer.valueOf(cmd.getOptionValue("record-every")));
+            if (cmd.hasOption("record-encoding")) {
+                TrajectoryRecorder.encoding = TrajectoryFile.encodingForName(cmd.getOptionValue("record-encoding"));
+            }
+            if (cmd.hasOption("replay")) BoidSimulator.replayFile = cmd.getOptionValue("replay");
+            if (cmd.hasOption("checkpoint-every")) CheckpointWriter.checkpointEvery = Integer.valueOf(cmd.getOptionValue("checkpoint-every"));
+            if (cmd.hasOption("checkpoint-dir")) CheckpointWriter.directory = cmd.getOptionValue("checkpoint-dir");
+            if (cmd.hasOption("checkpoint-keep")) CheckpointWriter.keep = Math.max(1, Integer.valueOf(cmd.getOptionValue("checkpoint-keep")));
+            if (cmd.hasOption("resume")) CheckpointWriter.resume = true;
+            if (cmd.hasOption("stream")) StreamServer.streamPort = Integer.valueOf(cmd.getOptionValue("stream"));
+            if (cmd.hasOption("view")) BoidSimulator.streamAddress = cmd.getOptionValue("view");
+            if (cmd.hasOption("metrics-csv")) TickMetrics.csvFile = cmd.getOptionValue("metrics-csv");
+            if (cmd.hasOption("metrics-csv-rows")) TickMetrics.csvMaxRows = Integer.valueOf(cmd.getOptionValue("metrics-csv-rows"));
+            if (cmd.hasOption("replay-speed")) BoidSimulator.replaySpeed = Float.valueOf(cmd.getOptionValue("replay-speed"));
+            if (cmd.hasOption("sweep-separation") || cmd.hasOption("sweep-cohesion") || cmd.hasOption("sweep-alignment")
+                    || cmd.hasOption("sweep-vision-range") || cmd.hasOption("sweep-schemes")) {
+                // Anything not swept stays at its single value from the options above
+                int[] separations = cmd.hasOption("sweep-separation") ? ParameterSweep.parseInts(cmd.getOptionValue("sweep-separation"))
+                        : new int[] {simulationConfig.separationWeight};
+                int[] cohesions = cmd.hasOption("sweep-cohesion") ? ParameterSweep.parseInts(cmd.getOptionValue("sweep-cohesion"))
+                        : new int[] {simulationConfig.cohesionWeight};
+                int[] alignments = cmd.hasOption("sweep-alignment") ? ParameterSweep.parseInts(cmd.getOptionValue("sweep-alignment"))
+                        : new int[] {simulationConfig.alignmentWeight};
+                float[] visionRanges = cmd.hasOption("sweep-vision-range") ? ParameterSweep.parseFloats(cmd.getOptionValue("sweep-vision-range"))
+                        : new float[] {simulationConfig.visionRange};
+                String[] schemes = cmd.hasOption("sweep-schemes") ? cmd.getOptionValue("sweep-schemes").split(",")
+                        : new String[] {simulationConfig.getWrappingScheme().getName()};
+                for (String scheme : schemes) {
+                    WrappingScheme.forName(scheme);
+                }
+                sweep = new ParameterSweep(simulationConfig, separations, cohesions, alignments, visionRanges, schemes);
+            }
+            if (cmd.hasOption("sweep-ticks")) ParameterSweep.ticks = Integer.valueOf(cmd.getOptionValue("sweep-ticks"));
+            if (cmd.hasOption("sweep-average")) ParameterSweep.averageTicks = Integer.valueOf(cmd.getOptionValue("sweep-average"));
+            if (cmd.hasOption("sweep-threads")) ParameterSweep.threadCount = Integer.valueOf(cmd.getOptionValue("sweep-threads"));
+        } catch (ParseException | IllegalArgumentException e) {
             HelpFormatter helpFormatter = new HelpFormatter();
 		    helpFormatter.printHelp("desktop-1.0", "Create a boid simulation", options, "", true);
 		    return;
         }
 
+        if (sweep != null) {
+            File output = new File(cmd.getOptionValue("sweep-output", "sweep.csv"));
+            try {
+                sweep.run(output, System.out);
+            } catch (IOException e) {
+                System.err.println("Couldn't write sweep results to " + output + ": " + e.getMessage());
+            }
+            return;
+        }
+
         config.x = 1920/2 - config.width/2;
         config.y = 1040/2 - config.height/2;
+        BoidSimulator boidSimulator = new BoidSimulator(simulationConfig);
+        registerMetrics(boidSimulator.getTickMetrics());
         if (BoidSimulator.renderingOn) {
-            new LwjglApplication(new BoidSimulator(), config);
+            new LwjglApplication(boidSimulator, config);
         } else {
-            BoidSimulator boidSimulator = new BoidSimulator();
-            while (true) {
-                boidSimulator.update();
-            }
+            new HeadlessRunner(boidSimulator, System.out).run();
         }
 	}
+
+    // The Vector API kernel is built separately and only runs on newer JVMs, so fall back to the scalar loops without it
+    private static SteeringKernel loadVectorKernel() {
+        try {
+            return (SteeringKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+            System.err.println("Vector steering kernel unavailable, using the scalar one: " + e);
+            return null;
+        }
+    }
+
+    // Publish the tick metrics over JMX, for jconsole or any other JMX client
+    private static void registerMetrics(TickMetrics tickMetrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.charliecollard.boids:type=TickMetrics");
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(tickMetrics, name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
 }